@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Aggregate statistics over archives of played games, computed in one parallel pass.
+ * An archive is a text file with one game per line and the moves separated by ';' in
+ * GUI notation, e.g. "D 3;D 4;PP 3 0;PD 2 1". Blank lines and lines starting with '#'
+ * are ignored. Games are replayed like the GUI does it: an invalid move is counted and
+ * skipped, and the game stops at the first winner. Once a column would outgrow
+ * Board.MAX_HEIGHT, the rest of that game is replayed on a PowerConnectFour.
+ *
+ * Each stream split replays into its own Stats (board and counters are reused, so
+ * replaying does not allocate) and the splits are merged at the end; memory does not
+ * depend on the size of the archive.
+ * Usage: java ArchiveAnalytics Archive_File [Archive_File ...]
+ */
+public class ArchiveAnalytics
+{
+	/**
+	 * The minimum number of rows of the grid for display.
+	 */
+	private static final int MIN_ROWS = 6;
+
+	/**
+	 * Game lengths at or above this share the last histogram bucket.
+	 */
+	private static final int MAX_LENGTH = 1000;
+
+	/**
+	 * Width of the game length buckets in the report.
+	 */
+	private static final int REPORT_BUCKET = 10;
+
+	/**
+	 * Number of different encoded moves.
+	 */
+	private static final int MOVE_CODES = 1 << 12;
+
+	/**
+	 * Counters for a part of an archive; one per stream split, merged at the end.
+	 */
+	static final class Stats
+	{
+		/**
+		 * Board reused for every game.
+		 */
+		private final Board board = new Board();
+		/**
+		 * Empty board to reset from.
+		 */
+		private final Board empty = new Board();
+		/**
+		 * Move kinds of the game being replayed, added once the record is complete.
+		 */
+		private final int[] gameKinds = new int[Moves.KINDS];
+		/**
+		 * Moves of the line being replayed, as filled by Moves.parseLine().
+		 */
+		private int[] moves = new int[256];
+
+		/**
+		 * Games replayed.
+		 */
+		long games;
+		/**
+		 * Lines that could not be parsed; they are left out of all other counters.
+		 */
+		long badRecords;
+		/**
+		 * Moves that were invalid when replayed, in games that were not bad records.
+		 */
+		long invalidMoves;
+		/**
+		 * Wins of each player, 0 RED and 1 YELLOW.
+		 */
+		final long[] wins = new long[2];
+		/**
+		 * Games by first move.
+		 */
+		final long[] firstMoveGames = new long[MOVE_CODES];
+		/**
+		 * Wins of each player by first move, two entries per move.
+		 */
+		final long[] firstMoveWins = new long[2 * MOVE_CODES];
+		/**
+		 * Valid moves by kind.
+		 */
+		final long[] kinds = new long[Moves.KINDS];
+		/**
+		 * Games by number of valid moves.
+		 */
+		final long[] lengths = new long[MAX_LENGTH + 1];
+		/**
+		 * Largest sizeRow() reached in any game.
+		 */
+		int maxSizeRow = MIN_ROWS;
+		/**
+		 * Games in which the grid grew past MIN_ROWS.
+		 */
+		long grownGames;
+
+		/**
+		 * Replay one archive line.
+		 * @param line the game record
+		 */
+		void add(String line)
+		{
+			int n = line.length();
+			int pos = 0;
+			while(pos < n && line.charAt(pos) == ' ')
+			{
+				pos++;
+			}
+			if(pos == n || line.charAt(pos) == '#')
+				return;
+
+			board.copyFrom(empty);
+			Arrays.fill(gameKinds, 0);
+			int first = Moves.NONE;
+			int length = 0;
+			int invalid = 0;
+			int sizeRow = MIN_ROWS;
+			int winner = -1;
+			PowerConnectFour tall = null;
+			moves = Moves.parseLine(line, moves);
+			for(int k = 1; k <= moves[0] && winner < 0; k++)
+			{
+				int move = moves[k];
+				if(move == Moves.NONE)
+				{
+					badRecords++;
+					return;
+				}
+				if(tall == null && !board.isLegal(move) && outgrows(move))
+					tall = replay(k);
+				if(tall != null)
+				{
+					Token player = tall.currentPlayer();
+					if(!Moves.apply(tall, move))
+					{
+						invalid++;
+						continue;
+					}
+					sizeRow = Math.max(sizeRow, tall.sizeRow());
+					winner = tall.hasFourConnected(player) ? player.ordinal()
+						: tall.hasFourConnected(tall.currentPlayer()) ? tall.currentPlayer().ordinal() : -1;
+				}
+				else
+				{
+					if(!board.tryMake(move))
+					{
+						invalid++;
+						continue;
+					}
+					sizeRow = Math.max(sizeRow, board.sizeRow());
+					winner = board.winner();
+				}
+				if(first == Moves.NONE)
+					first = move;
+				gameKinds[Moves.kind(move)]++;
+				length++;
+			}
+			games++;
+			invalidMoves += invalid;
+			for(int k = 0; k < Moves.KINDS; k++)
+			{
+				kinds[k] += gameKinds[k];
+			}
+			if(first != Moves.NONE)
+				firstMoveGames[first]++;
+			if(winner >= 0)
+			{
+				wins[winner]++;
+				if(first != Moves.NONE)
+					firstMoveWins[2 * first + winner]++;
+			}
+			lengths[Math.min(length, MAX_LENGTH)]++;
+			maxSizeRow = Math.max(maxSizeRow, sizeRow);
+			if(sizeRow > MIN_ROWS)
+				grownGames++;
+		}
+
+		/**
+		 * Whether a move is a drop or powerDrop onto a column the board has filled.
+		 * @param move encoded move
+		 * @return true if only Board.MAX_HEIGHT makes the move illegal on the board
+		 */
+		private boolean outgrows(int move)
+		{
+			int kind = Moves.kind(move);
+			return (kind == Moves.DROP || kind == Moves.POWER_DROP) && Moves.col(move) < Board.NUM_COLS
+				&& board.height(Moves.col(move)) == Board.MAX_HEIGHT;
+		}
+
+		/**
+		 * Replay the moves before a ply on a PowerConnectFour, to go on past what the
+		 * board holds.
+		 * @param to index in moves of the first ply not replayed
+		 * @return the game
+		 */
+		private PowerConnectFour replay(int to)
+		{
+			PowerConnectFour game = new PowerConnectFour();
+			for(int k = 1; k < to; k++)
+			{
+				Moves.apply(game, moves[k]);
+			}
+			return game;
+		}
+
+		/**
+		 * Add the counters of another part.
+		 * @param other stats of another part
+		 * @return this
+		 */
+		Stats merge(Stats other)
+		{
+			games += other.games;
+			badRecords += other.badRecords;
+			invalidMoves += other.invalidMoves;
+			add(wins, other.wins);
+			add(firstMoveGames, other.firstMoveGames);
+			add(firstMoveWins, other.firstMoveWins);
+			add(kinds, other.kinds);
+			add(lengths, other.lengths);
+			maxSizeRow = Math.max(maxSizeRow, other.maxSizeRow);
+			grownGames += other.grownGames;
+			return this;
+		}
+
+		/**
+		 * Element-wise sum.
+		 * @param to array to add to
+		 * @param from array to add
+		 */
+		private static void add(long[] to, long[] from)
+		{
+			for(int k = 0; k < to.length; k++)
+			{
+				to[k] += from[k];
+			}
+		}
+	}
+
+	/**
+	 * Replay one archive file in parallel.
+	 * @param archive path of the archive
+	 * @return the merged statistics
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Stats analyze(Path archive) throws IOException
+	{
+		try(Stream<String> lines = Files.lines(archive))
+		{
+			return lines.parallel().collect(Collector.of(Stats::new, Stats::add, Stats::merge,
+				Collector.Characteristics.UNORDERED));
+		}
+		catch(UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Print the report of the statistics.
+	 * @param s the statistics
+	 */
+	static void report(Stats s)
+	{
+		long moves = 0;
+		for(long k : s.kinds)
+		{
+			moves += k;
+		}
+		System.out.format("Games: %d (bad records %d, invalid moves skipped %d)%n", s.games, s.badRecords, s.invalidMoves);
+		System.out.format("Winner R: %d (%.1f%%)  Winner Y: %d (%.1f%%)  No winner: %d%n",
+			s.wins[0], pct(s.wins[0], s.games), s.wins[1], pct(s.wins[1], s.games),
+			s.games - s.wins[0] - s.wins[1]);
+
+		System.out.println("-----------------------------------------------");
+		System.out.println(" First move   games    R wins   Y wins");
+		for(int m = 0; m < MOVE_CODES; m++)
+		{
+			long g = s.firstMoveGames[m];
+			if(g > 0)
+				System.out.format(" %-10s %7d %8.1f%% %7.1f%%%n", Moves.toString(m), g,
+					pct(s.firstMoveWins[2 * m], g), pct(s.firstMoveWins[2 * m + 1], g));
+		}
+
+		System.out.println("-----------------------------------------------");
+		String[] names = {"drop", "pop", "powerDrop", "powerPop"};
+		for(int k = 0; k < Moves.KINDS; k++)
+		{
+			System.out.format(" %-10s %10d (%.1f%%)%n", names[k], s.kinds[k], pct(s.kinds[k], moves));
+		}
+
+		System.out.println("-----------------------------------------------");
+		System.out.println(" Game length (moves)   games");
+		for(int from = 0; from <= MAX_LENGTH; from += REPORT_BUCKET)
+		{
+			long g = 0;
+			for(int len = from; len < from + REPORT_BUCKET && len <= MAX_LENGTH; len++)
+			{
+				g += s.lengths[len];
+			}
+			if(g > 0)
+			{
+				String range = from + REPORT_BUCKET > MAX_LENGTH ? from + "+" : from + "-" + (from + REPORT_BUCKET - 1);
+				System.out.format(" %-20s %7d%n", range, g);
+			}
+		}
+
+		System.out.println("-----------------------------------------------");
+		System.out.format(" Max sizeRow(): %d%n", s.maxSizeRow);
+		System.out.format(" Games growing past %d rows: %d (%.1f%%)%n", MIN_ROWS, s.grownGames, pct(s.grownGames, s.games));
+	}
+
+	/**
+	 * O(1).
+	 * @param part the part
+	 * @param whole the whole
+	 * @return part as a percentage of whole
+	 */
+	private static double pct(long part, long whole)
+	{
+		return whole == 0 ? 0 : 100.0 * part / whole;
+	}
+
+	/**
+	 * Analyze the archives given on the command line, or without arguments run the checks.
+	 * @param args archive files
+	 * @throws IOException if an archive cannot be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length == 0)
+		{
+			// a column past Board.MAX_HEIGHT: the GUI accepts every move and grows the grid
+			Stats tall = new Stats();
+			tall.add("PD 0 0;".repeat(70));
+			if(tall.games == 1 && tall.invalidMoves == 0 && tall.kinds[Moves.POWER_DROP] == 70 && tall.maxSizeRow == 71)
+				System.out.println("Yay 1");
+
+			Stats won = new Stats();
+			won.add("D 0;".repeat(Board.MAX_HEIGHT + 1) + "D 1;D 2;D 1;D 2;D 1;D 2;D 1;D 3");
+			if(won.games == 1 && won.wins[1] == 1 && won.lengths[Board.MAX_HEIGHT + 8] == 1 && won.invalidMoves == 0)
+				System.out.println("Yay 2");
+			System.out.println("Usage: java ArchiveAnalytics Archive_File [Archive_File ...]");
+			return;
+		}
+		long start = System.nanoTime();
+		Stats total = new Stats();
+		for(String a : args)
+		{
+			total.merge(analyze(Path.of(a)));
+		}
+		report(total);
+		System.out.format(" Time: %d ms%n", (System.nanoTime() - start) / 1000000);
+	}
+}
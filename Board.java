@@ -0,0 +1,654 @@
+import java.util.Random;
+
+/**
+ * A compact Power Connect Four position for engines: one long per column holding the
+ * owner of each token (bit set means YELLOW) plus the column height.
+ * Follows the rules of PowerConnectFour, including pop/powerPop ownership and the
+ * powerDrop support rule, but columns are limited to MAX_HEIGHT tokens.
+ * Players are ints: 0 for RED and 1 for YELLOW (Token.ordinal()).
+ */
+public class Board
+{
+	/**
+	 * The fixed number of columns.
+	 */
+	public static final int NUM_COLS = 7;
+
+	/**
+	 * Maximum number of tokens in one column.
+	 */
+	public static final int MAX_HEIGHT = 62;
+
+	/**
+	 * Upper bound on the number of legal moves in any position.
+	 */
+	public static final int MAX_MOVES = NUM_COLS * (2 * MAX_HEIGHT + 3);
+
+	/**
+	 * Hash contribution of the side to move.
+	 */
+	private static final long SIDE_KEY = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Owner bits of each column, bit r set when the token at row r is YELLOW.
+	 */
+	private final long[] bits = new long[NUM_COLS];
+
+	/**
+	 * Number of tokens in each column.
+	 */
+	private final int[] height = new int[NUM_COLS];
+
+	/**
+	 * Player to move.
+	 */
+	private int player;
+
+	/**
+	 * Number of moves made since the empty board.
+	 */
+	private int ply;
+
+	/**
+	 * Hash of the position, kept up to date on every move.
+	 */
+	private long hash;
+
+	/**
+	 * Hash of the left-right mirror image of the position (column c seen as NUM_COLS-1-c).
+	 */
+	private long mirrorHash;
+
+	/**
+	 * Empty board, RED to move.
+	 */
+	public Board()
+	{
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			hash ^= columnKey(c, 1L);
+		}
+		mirrorHash = hash;
+	}
+
+	/**
+	 * Board with the same tokens and player to move as a game.
+	 * @param game the game to copy
+	 * @return a new board
+	 * @throws IllegalArgumentException if a column is taller than MAX_HEIGHT
+	 */
+	public static Board of(PowerConnectFour game)
+	{
+		Board board = new Board();
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			int h = game.getColumn(c).size();
+			if(h > MAX_HEIGHT)
+				throw new IllegalArgumentException("Column " + c + " is taller than " + MAX_HEIGHT);
+			for(int r = 0; r < h; r++)
+			{
+				board.insert(c, r, game.get(c, r).ordinal());
+			}
+		}
+		board.player = game.currentPlayer().ordinal();
+		board.hash = board.computeHash(false);
+		board.mirrorHash = board.computeHash(true);
+		return board;
+	}
+
+	/**
+	 * Copy another board into this one without allocating.
+	 * @param other the board to copy
+	 */
+	public void copyFrom(Board other)
+	{
+		System.arraycopy(other.bits, 0, bits, 0, NUM_COLS);
+		System.arraycopy(other.height, 0, height, 0, NUM_COLS);
+		player = other.player;
+		ply = other.ply;
+		hash = other.hash;
+		mirrorHash = other.mirrorHash;
+	}
+
+	/**
+	 * Set the position from column codes (see code()) without allocating.
+	 * @param codes one code per column
+	 * @param toMove the player to move, 0 for RED and 1 for YELLOW
+	 * @param moves number of moves made since the empty board
+	 * @throws IllegalArgumentException if a code is not a valid column
+	 */
+	public void setPosition(long[] codes, int toMove, int moves)
+	{
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			long code = codes[c];
+			int h = 63 - Long.numberOfLeadingZeros(code);
+			if(code <= 0 || h > MAX_HEIGHT)
+				throw new IllegalArgumentException("Bad code for column " + c + ": " + code);
+			height[c] = h;
+			bits[c] = code & ~(1L << h);
+		}
+		player = toMove & 1;
+		ply = moves;
+		hash = computeHash(false);
+		mirrorHash = computeHash(true);
+	}
+
+	/**
+	 * O(1).
+	 * @return the player to move, 0 for RED and 1 for YELLOW
+	 */
+	public int player()
+	{
+		return player;
+	}
+
+	/**
+	 * O(1).
+	 * @return number of moves made since the empty board
+	 */
+	public int ply()
+	{
+		return ply;
+	}
+
+	/**
+	 * Number of tokens on the board. Every move adds at most one, so this is never more
+	 * than the moves made, also for boards built by of() which does not know them. O(NUM_COLS)
+	 * @return total number of tokens
+	 */
+	public int tokens()
+	{
+		int n = 0;
+		for(int h : height)
+		{
+			n += h;
+		}
+		return n;
+	}
+
+	/**
+	 * O(1).
+	 * @return hash of the position including the side to move
+	 */
+	public long hash()
+	{
+		return hash;
+	}
+
+	/**
+	 * O(1).
+	 * @return hash of the left-right mirror image of the position
+	 */
+	public long mirrorHash()
+	{
+		return mirrorHash;
+	}
+
+	/**
+	 * Key shared by a position and its mirror image, for caches and tables that
+	 * should hold each position only once. O(1)
+	 * @return the smaller of hash() and mirrorHash()
+	 */
+	public long canonicalKey()
+	{
+		return Math.min(hash, mirrorHash);
+	}
+
+	/**
+	 * Whether canonicalKey() is the key of the mirror image. Moves stored under the
+	 * canonical key must be passed through Moves.mirror() when this is true. O(1)
+	 * @return true if the canonical orientation is the mirror image
+	 */
+	public boolean isMirrored()
+	{
+		return mirrorHash < hash;
+	}
+
+	/**
+	 * Map a move between this board and its canonical orientation (the mapping is its own inverse).
+	 * @param move encoded move
+	 * @return the move mirrored if isMirrored(), otherwise unchanged
+	 */
+	public int canonicalMove(int move)
+	{
+		return isMirrored() ? Moves.mirror(move) : move;
+	}
+
+	/**
+	 * O(1).
+	 * @param col take an integer as column index
+	 * @return number of tokens in the column
+	 */
+	public int height(int col)
+	{
+		return height[col];
+	}
+
+	/**
+	 * O(1).
+	 * @param col take an integer as column index
+	 * @return owner bits of the column, bit r set when row r is YELLOW
+	 */
+	public long bits(int col)
+	{
+		return bits[col];
+	}
+
+	/**
+	 * O(1).
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return 0 for RED, 1 for YELLOW, -1 if the cell is empty
+	 */
+	public int get(int col, int row)
+	{
+		if(row < 0 || row >= height[col])
+			return -1;
+		return (int) (bits[col] >>> row) & 1;
+	}
+
+	/**
+	 * Number of rows the GUI would display for this board.
+	 * @return max(6, tallest column + 1)
+	 */
+	public int sizeRow()
+	{
+		int top = 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			top = Math.max(top, height[c]);
+		}
+		return Math.max(6, top + 1);
+	}
+
+	/**
+	 * Check whether the player to move may make a move. O(1)
+	 * @param move encoded move
+	 * @return true if the move is legal
+	 */
+	public boolean isLegal(int move)
+	{
+		int col = Moves.col(move);
+		int row = Moves.row(move);
+		if(col >= NUM_COLS)
+			return false;
+		int h = height[col];
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				return h < MAX_HEIGHT;
+			case Moves.POP:
+				return h > 0 && (bits[col] & 1) == player;
+			case Moves.POWER_DROP:
+				return row <= h && h < MAX_HEIGHT;
+			default:
+				return row < h && ((bits[col] >>> row) & 1) == player;
+		}
+	}
+
+	/**
+	 * Make a legal move for the player to move and switch players. O(1)
+	 * @param move encoded move, must be legal
+	 */
+	public void make(int move)
+	{
+		int col = Moves.col(move);
+		long before = code(col);
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				insert(col, height[col], player);
+				break;
+			case Moves.POP:
+				remove(col, 0);
+				break;
+			case Moves.POWER_DROP:
+				insert(col, Moves.row(move), player);
+				break;
+			default:
+				remove(col, Moves.row(move));
+		}
+		updateHashes(col, before);
+		player ^= 1;
+		ply++;
+	}
+
+	/**
+	 * Take back the last move made with make(). O(1)
+	 * @param move the encoded move to take back
+	 */
+	public void unmake(int move)
+	{
+		player ^= 1;
+		ply--;
+		int col = Moves.col(move);
+		long before = code(col);
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				remove(col, height[col] - 1);
+				break;
+			case Moves.POP:
+				insert(col, 0, player);
+				break;
+			case Moves.POWER_DROP:
+				remove(col, Moves.row(move));
+				break;
+			default:
+				insert(col, Moves.row(move), player);
+		}
+		updateHashes(col, before);
+	}
+
+	/**
+	 * Try a move: make it if legal.
+	 * @param move encoded move
+	 * @return true if the move was legal and made
+	 */
+	public boolean tryMake(int move)
+	{
+		if(!isLegal(move))
+			return false;
+		make(move);
+		return true;
+	}
+
+	/**
+	 * Generate all legal moves of the player to move without duplicates:
+	 * powerDrop on top of a column is listed as a drop and powerPop of row 0 as a pop.
+	 * Columns of at most ColumnTables.MAX_HEIGHT tokens are copied from the tables.
+	 * @param out array to fill, at least MAX_MOVES long
+	 * @return number of moves generated
+	 */
+	public int generate(int[] out)
+	{
+		int n = 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			int h = height[c];
+			if(h <= ColumnTables.MAX_HEIGHT)
+			{
+				n = ColumnTables.moves((int) code(c), player, c, out, n);
+				continue;
+			}
+			long mine = player == 1 ? bits[c] : ~bits[c];
+			if(h < MAX_HEIGHT)
+			{
+				out[n++] = Moves.encode(Moves.DROP, c, 0);
+				for(int r = 0; r < h; r++)
+				{
+					out[n++] = Moves.encode(Moves.POWER_DROP, c, r);
+				}
+			}
+			if(h > 0 && (mine & 1) != 0)
+				out[n++] = Moves.encode(Moves.POP, c, 0);
+			for(int r = 1; r < h; r++)
+			{
+				if(((mine >>> r) & 1) != 0)
+					out[n++] = Moves.encode(Moves.POWER_POP, c, r);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Check whether a player has four tokens connected in a row, column or diagonal.
+	 * O(cols) using shifted column masks.
+	 * @param who 0 for RED, 1 for YELLOW
+	 * @return whether the player has four connected
+	 */
+	public boolean hasFourConnected(int who)
+	{
+		long m0 = mask(0, who);
+		long m1 = mask(1, who);
+		long m2 = mask(2, who);
+		for(int c = 0; c + 3 < NUM_COLS; c++)
+		{
+			long m3 = mask(c + 3, who);
+			if((m0 & m1 & m2 & m3) != 0
+					|| (m0 & (m1 << 1) & (m2 << 2) & (m3 << 3)) != 0
+					|| (m0 & (m1 >>> 1) & (m2 >>> 2) & (m3 >>> 3)) != 0)
+				return true;
+			m0 = m1;
+			m1 = m2;
+			m2 = m3;
+		}
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			long m = mask(c, who);
+			if((m & (m >>> 1) & (m >>> 2) & (m >>> 3)) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Winner after the last move, checked in the same order as the GUI:
+	 * the player who just moved first, then the player to move.
+	 * @return 0 for RED, 1 for YELLOW, -1 if nobody has four connected
+	 */
+	public int winner()
+	{
+		int mover = player ^ 1;
+		if(hasFourConnected(mover))
+			return mover;
+		if(hasFourConnected(player))
+			return player;
+		return -1;
+	}
+
+	/**
+	 * Winner after a move in one column. Same as winner() when nobody had four
+	 * connected before the move, since only the windows through that column changed.
+	 * @param col take an integer as column index of the last move
+	 * @return 0 for RED, 1 for YELLOW, -1 if nobody has four connected
+	 */
+	public int winnerAfter(int col)
+	{
+		int mover = player ^ 1;
+		if(hasFourThrough(col, mover))
+			return mover;
+		if(hasFourThrough(col, player))
+			return player;
+		return -1;
+	}
+
+	/**
+	 * Check the windows through one column for four connected. O(1)
+	 * @param col take an integer as column index
+	 * @param who 0 for RED, 1 for YELLOW
+	 * @return whether the player has four connected through the column
+	 */
+	private boolean hasFourThrough(int col, int who)
+	{
+		long m = mask(col, who);
+		if((m & (m >>> 1) & (m >>> 2) & (m >>> 3)) != 0)
+			return true;
+		int lo = Math.max(0, col - 3);
+		int hi = Math.min(NUM_COLS - 1, col + 3);
+		long m0 = mask(lo, who);
+		long m1 = mask(lo + 1, who);
+		long m2 = mask(lo + 2, who);
+		for(int c = lo; c + 3 <= hi; c++)
+		{
+			long m3 = mask(c + 3, who);
+			if((m0 & m1 & m2 & m3) != 0
+					|| (m0 & (m1 << 1) & (m2 << 2) & (m3 << 3)) != 0
+					|| (m0 & (m1 >>> 1) & (m2 >>> 2) & (m3 >>> 3)) != 0)
+				return true;
+			m0 = m1;
+			m1 = m2;
+			m2 = m3;
+		}
+		return false;
+	}
+
+	/**
+	 * Column contents as a single number: owner bits with a sentinel bit at the height.
+	 * @param col take an integer as column index
+	 * @return (1 &lt;&lt; height) | bits
+	 */
+	public long code(int col)
+	{
+		return bits[col] | (1L << height[col]);
+	}
+
+	/**
+	 * Tokens of one player in a column as a bit mask.
+	 * @param col take an integer as column index
+	 * @param who 0 for RED, 1 for YELLOW
+	 * @return bit r set when the player owns row r
+	 */
+	public long mask(int col, int who)
+	{
+		long filled = (1L << height[col]) - 1;
+		return who == 1 ? bits[col] : ~bits[col] & filled;
+	}
+
+	/**
+	 * Hash key of one column at a given horizontal position.
+	 * @param col take an integer as column index
+	 * @param code column code, see code()
+	 * @return 64 bit key
+	 */
+	static long columnKey(int col, long code)
+	{
+		long z = code + 0x632BE59BD9B4E019L * (col + 1);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Hash of the position or of its mirror image computed from scratch.
+	 * @param mirrored whether to hash the mirror image
+	 * @return 64 bit hash
+	 */
+	private long computeHash(boolean mirrored)
+	{
+		long h = player == 1 ? SIDE_KEY : 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			h ^= columnKey(mirrored ? NUM_COLS - 1 - c : c, code(c));
+		}
+		return h;
+	}
+
+	/**
+	 * Update both hashes after a move changed one column and switched the side to move.
+	 * @param col the column that changed
+	 * @param before code of the column before the move
+	 */
+	private void updateHashes(int col, long before)
+	{
+		long after = code(col);
+		int mirror = NUM_COLS - 1 - col;
+		hash ^= columnKey(col, before) ^ columnKey(col, after) ^ SIDE_KEY;
+		mirrorHash ^= columnKey(mirror, before) ^ columnKey(mirror, after) ^ SIDE_KEY;
+	}
+
+	/**
+	 * Insert a token at a row, shifting the tokens above it up.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @param who 0 for RED, 1 for YELLOW
+	 */
+	private void insert(int col, int row, int who)
+	{
+		long b = bits[col];
+		long low = b & ((1L << row) - 1);
+		long high = (b >>> row) << (row + 1);
+		bits[col] = low | ((long) who << row) | high;
+		height[col]++;
+	}
+
+	/**
+	 * Remove the token at a row, shifting the tokens above it down.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 */
+	private void remove(int col, int row)
+	{
+		long b = bits[col];
+		long low = b & ((1L << row) - 1);
+		long high = (b >>> (row + 1)) << row;
+		bits[col] = low | high;
+		height[col]--;
+	}
+
+	/**
+	 * The board drawn like the GUI grid, for debugging.
+	 * @return the grid as text
+	 */
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		for(int r = sizeRow() - 1; r >= 0; r--)
+		{
+			for(int c = 0; c < NUM_COLS; c++)
+			{
+				int who = get(c, r);
+				s.append(who < 0 ? '-' : Token.values()[who].getSymbol());
+			}
+			s.append('\n');
+		}
+		s.append("Player ").append(Token.values()[player].getSymbol()).append("'s turn");
+		return s.toString();
+	}
+
+	/**
+	 * Main method with sample checks of the board against PowerConnectFour.
+	 * @param args does not accept arguments.
+	 */
+	public static void main(String[] args)
+	{
+		Board board = new Board();
+		board.make(Moves.encode(Moves.DROP, 3, 0));
+		board.make(Moves.encode(Moves.DROP, 3, 0));
+		if(board.height(3) == 2 && board.get(3, 1) == 1 && board.player() == 0
+				&& board.isLegal(Moves.encode(Moves.POP, 3, 0))
+				&& !board.isLegal(Moves.encode(Moves.POWER_POP, 3, 1))
+				&& !board.isLegal(Moves.encode(Moves.POWER_DROP, 4, 1)))
+			System.out.println("Yay 1");
+
+		long before = board.hash();
+		int move = Moves.encode(Moves.POWER_DROP, 3, 1);
+		board.make(move);
+		board.unmake(move);
+		if(board.hash() == before && board.get(3, 1) == 1 && board.height(3) == 2)
+			System.out.println("Yay 2");
+
+		// a position and its mirror image share the canonical key
+		Board left = new Board();
+		Board right = new Board();
+		int[] cols = {0, 1, 1, 5};
+		for(int c : cols)
+		{
+			left.make(Moves.encode(Moves.DROP, c, 0));
+			right.make(Moves.mirror(Moves.encode(Moves.DROP, c, 0)));
+		}
+		if(left.canonicalKey() == right.canonicalKey() && left.isMirrored() != right.isMirrored()
+				&& left.mirrorHash() == right.hash()
+				&& left.canonicalMove(Moves.encode(Moves.POP, 0, 0)) == right.canonicalMove(Moves.encode(Moves.POP, 6, 0)))
+			System.out.println("Yay 3");
+
+		// random legal moves on both boards must give the same grid and player
+		PowerConnectFour game = new PowerConnectFour();
+		board = Board.of(game);
+		Random rand = new Random(310);
+		int[] list = new int[MAX_MOVES];
+		boolean ok = true;
+		for(int step = 0; step < 300 && ok; step++)
+		{
+			int n = board.generate(list);
+			move = list[rand.nextInt(n)];
+			ok = Moves.apply(game, move);
+			board.make(move);
+			Board copy = Board.of(game);
+			ok = ok && copy.hash() == board.hash() && copy.sizeRow() == game.sizeRow();
+		}
+		if(ok)
+			System.out.println("Yay 4");
+	}
+}
@@ -1,10 +1,24 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Create a class that represents a generic array Column.
+ * Elements are kept at the start of the array, so iteration goes straight over it.
+ * Iterators and spliterators are fail-fast: they throw ConcurrentModificationException
+ * if the column is structurally changed while they are in use.
  * @author Jackie Nguyen
  * @param <T> Declare generic type T
  */
  
-public class Column<T> 
+public class Column<T> implements Iterable<T>
 {
 	/**
 	 * Default initial capacity / minimum capacity.
@@ -18,6 +32,10 @@ public class Column<T>
 	 * Create a temporary generic array of object.
 	 */
 	private T[] temp;
+	/**
+	 * Number of structural changes, for fail-fast iteration.
+	 */
+	private int modCount;
 	
 	/**
 	 * Column class constructor with initial capacity as DEFAULT_CAPACITY.
@@ -97,6 +115,8 @@ public class Column<T>
 
 		T obj = data[index];
 		data[index] = value;
+		if((obj == null) != (value == null))
+			modCount++;
 		return obj;
 	}
 
@@ -137,20 +157,11 @@ public class Column<T>
 			System.out.println("Please enter a valid value.");
 		else
 		{
-			if(size() + 1 <= capacity())
-				data[size()] = value;		
-			else
-			{
-				temp = (T[])new Object[capacity()];
-				temp = data;
-				data = (T[])new Object[DEFAULT_CAPACITY * 2];
-
-				for(int k = 0; k < temp.length; k++)
-				{
-					data[k] = temp[k];
-				}
-				data[size()] = value;
-			}
+			int size = size();
+			if(size + 1 > capacity())
+				grow(size + 1, size);
+			data[size] = value;
+			modCount++;
 		}
 	} 
 
@@ -189,11 +200,13 @@ public class Column<T>
 			{
 				temp[j] = data[j];
 			}
+			int oldCapacity = capacity();
 			data = (T[])new Object[capacity() * 2];
 			for(int k = 0; k < capacity(); k++)
 			{
 				data[k] = temp[k];
 			}
+			GameEvents.columnResized(oldCapacity, capacity(), oldCapacity);
 		}
 
 		if(index > capacity())
@@ -233,6 +246,7 @@ public class Column<T>
 				}
 			}
 		}
+		modCount++;
 	} 
 
 	/**
@@ -289,16 +303,282 @@ public class Column<T>
 			{
 				temp[n] = data[n];
 			}
+			int oldCapacity = capacity();
 			data = (T[])new Object[capacity()/2];
 			for(int o = 0; o < temp.length; o++)
 			{
 				data[o] = temp[o];
 			}
+			GameEvents.columnResized(oldCapacity, capacity(), size());
 		}
 
+		modCount++;
 		return obj;
 	}  
 
+	/**
+	 * Double the capacity until minCapacity elements fit.
+	 * O(N)
+	 * @param minCapacity number of elements that must fit
+	 * @param size current number of elements
+	 */
+	@SuppressWarnings("unchecked")
+	private void grow(int minCapacity, int size)
+	{
+		int oldCapacity = capacity();
+		int newCapacity = Math.max(oldCapacity, 1);
+		while(newCapacity < minCapacity)
+		{
+			newCapacity *= 2;
+		}
+		T[] bigger = (T[])new Object[newCapacity];
+		System.arraycopy(data, 0, bigger, 0, size);
+		data = bigger;
+		GameEvents.columnResized(oldCapacity, newCapacity, size);
+	}
+
+	/**
+	 * Append all elements of a collection in order, growing at most once.
+	 * Null elements are skipped since null marks an empty cell.
+	 * O(N + M) where M is the size of the collection.
+	 * @param values elements to append
+	 * @return true if the column changed
+	 */
+	public boolean addAll(Collection<? extends T> values)
+	{
+		int size = size();
+		if(size + values.size() > capacity())
+			grow(size + values.size(), size);
+		int n = size;
+		for(T value : values)
+		{
+			if(value != null)
+				data[n++] = value;
+		}
+		if(n == size)
+			return false;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Remove the elements from index from (inclusive) to index to (exclusive) and shift
+	 * the rest down. Unlike delete(), the capacity does not change.
+	 * O(N)
+	 * @param from index of the first element to remove
+	 * @param to index after the last element to remove
+	 * @throws IndexOutOfBoundsException if the range is not within 0..size()
+	 */
+	public void removeRange(int from, int to)
+	{
+		int size = size();
+		if(from < 0 || to > size || from > to)
+			throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for size " + size);
+		if(from == to)
+			return;
+		System.arraycopy(data, to, data, from, size - to);
+		for(int k = size - (to - from); k < size; k++)
+		{
+			data[k] = null;
+		}
+		modCount++;
+	}
+
+	/**
+	 * Fail-fast iterator over the elements from index 0 up.
+	 * @return an iterator
+	 */
+	public Iterator<T> iterator()
+	{
+		return new Iterator<T>()
+		{
+			/**
+			 * Index of the next element.
+			 */
+			private int cursor;
+			/**
+			 * Number of elements when the iterator was made.
+			 */
+			private final int size = size();
+			/**
+			 * modCount the iterator expects.
+			 */
+			private final int expectedModCount = modCount;
+
+			/**
+			 * O(1).
+			 * @return whether there is a next element
+			 */
+			public boolean hasNext()
+			{
+				return cursor < size;
+			}
+
+			/**
+			 * O(1).
+			 * @return the next element
+			 */
+			public T next()
+			{
+				if(modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+				if(cursor >= size)
+					throw new NoSuchElementException();
+				return data[cursor++];
+			}
+		};
+	}
+
+	/**
+	 * Apply an action to each element in order, reading the array directly.
+	 * O(N)
+	 * @param action the action
+	 */
+	public void forEach(Consumer<? super T> action)
+	{
+		int expectedModCount = modCount;
+		T[] elements = data;
+		int size = size();
+		for(int k = 0; k < size && modCount == expectedModCount; k++)
+		{
+			action.accept(elements[k]);
+		}
+		if(modCount != expectedModCount)
+			throw new ConcurrentModificationException();
+	}
+
+	/**
+	 * Sized, subsized spliterator that splits the index range in halves.
+	 * @return a fail-fast spliterator
+	 */
+	public Spliterator<T> spliterator()
+	{
+		return new ColumnSpliterator(0, -1, 0);
+	}
+
+	/**
+	 * O(1).
+	 * @return a sequential stream of the elements; call parallel() for a parallel one
+	 */
+	public Stream<T> stream()
+	{
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Spliterator over a range of the array, bound to the column on first use like
+	 * the ones of ArrayList.
+	 */
+	private final class ColumnSpliterator implements Spliterator<T>
+	{
+		/**
+		 * Index of the next element.
+		 */
+		private int index;
+		/**
+		 * Index after the last element, -1 until first use.
+		 */
+		private int fence;
+		/**
+		 * modCount expected, set when the fence is.
+		 */
+		private int expectedModCount;
+
+		/**
+		 * Spliterator over data[origin..fence).
+		 * @param origin first index
+		 * @param fence index after the last, -1 to bind on first use
+		 * @param expectedModCount modCount expected once bound
+		 */
+		ColumnSpliterator(int origin, int fence, int expectedModCount)
+		{
+			this.index = origin;
+			this.fence = fence;
+			this.expectedModCount = expectedModCount;
+		}
+
+		/**
+		 * Bind to the current size on first use.
+		 * @return the fence
+		 */
+		private int fence()
+		{
+			if(fence < 0)
+			{
+				expectedModCount = modCount;
+				fence = size();
+			}
+			return fence;
+		}
+
+		/**
+		 * Split off the first half of the remaining range.
+		 * @return the first half, or null if too small to split
+		 */
+		public Spliterator<T> trySplit()
+		{
+			int hi = fence();
+			int lo = index;
+			int mid = (lo + hi) >>> 1;
+			if(lo >= mid)
+				return null;
+			index = mid;
+			return new ColumnSpliterator(lo, mid, expectedModCount);
+		}
+
+		/**
+		 * Apply an action to the next element.
+		 * @param action the action
+		 * @return false if there is no element left
+		 */
+		public boolean tryAdvance(Consumer<? super T> action)
+		{
+			int hi = fence();
+			if(index >= hi)
+				return false;
+			T value = data[index++];
+			action.accept(value);
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			return true;
+		}
+
+		/**
+		 * Apply an action to all remaining elements straight from the array.
+		 * @param action the action
+		 */
+		public void forEachRemaining(Consumer<? super T> action)
+		{
+			int hi = fence();
+			T[] elements = data;
+			for(int k = index; k < hi; k++)
+			{
+				action.accept(elements[k]);
+			}
+			index = hi;
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+		}
+
+		/**
+		 * O(1).
+		 * @return number of elements left
+		 */
+		public long estimateSize()
+		{
+			return fence() - index;
+		}
+
+		/**
+		 * O(1).
+		 * @return ORDERED, SIZED, SUBSIZED and NONNULL
+		 */
+		public int characteristics()
+		{
+			return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL;
+		}
+	}
+
 	/**
 	 * This method is provided for debugging purposes.
 	 * @return print Strings
@@ -307,8 +587,9 @@ public class Column<T>
 	{
 		StringBuilder s = new StringBuilder("Column with " + size()
 			+ " items and a capacity of " + capacity() + ":");
-		for (int i = 0; i < size(); i++) {
-			s.append("\n  ["+i+"]: " + get(i));
+		int i = 0;
+		for (T value : this) {
+			s.append("\n  [").append(i++).append("]: ").append(value);
 		}
 		return s.toString();
 	}
@@ -366,5 +647,38 @@ public class Column<T>
 			&& nums.size() == 2 && nums.capacity() == 4) {
 			System.out.println("Yay 5");
 		}
+
+		//bulk operations and iteration
+		Column<Integer> big = new Column<>();
+		List<Integer> values = new ArrayList<>();
+		for(int i = 0; i < 1000; i++) {
+			values.add(i);
+		}
+		big.addAll(values);
+		big.removeRange(10, 990);
+		int sum = 0;
+		for(int v : big) {
+			sum += v;
+		}
+		if(big.size() == 20 && big.capacity() == 1024 && big.get(10) == 990 && sum == 45 + 9945){
+			System.out.println("Yay 6");
+		}
+
+		//streams, sequential and parallel, and fail-fast iteration
+		big.addAll(values);
+		boolean failFast = false;
+		try {
+			for(int v : big) {
+				if(v == 5) big.add(-1);
+			}
+		}
+		catch(ConcurrentModificationException e) {
+			failFast = true;
+		}
+		if(big.stream().mapToLong(Integer::longValue).sum() == 45 + 9945 + 499500 - 1
+			&& big.stream().parallel().mapToLong(Integer::longValue).sum() == 45 + 9945 + 499500 - 1
+			&& failFast){
+			System.out.println("Yay 7");
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+import java.util.Random;
+
+/**
+ * Precomputed tables for columns of at most MAX_HEIGHT tokens, for Board.generate(). A
+ * column is encoded as a small integer the same way as Board.code(): owner bits (bit r
+ * set when the token at row r is YELLOW) with a sentinel bit at the height, so the empty
+ * column is 1 and every code is below CODES. For each code and player the tables give
+ * the legal moves of the column. Taller columns are not covered and Board.generate()
+ * scans their cells. Board.isLegal() tests a single owner bit and needs no table.
+ */
+public final class ColumnTables
+{
+	/**
+	 * Tallest column covered by the tables.
+	 */
+	public static final int MAX_HEIGHT = 8;
+
+	/**
+	 * Number of codes, all codes are in [1, CODES).
+	 */
+	public static final int CODES = 1 << (MAX_HEIGHT + 1);
+
+	/**
+	 * Code of the empty column.
+	 */
+	public static final int EMPTY = 1;
+
+	/**
+	 * Legal moves in column 0, at player * CODES + code, in the order of Board.generate().
+	 * The column of another column's moves is or-ed in.
+	 */
+	private static final int[][] MOVES = new int[2 * CODES][];
+
+	static
+	{
+		for(int code = EMPTY; code < CODES; code++)
+		{
+			int h = height(code);
+			int bits = code & ~(1 << h);
+			int filled = (1 << h) - 1;
+			for(int who = 0; who < 2; who++)
+			{
+				int owned = who == 1 ? bits : ~bits & filled;
+				int[] moves = new int[h + 1 + Integer.bitCount(owned)];
+				int n = 0;
+				moves[n++] = Moves.encode(Moves.DROP, 0, 0);
+				for(int row = 0; row < h; row++)
+				{
+					moves[n++] = Moves.encode(Moves.POWER_DROP, 0, row);
+				}
+				if((owned & 1) != 0)
+					moves[n++] = Moves.encode(Moves.POP, 0, 0);
+				for(int rows = owned & ~1; rows != 0; rows &= rows - 1)
+				{
+					moves[n++] = Moves.encode(Moves.POWER_POP, 0, Integer.numberOfTrailingZeros(rows));
+				}
+				MOVES[who * CODES + code] = moves;
+			}
+		}
+	}
+
+	/**
+	 * No instances, only static helpers.
+	 */
+	private ColumnTables()
+	{
+	}
+
+	/**
+	 * O(1).
+	 * @param code a column code
+	 * @return number of tokens in the column
+	 */
+	public static int height(int code)
+	{
+		return 31 - Integer.numberOfLeadingZeros(code);
+	}
+
+	/**
+	 * Append the legal moves of a column, in the order of Board.generate(). O(moves)
+	 * @param code a column code
+	 * @param who the player to move, 0 for RED, 1 for YELLOW
+	 * @param col take an integer as column index
+	 * @param out where to write the moves
+	 * @param n number of moves already in out
+	 * @return the new number of moves
+	 */
+	public static int moves(int code, int who, int col, int[] out, int n)
+	{
+		int[] moves = MOVES[who * CODES + code];
+		int shifted = col << 2;
+		for(int move : moves)
+		{
+			out[n++] = move | shifted;
+		}
+		return n;
+	}
+
+	/**
+	 * Per-cell generation as Board.generate() did before the tables, for the checks.
+	 * @param board the board
+	 * @param out array to fill
+	 * @return number of moves generated
+	 */
+	private static int scan(Board board, int[] out)
+	{
+		int n = 0;
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = board.height(c);
+			if(h < Board.MAX_HEIGHT)
+			{
+				out[n++] = Moves.encode(Moves.DROP, c, 0);
+				for(int r = 0; r < h; r++)
+				{
+					out[n++] = Moves.encode(Moves.POWER_DROP, c, r);
+				}
+			}
+			if(h > 0 && board.get(c, 0) == board.player())
+				out[n++] = Moves.encode(Moves.POP, c, 0);
+			for(int r = 1; r < h; r++)
+			{
+				if(board.get(c, r) == board.player())
+					out[n++] = Moves.encode(Moves.POWER_POP, c, r);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Checks of the tables against scanning cells, then time generation.
+	 * @param args not used
+	 */
+	public static void main(String[] args)
+	{
+		// RED, YELLOW, RED from the bottom: code 0b1010
+		int code = 0b1010;
+		int[] column = new int[Board.MAX_MOVES];
+		int count = moves(code, 0, 2, column, 0);
+		if(height(code) == 3 && count == 6 && column[4] == Moves.encode(Moves.POP, 2, 0)
+			&& column[5] == Moves.encode(Moves.POWER_POP, 2, 2))
+			System.out.println("Yay 1");
+		count = moves(code, 1, 2, column, 0);
+		if(count == 5 && column[0] == Moves.encode(Moves.DROP, 2, 0) && column[3] == Moves.encode(Moves.POWER_DROP, 2, 2)
+			&& column[4] == Moves.encode(Moves.POWER_POP, 2, 1) && moves(EMPTY, 0, 6, column, 0) == 1)
+			System.out.println("Yay 2");
+
+		Random rand = new Random(310);
+		int[] list = new int[Board.MAX_MOVES];
+		int[] expected = new int[Board.MAX_MOVES];
+		Board[] boards = new Board[4096];
+		boolean same = true;
+		for(int i = 0; i < boards.length; i++)
+		{
+			Board b = new Board();
+			int plies = rand.nextInt(40);
+			for(int p = 0; p < plies; p++)
+			{
+				b.make(list[rand.nextInt(b.generate(list))]);
+			}
+			int n = b.generate(list);
+			int m = scan(b, expected);
+			same &= n == m;
+			for(int k = 0; same && k < n; k++)
+			{
+				same &= list[k] == expected[k];
+			}
+			boards[i] = b;
+		}
+		if(same)
+			System.out.println("Yay 3");
+
+		long best = Long.MAX_VALUE;
+		long bestScan = Long.MAX_VALUE;
+		long sink = 0;
+		for(int round = 0; round < 200; round++)
+		{
+			long start = System.nanoTime();
+			for(Board b : boards)
+			{
+				sink += b.generate(list);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+			start = System.nanoTime();
+			for(Board b : boards)
+			{
+				sink += scan(b, list);
+			}
+			bestScan = Math.min(bestScan, System.nanoTime() - start);
+		}
+		System.out.format("generate: %.1f ns/position with tables, %.1f ns/position scanning cells (%d)%n",
+			(double) best / boards.length, (double) bestScan / boards.length, sink % 10);
+	}
+}
@@ -0,0 +1,516 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A PowerConnectFour shared between one thread applying moves and any number of
+ * reader threads (rendering, statistics, spectators). Moves take the write lock of a
+ * StampedLock. get, sizeRow, currentPlayer and hasFourConnected first read without
+ * locking and validate the stamp afterwards; only if a move ran meanwhile are they
+ * repeated under the read lock. Optimistic reads go through cell(), which checks
+ * bounds against the column it read; a grid swapped by expand()/shrink() halfway
+ * through a read costs a retry, and so does any exception thrown by a torn read.
+ * Usage: java ConcurrentPowerConnectFour [seconds] [readers] [writerPauseMicros]
+ */
+public class ConcurrentPowerConnectFour
+{
+	/**
+	 * The game, only touched under the lock or in validated optimistic reads.
+	 */
+	private final PowerConnectFour game;
+
+	/**
+	 * Guards the game.
+	 */
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Optimistic reads that had to be repeated under the read lock.
+	 */
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * Shared new game.
+	 */
+	public ConcurrentPowerConnectFour()
+	{
+		this(new PowerConnectFour());
+	}
+
+	/**
+	 * Share an existing game. It must not be used directly afterwards.
+	 * @param game the game
+	 */
+	public ConcurrentPowerConnectFour(PowerConnectFour game)
+	{
+		this.game = game;
+	}
+
+	/**
+	 * O(1).
+	 * @return number of columns
+	 */
+	public int sizeCol()
+	{
+		return game.sizeCol();
+	}
+
+	/**
+	 * Number of display rows, read optimistically. O(1)
+	 * @return number of rows of the grid
+	 */
+	public int sizeRow()
+	{
+		long stamp = lock.tryOptimisticRead();
+		try
+		{
+			int rows = game.sizeRow();
+			if(lock.validate(stamp))
+				return rows;
+		}
+		catch(RuntimeException e)
+		{
+			// column 0 not set yet by expand()/shrink(), retried below
+		}
+		retries.increment();
+		stamp = lock.readLock();
+		try
+		{
+			return game.sizeRow();
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Player to move, read optimistically. O(1)
+	 * @return the player that can make the next move
+	 */
+	public Token currentPlayer()
+	{
+		long stamp = lock.tryOptimisticRead();
+		Token player = game.currentPlayer();
+		if(lock.validate(stamp))
+			return player;
+		retries.increment();
+		stamp = lock.readLock();
+		try
+		{
+			return game.currentPlayer();
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Token in a cell, read optimistically. O(1)
+	 * Unlike PowerConnectFour.get(), a row above the grid reads as empty: a reader may
+	 * have read sizeRow() before a move shrank the grid. Out of range columns and
+	 * negative rows are handled by PowerConnectFour.get().
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return the token, null if the cell is empty or above the grid
+	 */
+	public Token get(int col, int row)
+	{
+		if(col >= 0 && col < game.sizeCol() && row >= 0)
+		{
+			long stamp = lock.tryOptimisticRead();
+			try
+			{
+				Token token = cell(col, row);
+				if(lock.validate(stamp))
+					return token;
+			}
+			catch(RuntimeException e)
+			{
+				// torn read of a column being built, retried below
+			}
+			retries.increment();
+		}
+		long stamp = lock.readLock();
+		try
+		{
+			return row >= 0 && row >= game.sizeRow() ? null : game.get(col, row);
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Four connected check, read optimistically. O(rows * cols)
+	 * @param player the token to be checked
+	 * @return whether the player has four tokens connected
+	 */
+	public boolean hasFourConnected(Token player)
+	{
+		long stamp = lock.tryOptimisticRead();
+		if(stamp != 0)
+		{
+			try
+			{
+				boolean four = fourConnected(player);
+				if(lock.validate(stamp))
+					return four;
+			}
+			catch(RuntimeException e)
+			{
+				// torn read of a grid being rebuilt, retried below
+			}
+			retries.increment();
+		}
+		stamp = lock.readLock();
+		try
+		{
+			return game.hasFourConnected(player);
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Drop under the write lock.
+	 * @param col take an integer as column index
+	 * @return true if the move was made
+	 */
+	public boolean drop(int col)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			return game.drop(col);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Pop under the write lock.
+	 * @param col take an integer as column index
+	 * @return true if the move was made
+	 */
+	public boolean pop(int col)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			return game.pop(col);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Power drop under the write lock.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return true if the move was made
+	 */
+	public boolean powerDrop(int col, int row)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			return game.powerDrop(col, row);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Power pop under the write lock.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return true if the move was made
+	 */
+	public boolean powerPop(int col, int row)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			return game.powerPop(col, row);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * O(1).
+	 * @return number of optimistic reads repeated under the read lock so far
+	 */
+	public long retries()
+	{
+		return retries.sum();
+	}
+
+	/**
+	 * Token in a cell without locking. Bounds are checked against the column object
+	 * read, whose storage only grows, and a column not yet set by expand()/shrink()
+	 * reads as empty, so a racing move gives a wrong answer (caught by validate) but
+	 * never an error message. A column whose storage is not visible yet may throw.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return the token, null if the cell is empty or outside the grid
+	 */
+	private Token cell(int col, int row)
+	{
+		if(col < 0 || col >= game.sizeCol() || row < 0)
+			return null;
+		Column<Token> column = game.getColumn(col);
+		if(column == null)
+			return null;
+		return row < column.capacity() ? column.get(row) : null;
+	}
+
+	/**
+	 * Four connected scan through cell(), safe without locking.
+	 * @param player the token to be checked
+	 * @return whether the player has four tokens connected, if no move ran meanwhile
+	 */
+	private boolean fourConnected(Token player)
+	{
+		int rows = game.sizeRow();
+		int cols = game.sizeCol();
+		for(int c = 0; c < cols; c++)
+		{
+			for(int r = 0; r < rows; r++)
+			{
+				if(cell(c, r) != player)
+					continue;
+				if(run(player, c, r, 1, 0) || run(player, c, r, 0, 1) || run(player, c, r, 1, 1) || run(player, c, r, 1, -1))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the three cells after a cell in one direction hold the player's tokens.
+	 * @param player the token to be checked
+	 * @param col take an integer as column index of the first cell
+	 * @param row take an integer as row index of the first cell
+	 * @param dc column step
+	 * @param dr row step
+	 * @return whether there are four in that direction
+	 */
+	private boolean run(Token player, int col, int row, int dc, int dr)
+	{
+		for(int k = 1; k < 4; k++)
+		{
+			if(cell(col + k * dc, row + k * dr) != player)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The simple alternative: every call synchronized on the wrapper, for the benchmark.
+	 */
+	static final class Synchronized extends ConcurrentPowerConnectFour
+	{
+		/**
+		 * O(1).
+		 * @return number of rows of the grid
+		 */
+		public synchronized int sizeRow()
+		{
+			return super.game.sizeRow();
+		}
+
+		/**
+		 * O(1).
+		 * @return the player that can make the next move
+		 */
+		public synchronized Token currentPlayer()
+		{
+			return super.game.currentPlayer();
+		}
+
+		/**
+		 * O(1).
+		 * @param col take an integer as column index
+		 * @param row take an integer as row index
+		 * @return the token, null if the cell is empty or above the grid
+		 */
+		public synchronized Token get(int col, int row)
+		{
+			return row >= 0 && row >= super.game.sizeRow() ? null : super.game.get(col, row);
+		}
+
+		/**
+		 * O(rows * cols).
+		 * @param player the token to be checked
+		 * @return whether the player has four tokens connected
+		 */
+		public synchronized boolean hasFourConnected(Token player)
+		{
+			return super.game.hasFourConnected(player);
+		}
+
+		/**
+		 * Drop while holding the monitor.
+		 * @param col take an integer as column index
+		 * @return true if the move was made
+		 */
+		public synchronized boolean drop(int col)
+		{
+			return super.game.drop(col);
+		}
+
+		/**
+		 * Pop while holding the monitor.
+		 * @param col take an integer as column index
+		 * @return true if the move was made
+		 */
+		public synchronized boolean pop(int col)
+		{
+			return super.game.pop(col);
+		}
+
+		/**
+		 * Power drop while holding the monitor.
+		 * @param col take an integer as column index
+		 * @param row take an integer as row index
+		 * @return true if the move was made
+		 */
+		public synchronized boolean powerDrop(int col, int row)
+		{
+			return super.game.powerDrop(col, row);
+		}
+
+		/**
+		 * Power pop while holding the monitor.
+		 * @param col take an integer as column index
+		 * @param row take an integer as row index
+		 * @return true if the move was made
+		 */
+		public synchronized boolean powerPop(int col, int row)
+		{
+			return super.game.powerPop(col, row);
+		}
+	}
+
+	/**
+	 * One run of the benchmark: a writer dropping and popping tokens so the grid grows
+	 * and shrinks, and readers rendering the whole grid and checking for a winner.
+	 * @param name label of the variant
+	 * @param game the shared game
+	 * @param readers number of reader threads
+	 * @param millis duration
+	 * @param pauseMicros pause of the writer between moves, 0 for none
+	 * @return reader frames per second
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static long bench(String name, ConcurrentPowerConnectFour game, int readers, long millis, long pauseMicros)
+		throws InterruptedException
+	{
+		LongAdder frames = new LongAdder();
+		LongAdder moves = new LongAdder();
+		LongAdder tokens = new LongAdder();
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		Thread writer = new Thread(() -> {
+			Random rand = new Random(310);
+			while(System.nanoTime() < end)
+			{
+				// mostly drops until the grid is 10 rows, then mostly pops
+				int col = rand.nextInt(7);
+				boolean grow = rand.nextInt(4) < (game.sizeRow() < 10 ? 3 : 1);
+				if(grow ? game.drop(col) : game.pop(col) || game.powerPop(col, rand.nextInt(game.sizeRow())))
+					moves.increment();
+				if(pauseMicros > 0)
+					LockSupport.parkNanos(pauseMicros * 1000);
+			}
+		});
+		Thread[] threads = new Thread[readers];
+		for(int t = 0; t < readers; t++)
+		{
+			threads[t] = new Thread(() -> {
+				long seen = 0;
+				while(System.nanoTime() < end)
+				{
+					int rows = game.sizeRow();
+					for(int r = rows - 1; r >= 0; r--)
+					{
+						for(int c = 0; c < 7; c++)
+						{
+							if(game.get(c, r) != null)
+								seen++;
+						}
+					}
+					if(game.hasFourConnected(game.currentPlayer()))
+						seen++;
+					frames.increment();
+				}
+				tokens.add(seen);
+			});
+		}
+		writer.start();
+		for(Thread t : threads)
+		{
+			t.start();
+		}
+		writer.join();
+		for(Thread t : threads)
+		{
+			t.join();
+		}
+		long perSecond = frames.sum() * 1000 / millis;
+		System.out.format("%-12s %d readers: %,10d frames/s  %,10d moves/s%n", name, readers, perSecond,
+			moves.sum() * 1000 / millis);
+		return perSecond;
+	}
+
+	/**
+	 * Checks, then the contention benchmark against the synchronized wrapper.
+	 * @param args seconds per run (default 2), most reader threads (default 4),
+	 * pause of the writer between moves in microseconds (default 50)
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		long millis = args.length > 0 ? Long.parseLong(args[0]) * 1000 : 2000;
+		int maxReaders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		long pause = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+		ConcurrentPowerConnectFour shared = new ConcurrentPowerConnectFour();
+		for(int c = 0; c < 4; c++)
+		{
+			shared.drop(c);
+			shared.drop(c);
+		}
+		if(shared.get(3, 0) == Token.RED && shared.get(3, 1) == Token.YELLOW && shared.get(3, 2) == null
+			&& shared.currentPlayer() == Token.RED && shared.sizeRow() == 6 && shared.hasFourConnected(Token.RED)
+			&& shared.hasFourConnected(Token.YELLOW) && shared.retries() == 0)
+			System.out.println("Yay 1");
+		if(shared.pop(0) && shared.get(0, 0) == Token.YELLOW && !shared.hasFourConnected(Token.RED)
+			&& shared.powerPop(0, 0) && shared.get(0, 0) == null && shared.powerDrop(0, 0) && shared.get(0, 0) == Token.RED)
+			System.out.println("Yay 2");
+
+		for(int readers = 1; readers <= maxReaders; readers *= 2)
+		{
+			ConcurrentPowerConnectFour stamped = new ConcurrentPowerConnectFour();
+			long a = bench("stamped", stamped, readers, millis, pause);
+			long b = bench("synchronized", new Synchronized(), readers, millis, pause);
+			System.out.format("%d readers: stamped/synchronized %.2fx, %,d optimistic reads retried%n", readers,
+				(double) a / Math.max(1, b), stamped.retries());
+		}
+	}
+}
@@ -0,0 +1,477 @@
+import java.util.Random;
+
+/**
+ * Static evaluation of a Power Connect Four position that is kept up to date incrementally.
+ * Every four-cell window (horizontal, vertical, major and minor diagonal) keeps a count of
+ * red and yellow tokens, so a move only touches the windows that contain the cells it changed.
+ * Players are given as ints: 0 for RED and 1 for YELLOW (Token.ordinal()).
+ * Rows are 0-based, so an "odd" threat (1st, 3rd, 5th row from the bottom) has an even row index.
+ */
+public class Evaluator
+{
+	/**
+	 * Score returned when one of the players already has four connected.
+	 */
+	public static final int WIN_SCORE = 1000000;
+
+	/**
+	 * Number of columns of the grid.
+	 */
+	private static final int NUM_COLS = 7;
+
+	/**
+	 * Number of cells in a window.
+	 */
+	private static final int WINDOW = 4;
+
+	/**
+	 * Number of window directions.
+	 */
+	private static final int DIRS = 4;
+
+	/**
+	 * Column step for each direction: row, column, major diagonal, minor diagonal.
+	 */
+	private static final int[] DC = {1, 0, 1, 1};
+
+	/**
+	 * Row step for each direction: row, column, major diagonal, minor diagonal.
+	 */
+	private static final int[] DR = {0, 1, -1, 1};
+
+	/**
+	 * Value of a window holding only one player's tokens, by number of tokens.
+	 */
+	private static final int[] WEIGHTS = {0, 1, 8, 64, 0};
+
+	/**
+	 * Bonus for each threat on the row parity that favors its owner.
+	 */
+	private static final int PARITY_BONUS = 32;
+
+	/**
+	 * Initial number of rows tracked.
+	 */
+	private static final int INITIAL_ROWS = 16;
+
+	/**
+	 * Cell contents by column and row: 0 empty, 1 red, 2 yellow.
+	 */
+	private byte[][] cells;
+
+	/**
+	 * Number of tokens in each column.
+	 */
+	private final int[] height = new int[NUM_COLS];
+
+	/**
+	 * Number of rows tracked; always at least WINDOW above the highest token.
+	 */
+	private int rows;
+
+	/**
+	 * Red and yellow token count of every window, two entries per window.
+	 */
+	private byte[] count;
+
+	/**
+	 * Sum of window weights for each player.
+	 */
+	private final int[] material = new int[2];
+
+	/**
+	 * Number of complete windows (four connected) for each player.
+	 */
+	private final int[] fours = new int[2];
+
+	/**
+	 * Number of threats whose empty cell is on an odd row (1-based), for each player.
+	 */
+	private final int[] oddThreats = new int[2];
+
+	/**
+	 * Number of threats whose empty cell is on an even row (1-based), for each player.
+	 */
+	private final int[] evenThreats = new int[2];
+
+	/**
+	 * Evaluator for an empty grid.
+	 */
+	public Evaluator()
+	{
+		rows = INITIAL_ROWS;
+		cells = new byte[NUM_COLS][rows];
+		rebuild();
+	}
+
+	/**
+	 * Evaluator for the current position of a game. O(rows * cols).
+	 * @param game the game to read the grid from
+	 */
+	public Evaluator(PowerConnectFour game)
+	{
+		int top = 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			height[c] = game.getColumn(c).size();
+			top = Math.max(top, height[c]);
+		}
+		rows = Math.max(INITIAL_ROWS, top + WINDOW);
+		cells = new byte[NUM_COLS][rows];
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			for(int r = 0; r < height[c]; r++)
+			{
+				cells[c][r] = (byte) (game.get(c, r).ordinal() + 1);
+			}
+		}
+		rebuild();
+	}
+
+	/**
+	 * O(1).
+	 * @param col take an integer as column index
+	 * @return number of tokens in the column
+	 */
+	public int height(int col)
+	{
+		return height[col];
+	}
+
+	/**
+	 * O(1).
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return 0 for RED, 1 for YELLOW, -1 if the cell is empty
+	 */
+	public int get(int col, int row)
+	{
+		if(row >= height[col])
+			return -1;
+		return cells[col][row] - 1;
+	}
+
+	/**
+	 * Insert a token at the given column and row, shifting the tokens above it up.
+	 * Covers drop (row == height) and powerDrop.
+	 * O(affected windows)
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index, 0 to height(col)
+	 * @param player 0 for RED, 1 for YELLOW
+	 */
+	public void insert(int col, int row, int player)
+	{
+		int h = height[col];
+		if(row < 0 || row > h)
+			throw new IndexOutOfBoundsException("Col " + col + ", Row " + row + " out of bounds!");
+		ensureRows(h + 1 + WINDOW);
+		for(int k = h; k > row; k--)
+		{
+			set(col, k, cells[col][k - 1]);
+		}
+		set(col, row, (byte) (player + 1));
+		height[col] = h + 1;
+	}
+
+	/**
+	 * Remove the token at the given column and row, shifting the tokens above it down.
+	 * Covers pop (row == 0), powerPop and undoing a drop.
+	 * O(affected windows)
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index, 0 to height(col) - 1
+	 * @return the player whose token was removed
+	 */
+	public int remove(int col, int row)
+	{
+		int h = height[col];
+		if(row < 0 || row >= h)
+			throw new IndexOutOfBoundsException("Col " + col + ", Row " + row + " out of bounds!");
+		int removed = cells[col][row] - 1;
+		for(int k = row; k < h - 1; k++)
+		{
+			set(col, k, cells[col][k + 1]);
+		}
+		set(col, h - 1, (byte) 0);
+		height[col] = h - 1;
+		return removed;
+	}
+
+	/**
+	 * Drop a token of the given player on top of a column.
+	 * @param col take an integer as column index
+	 * @param player 0 for RED, 1 for YELLOW
+	 */
+	public void drop(int col, int player)
+	{
+		insert(col, height[col], player);
+	}
+
+	/**
+	 * Pop the bottom token of a column.
+	 * @param col take an integer as column index
+	 * @return the player whose token was removed
+	 */
+	public int pop(int col)
+	{
+		return remove(col, 0);
+	}
+
+	/**
+	 * Power drop a token of the given player at the given column and row.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @param player 0 for RED, 1 for YELLOW
+	 */
+	public void powerDrop(int col, int row, int player)
+	{
+		insert(col, row, player);
+	}
+
+	/**
+	 * Power pop the token at the given column and row.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @return the player whose token was removed
+	 */
+	public int powerPop(int col, int row)
+	{
+		return remove(col, row);
+	}
+
+	/**
+	 * Score of the position from the point of view of the given player.
+	 * O(1)
+	 * @param player 0 for RED, 1 for YELLOW
+	 * @return WIN_SCORE / -WIN_SCORE if a player has four connected, otherwise a heuristic score
+	 */
+	public int score(int player)
+	{
+		int other = 1 - player;
+		if(fours[player] > 0)
+			return WIN_SCORE;
+		if(fours[other] > 0)
+			return -WIN_SCORE;
+		// red (first player) profits from odd threats, yellow from even threats
+		int red = material[0] + PARITY_BONUS * oddThreats[0];
+		int yellow = material[1] + PARITY_BONUS * evenThreats[1];
+		return player == 0 ? red - yellow : yellow - red;
+	}
+
+	/**
+	 * O(1).
+	 * @param player 0 for RED, 1 for YELLOW
+	 * @return whether the player has four tokens connected
+	 */
+	public boolean hasFourConnected(int player)
+	{
+		return fours[player] > 0;
+	}
+
+	/**
+	 * O(1).
+	 * @param player 0 for RED, 1 for YELLOW
+	 * @return number of three-token windows of the player whose empty cell is on an odd row
+	 */
+	public int oddThreats(int player)
+	{
+		return oddThreats[player];
+	}
+
+	/**
+	 * O(1).
+	 * @param player 0 for RED, 1 for YELLOW
+	 * @return number of three-token windows of the player whose empty cell is on an even row
+	 */
+	public int evenThreats(int player)
+	{
+		return evenThreats[player];
+	}
+
+	/**
+	 * Change one cell and update every window that contains it.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @param value new cell value: 0 empty, 1 red, 2 yellow
+	 */
+	private void set(int col, int row, byte value)
+	{
+		int old = cells[col][row];
+		if(old == value)
+			return;
+		forWindows(col, row, -1, 0);
+		if(old != 0)
+			forWindows(col, row, 0, -old);
+		if(value != 0)
+			forWindows(col, row, 0, value);
+		cells[col][row] = value;
+		forWindows(col, row, 1, 0);
+	}
+
+	/**
+	 * Visit every window containing a cell. A positive/negative sign adds/removes
+	 * the window's contribution, a non-zero change adds (value) or removes (-value)
+	 * a token from the window's counts before the contribution is added back.
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index
+	 * @param sign 1 to add contributions, -1 to remove them, 0 to only update counts
+	 * @param change cell value to count (positive) or uncount (negative), 0 for none
+	 */
+	private void forWindows(int col, int row, int sign, int change)
+	{
+		for(int d = 0; d < DIRS; d++)
+		{
+			for(int k = 0; k < WINDOW; k++)
+			{
+				int ac = col - k * DC[d];
+				int ar = row - k * DR[d];
+				int ec = ac + (WINDOW - 1) * DC[d];
+				int er = ar + (WINDOW - 1) * DR[d];
+				if(ac < 0 || ec >= NUM_COLS || ar < 0 || ar >= rows || er < 0 || er >= rows)
+					continue;
+				int w = 2 * ((d * rows + ar) * NUM_COLS + ac);
+				if(change > 0)
+					count[w + change - 1]++;
+				else if(change < 0)
+					count[w - change - 1]--;
+				if(sign != 0)
+					contribute(d, ac, ar, sign);
+			}
+		}
+	}
+
+	/**
+	 * Add or remove the contribution of one window to the totals.
+	 * @param d direction of the window
+	 * @param ac column of the first cell
+	 * @param ar row of the first cell
+	 * @param sign 1 to add, -1 to remove
+	 */
+	private void contribute(int d, int ac, int ar, int sign)
+	{
+		int w = 2 * ((d * rows + ar) * NUM_COLS + ac);
+		int red = count[w];
+		int yellow = count[w + 1];
+		if((red > 0) == (yellow > 0))
+			return; // empty or shared by both players
+		int player = red > 0 ? 0 : 1;
+		int n = red + yellow;
+		if(n == WINDOW)
+		{
+			fours[player] += sign;
+			return;
+		}
+		material[player] += sign * WEIGHTS[n];
+		if(n == WINDOW - 1)
+		{
+			for(int k = 0; k < WINDOW; k++)
+			{
+				int r = ar + k * DR[d];
+				if(cells[ac + k * DC[d]][r] == 0)
+				{
+					if(r % 2 == 0)
+						oddThreats[player] += sign;
+					else
+						evenThreats[player] += sign;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure at least the given number of rows is tracked, doubling if needed.
+	 * @param needed number of rows needed
+	 */
+	private void ensureRows(int needed)
+	{
+		if(needed <= rows)
+			return;
+		int newRows = Math.max(rows * 2, needed);
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			byte[] grown = new byte[newRows];
+			System.arraycopy(cells[c], 0, grown, 0, rows);
+			cells[c] = grown;
+		}
+		rows = newRows;
+		rebuild();
+	}
+
+	/**
+	 * Recount every window from scratch. O(rows * cols).
+	 */
+	private void rebuild()
+	{
+		count = new byte[2 * DIRS * rows * NUM_COLS];
+		material[0] = material[1] = 0;
+		fours[0] = fours[1] = 0;
+		oddThreats[0] = oddThreats[1] = 0;
+		evenThreats[0] = evenThreats[1] = 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			for(int r = 0; r < height[c]; r++)
+			{
+				forWindows(c, r, 0, cells[c][r]);
+			}
+		}
+		for(int d = 0; d < DIRS; d++)
+		{
+			for(int ar = 0; ar < rows; ar++)
+			{
+				for(int ac = 0; ac < NUM_COLS; ac++)
+				{
+					int ec = ac + (WINDOW - 1) * DC[d];
+					int er = ar + (WINDOW - 1) * DR[d];
+					if(ec < NUM_COLS && er >= 0 && er < rows)
+						contribute(d, ac, ar, 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Main method with sample checks of the incremental updates against a full rebuild.
+	 * @param args does not accept arguments.
+	 */
+	public static void main(String[] args)
+	{
+		Evaluator eval = new Evaluator();
+		eval.drop(3, 0);
+		eval.drop(3, 0);
+		eval.drop(3, 0);
+		if(eval.oddThreats(0) == 0 && eval.evenThreats(0) == 1 && !eval.hasFourConnected(0))
+			System.out.println("Yay 1");
+
+		eval.powerDrop(3, 0, 0);
+		eval.drop(4, 1);
+		if(eval.hasFourConnected(0) && eval.score(0) == WIN_SCORE && eval.score(1) == -WIN_SCORE)
+			System.out.println("Yay 2");
+
+		eval.pop(3);
+		eval.powerPop(3, 1);
+		if(!eval.hasFourConnected(0) && eval.height(3) == 2 && eval.get(4, 0) == 1)
+			System.out.println("Yay 3");
+
+		// random moves (including shifts and board growth) against a full rebuild
+		Random rand = new Random(310);
+		boolean ok = true;
+		for(int step = 0; step < 5000 && ok; step++)
+		{
+			int col = rand.nextInt(NUM_COLS);
+			int h = eval.height(col);
+			if(h > 0 && rand.nextInt(3) == 0)
+				eval.remove(col, rand.nextInt(h));
+			else
+				eval.insert(col, rand.nextInt(h + 1), rand.nextInt(2));
+			if(step % 50 == 0)
+			{
+				int[] score = {eval.score(0), eval.oddThreats(0), eval.evenThreats(1)};
+				eval.rebuild();
+				ok = score[0] == eval.score(0) && score[1] == eval.oddThreats(0)
+					&& score[2] == eval.evenThreats(1);
+			}
+		}
+		if(ok)
+			System.out.println("Yay 4");
+	}
+}
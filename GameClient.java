@@ -0,0 +1,194 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Thin client of GameDaemon: sends a script path or inline moves over the daemon's
+ * Unix domain socket and prints the reply, which is the output of the GUI file mode.
+ * If no daemon is listening the script is replayed in this JVM instead, with the same
+ * output. The socket is $TMPDIR/powerconnectfour-$USER.sock unless -Dpcf.socket=... is set.
+ * This client still pays for a JVM start; gameclient.sh talks to the daemon without one.
+ * Usage: java GameClient Input_File_Name
+ * 		java GameClient --moves "D 3;D 4;PP 3 0"
+ * 		java GameClient --stop
+ * 		java GameClient --check Input_File_Name
+ */
+public final class GameClient
+{
+	/**
+	 * No instances, only static helpers.
+	 */
+	private GameClient()
+	{
+	}
+
+	/**
+	 * O(1).
+	 * @return path of the daemon socket
+	 */
+	static Path socketPath()
+	{
+		String path = System.getProperty("pcf.socket");
+		if(path != null)
+			return Path.of(path);
+		return Path.of(System.getProperty("java.io.tmpdir"), "powerconnectfour-" + System.getProperty("user.name") + ".sock");
+	}
+
+	/**
+	 * Connect to the daemon.
+	 * @param path path of the socket file
+	 * @return the channel, or null if no daemon is listening
+	 */
+	static SocketChannel connect(Path path)
+	{
+		if(!Files.exists(path))
+			return null;
+		try
+		{
+			SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+			try
+			{
+				ch.connect(UnixDomainSocketAddress.of(path));
+				return ch;
+			}
+			catch(IOException e)
+			{
+				ch.close();
+				return null;
+			}
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Send a request and copy the reply to an output stream.
+	 * @param ch connected channel, closed at the end
+	 * @param header the request line
+	 * @param body text sent after the header, may be null
+	 * @param out where to copy the output
+	 * @return null on success, otherwise the error from the daemon
+	 * @throws IOException if the connection fails
+	 */
+	static String request(SocketChannel ch, String header, String body, OutputStream out) throws IOException
+	{
+		try(SocketChannel channel = ch)
+		{
+			OutputStream request = Channels.newOutputStream(channel);
+			request.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+			if(body != null)
+				request.write(body.getBytes(StandardCharsets.UTF_8));
+			request.flush();
+			channel.shutdownOutput();
+
+			InputStream reply = Channels.newInputStream(channel);
+			StringBuilder status = new StringBuilder();
+			int b;
+			while((b = reply.read()) >= 0 && b != '\n')
+			{
+				status.append((char) b);
+			}
+			if(!status.toString().equals("OK"))
+				return status.length() == 0 ? "no reply" : status.toString();
+			reply.transferTo(out);
+			out.flush();
+			return null;
+		}
+	}
+
+	/**
+	 * Send a script to the daemon both as a FILE and as a MOVES request and compare each
+	 * reply with the output of replaying it in this JVM.
+	 * @param file the script file
+	 * @return null if both replies are identical, otherwise what differs
+	 * @throws IOException if the script cannot be read or the connection fails
+	 */
+	static String check(Path file) throws IOException
+	{
+		String text = Files.readString(file);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new PipelinedReplay(true, true).replay(new BufferedReader(new StringReader(text)), expected);
+		String[] headers = {"FILE " + file.toAbsolutePath(), "MOVES"};
+		String[] bodies = {null, text};
+		for(int i = 0; i < headers.length; i++)
+		{
+			SocketChannel ch = connect(socketPath());
+			if(ch == null)
+				return "no daemon is listening on " + socketPath();
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			String error = request(ch, headers[i], bodies[i], actual);
+			String request = headers[i].split(" ")[0];
+			if(error != null)
+				return request + ": " + error;
+			byte[] a = actual.toByteArray();
+			byte[] e = expected.toByteArray();
+			int at = Arrays.mismatch(a, e);
+			if(at >= 0)
+				return request + ": reply differs at byte " + at + " (" + a.length + " bytes, expected " + e.length + ")";
+		}
+		return null;
+	}
+
+	/**
+	 * Run a request through the daemon, or in this JVM if there is none.
+	 * @param args script file, --moves and the moves, --stop, or --check and a script file
+	 * @throws IOException if the script cannot be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		String header;
+		String body = null;
+		if(args.length == 1 && args[0].equals("--stop"))
+			header = "STOP";
+		else if(args.length == 2 && args[0].equals("--check"))
+		{
+			String error = check(Path.of(args[1]));
+			System.out.println(error == null ? "FILE and MOVES replies match the local replay" : error);
+			if(error != null)
+				System.exit(1);
+			return;
+		}
+		else if(args.length == 2 && args[0].equals("--moves"))
+		{
+			header = "MOVES";
+			body = args[1].replace(';', '\n') + "\n";
+		}
+		else if(args.length == 1)
+			header = "FILE " + Path.of(args[0]).toAbsolutePath();
+		else
+		{
+			System.out.println("Usage: java GameClient Input_File_Name | --moves \"D 3;D 4\" | --stop | --check Input_File_Name");
+			return;
+		}
+
+		SocketChannel ch = connect(socketPath());
+		if(ch != null)
+		{
+			String error = request(ch, header, body, System.out);
+			if(error != null)
+			{
+				System.err.println(error);
+				System.exit(1);
+			}
+			return;
+		}
+		if(header.equals("STOP"))
+			return;
+		BufferedReader script = body != null ? new BufferedReader(new StringReader(body))
+			: Files.newBufferedReader(Path.of(args[0]));
+		new PipelinedReplay(true, true).replay(script, System.out);
+	}
+}
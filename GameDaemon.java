@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident server that replays scripts in a warmed-up JVM, so a script costs a socket
+ * round trip instead of a JVM start. It listens on a Unix domain socket (see
+ * GameClient.socketPath()) and answers each connection with the output the GUI file
+ * mode would print, enter prompts included.
+ * Request: one header line, "FILE absolute_path", "MOVES" followed by the script text
+ * up to the end of the client's output, or "STOP". Reply: "OK" and the output, or
+ * "ERR message", on the first line. ERR is sent if the script cannot be opened.
+ * For a client without a JVM, see gameclient.sh.
+ * Without a Java client: printf 'FILE %s\n' "$PWD/in1.txt" | socat - UNIX-CONNECT:$sock
+ * Usage: java GameDaemon [Socket_Path]
+ */
+public final class GameDaemon
+{
+	/**
+	 * Plies of the script replayed at start to warm up the JIT.
+	 */
+	private static final int WARMUP_PLIES = 20000;
+
+	/**
+	 * The listening socket.
+	 */
+	private final ServerSocketChannel server;
+
+	/**
+	 * Path of the socket file.
+	 */
+	private final Path path;
+
+	/**
+	 * Threads serving connections, one per open connection so a long script does not
+	 * hold up the others.
+	 */
+	private final ExecutorService workers = Executors.newCachedThreadPool();
+
+	/**
+	 * Set by a STOP request.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Bind the socket, replacing a stale socket file.
+	 * @param path path of the socket file
+	 * @throws IOException if the socket cannot be bound or another daemon is listening
+	 */
+	public GameDaemon(Path path) throws IOException
+	{
+		this.path = path;
+		SocketChannel running = GameClient.connect(path);
+		if(running != null)
+		{
+			running.close();
+			throw new IOException("A daemon is already listening on " + path);
+		}
+		Files.deleteIfExists(path);
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+	}
+
+	/**
+	 * Accept and serve connections until a STOP request.
+	 * @throws IOException if accepting fails
+	 */
+	public void serve() throws IOException
+	{
+		try
+		{
+			while(!stopped)
+			{
+				SocketChannel ch = server.accept();
+				workers.execute(() -> handle(ch));
+			}
+		}
+		catch(IOException e)
+		{
+			if(!stopped)
+				throw e;
+		}
+		finally
+		{
+			workers.shutdown();
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Serve one connection.
+	 * @param ch the connection, closed at the end
+	 */
+	private void handle(SocketChannel ch)
+	{
+		try(SocketChannel channel = ch)
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			OutputStream out = Channels.newOutputStream(channel);
+			String header = in.readLine();
+			if(header == null)
+				return;
+			if(header.equals("STOP"))
+			{
+				out.write("OK\n".getBytes(StandardCharsets.UTF_8));
+				stopped = true;
+				server.close();
+				return;
+			}
+			BufferedReader script;
+			try
+			{
+				script = open(header, in);
+			}
+			catch(IOException | InvalidPathException e)
+			{
+				out.write(("ERR " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			out.write("OK\n".getBytes(StandardCharsets.UTF_8));
+			new PipelinedReplay(true, true).replay(script, out);
+		}
+		catch(IOException e)
+		{
+			System.err.println("Request failed: " + e);
+		}
+	}
+
+	/**
+	 * Open the script of a FILE or MOVES request, before anything is sent back.
+	 * @param header the request line
+	 * @param in the rest of the request
+	 * @return the script
+	 * @throws IOException if the request is unknown or its script cannot be read
+	 */
+	private static BufferedReader open(String header, BufferedReader in) throws IOException
+	{
+		if(header.equals("MOVES"))
+		{
+			//the replay closes its script, which must not close the channel
+			StringWriter body = new StringWriter();
+			in.transferTo(body);
+			return new BufferedReader(new StringReader(body.toString()));
+		}
+		if(!header.startsWith("FILE "))
+			throw new IOException("Unknown request: " + header);
+		Path file = Path.of(header.substring(5));
+		if(!Files.isRegularFile(file))
+			throw new IOException((Files.exists(file) ? "Not a file: " : "No such file: ") + file);
+		return Files.newBufferedReader(file);
+	}
+
+	/**
+	 * Replay a long random script to get the replay path compiled before the first request.
+	 * @throws IOException never for the in-memory script
+	 */
+	static void warmUp() throws IOException
+	{
+		Random rand = new Random(310);
+		Board board = new Board();
+		int[] list = new int[Board.MAX_MOVES];
+		StringBuilder script = new StringBuilder();
+		for(int ply = 0; ply < WARMUP_PLIES; ply++)
+		{
+			int move = list[rand.nextInt(board.generate(list))];
+			board.make(move);
+			if(board.winner() >= 0 || board.height(Moves.col(move)) > 20)
+			{
+				board.unmake(move);
+				move = Moves.encode(Moves.POWER_POP, 7, 0); //an invalid move keeps the game going
+			}
+			script.append(Moves.toString(move)).append('\n');
+		}
+		new PipelinedReplay(true, true).replay(new BufferedReader(new StringReader(script.toString())),
+			OutputStream.nullOutputStream());
+	}
+
+	/**
+	 * Start the daemon.
+	 * @param args optional socket path
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Path path = args.length > 0 ? Path.of(args[0]) : GameClient.socketPath();
+		GameDaemon daemon = new GameDaemon(path);
+		long start = System.nanoTime();
+		warmUp();
+		System.out.format("Listening on %s (warmed up in %d ms)%n", path, (System.nanoTime() - start) / 1000000);
+		daemon.serve();
+	}
+}
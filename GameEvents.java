@@ -0,0 +1,269 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Custom Java Flight Recorder events for the Power Connect Four game.
+ * GameStart, GameEnd and SlowWinCheck are recorded by any recording. The frequent
+ * GridResize and ColumnResize events are disabled unless a recording is started with
+ * the powerconnectfour.jfc settings profile, for example:
+ *      java -XX:StartFlightRecording:settings=powerconnectfour.jfc PowerConnectFourGUI in1.txt
+ */
+final class GameEvents
+{
+	/**
+	 * Category shown in JDK Mission Control for every event below.
+	 */
+	private static final String CATEGORY = "Power Connect Four";
+
+	/**
+	 * No instances, only static helpers.
+	 */
+	private GameEvents()
+	{
+	}
+
+	/**
+	 * A new game has been created.
+	 */
+	@Name("powerconnectfour.GameStart")
+	@Label("Game Start")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class GameStart extends Event
+	{
+		/**
+		 * Id of the game.
+		 */
+		@Label("Game Id")
+		long gameId;
+	}
+
+	/**
+	 * A game has ended, either with a winner or because input ran out / player quit.
+	 */
+	@Name("powerconnectfour.GameEnd")
+	@Label("Game End")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class GameEnd extends Event
+	{
+		/**
+		 * Id of the game.
+		 */
+		@Label("Game Id")
+		long gameId;
+		/**
+		 * Symbol of the winner, empty if there is none.
+		 */
+		@Label("Winner")
+		String winner;
+		/**
+		 * Number of moves made in the game.
+		 */
+		@Label("Moves")
+		int moves;
+		/**
+		 * Display rows of the grid when the game ended.
+		 */
+		@Label("Rows")
+		int sizeRow;
+	}
+
+	/**
+	 * The whole grid was rebuilt by expand() or shrink().
+	 */
+	@Name("powerconnectfour.GridResize")
+	@Label("Grid Resize")
+	@Category(CATEGORY)
+	@Description("PowerConnectFour grid rebuilt with a new number of display rows")
+	@Enabled(false)
+	static final class GridResize extends Event
+	{
+		/**
+		 * Id of the game.
+		 */
+		@Label("Game Id")
+		long gameId;
+		/**
+		 * Display rows before the resize.
+		 */
+		@Label("Old Rows")
+		int oldSizeRow;
+		/**
+		 * Display rows after the resize.
+		 */
+		@Label("New Rows")
+		int newSizeRow;
+		/**
+		 * Number of tokens copied into the new grid.
+		 */
+		@Label("Tokens Copied")
+		int tokensCopied;
+	}
+
+	/**
+	 * The backing array of a Column was reallocated.
+	 */
+	@Name("powerconnectfour.ColumnResize")
+	@Label("Column Resize")
+	@Category(CATEGORY)
+	@Description("Column backing array reallocated")
+	@Enabled(false)
+	static final class ColumnResize extends Event
+	{
+		/**
+		 * Capacity before the resize.
+		 */
+		@Label("Old Capacity")
+		int oldCapacity;
+		/**
+		 * Capacity after the resize.
+		 */
+		@Label("New Capacity")
+		int newCapacity;
+		/**
+		 * Number of elements copied into the new array.
+		 */
+		@Label("Elements Copied")
+		int elementsCopied;
+		/**
+		 * Approximate bytes of the new backing array.
+		 */
+		@Label("Array Size")
+		@DataAmount
+		long arrayBytes;
+	}
+
+	/**
+	 * A win check (hasFourConnected) that took longer than the threshold.
+	 */
+	@Name("powerconnectfour.SlowWinCheck")
+	@Label("Slow Win Check")
+	@Category(CATEGORY)
+	@Threshold("1 ms")
+	static final class SlowWinCheck extends Event
+	{
+		/**
+		 * Id of the game.
+		 */
+		@Label("Game Id")
+		long gameId;
+		/**
+		 * Symbol of the player that was checked.
+		 */
+		@Label("Player")
+		String player;
+		/**
+		 * Display rows scanned.
+		 */
+		@Label("Rows")
+		int sizeRow;
+		/**
+		 * Result of the check.
+		 */
+		@Label("Connected")
+		boolean connected;
+	}
+
+	/**
+	 * Record the start of a game.
+	 * @param gameId id of the game
+	 */
+	static void gameStarted(long gameId)
+	{
+		GameStart e = new GameStart();
+		if(e.isEnabled())
+		{
+			e.gameId = gameId;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Record the end of a game.
+	 * @param game the game that ended
+	 * @param winner the winner, or null if there is none
+	 * @param moves number of moves made
+	 */
+	static void gameEnded(PowerConnectFour game, Token winner, int moves)
+	{
+		GameEnd e = new GameEnd();
+		if(e.isEnabled())
+		{
+			e.gameId = game.gameId();
+			e.winner = winner == null ? "" : String.valueOf(winner.getSymbol());
+			e.moves = moves;
+			e.sizeRow = game.sizeRow();
+			e.commit();
+		}
+	}
+
+	/**
+	 * Record a rebuild of the game grid.
+	 * @param gameId id of the game
+	 * @param oldSizeRow display rows before
+	 * @param newSizeRow display rows after
+	 * @param tokensCopied number of tokens copied
+	 */
+	static void gridResized(long gameId, int oldSizeRow, int newSizeRow, int tokensCopied)
+	{
+		GridResize e = new GridResize();
+		if(e.isEnabled())
+		{
+			e.gameId = gameId;
+			e.oldSizeRow = oldSizeRow;
+			e.newSizeRow = newSizeRow;
+			e.tokensCopied = tokensCopied;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Record a reallocation of a column backing array.
+	 * @param oldCapacity capacity before
+	 * @param newCapacity capacity after
+	 * @param elementsCopied number of elements copied
+	 */
+	static void columnResized(int oldCapacity, int newCapacity, int elementsCopied)
+	{
+		ColumnResize e = new ColumnResize();
+		if(e.isEnabled())
+		{
+			e.oldCapacity = oldCapacity;
+			e.newCapacity = newCapacity;
+			e.elementsCopied = elementsCopied;
+			e.arrayBytes = 16L + 4L * newCapacity;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Run hasFourConnected for the given player and record it if it was slow.
+	 * @param game the game to check
+	 * @param player the token to be checked
+	 * @return whether the given player has four tokens connected
+	 */
+	static boolean timedWinCheck(PowerConnectFour game, Token player)
+	{
+		SlowWinCheck e = new SlowWinCheck();
+		e.begin();
+		boolean connected = game.hasFourConnected(player);
+		e.end();
+		if(e.shouldCommit())
+		{
+			e.gameId = game.gameId();
+			e.player = String.valueOf(player.getSymbol());
+			e.sizeRow = game.sizeRow();
+			e.connected = connected;
+			e.commit();
+		}
+		return connected;
+	}
+}
@@ -0,0 +1,585 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crash-safe persistence for live games: an append-only journal of moves in memory-mapped
+ * segment files, plus compact snapshots (column codes and turn) written into the journal
+ * every SNAPSHOT_INTERVAL moves of a game and for all live games when a new segment starts.
+ * Appending is a copy into the mapped buffer; a background thread forces the buffer to disk
+ * every fsyncMillis, so all appends since the last sync are committed as one batch.
+ * Recovery reads the segments in order and keeps, for each game, only its last snapshot
+ * and the moves journaled after it; those few moves are replayed on a Board at the end.
+ *
+ * Record layout (16 bytes, snapshots add 64): game id (long), move or record type (int),
+ * check value (int, never 0). A zero or wrong check value marks the end of the log.
+ */
+public class GameJournal implements Closeable
+{
+	/**
+	 * Record type: a new game with an empty grid.
+	 */
+	private static final int NEW_GAME = -2;
+	/**
+	 * Record type: the game ended and can be forgotten.
+	 */
+	private static final int END_GAME = -3;
+	/**
+	 * Record type: snapshot of a game, followed by the snapshot body.
+	 */
+	private static final int SNAPSHOT = -4;
+
+	/**
+	 * Bytes of a record header.
+	 */
+	private static final int HEADER_BYTES = 16;
+	/**
+	 * Bytes of a snapshot body: seven column codes, player to move and ply.
+	 */
+	private static final int SNAPSHOT_BYTES = Board.NUM_COLS * 8 + 8;
+
+	/**
+	 * A game gets a new snapshot after this many journaled moves.
+	 */
+	public static final int SNAPSHOT_INTERVAL = 64;
+
+	/**
+	 * Journal segment file name prefix.
+	 */
+	private static final String PREFIX = "journal-";
+	/**
+	 * Journal segment file name suffix.
+	 */
+	private static final String SUFFIX = ".log";
+
+	/**
+	 * State of a live game kept by the journal.
+	 */
+	private static final class Live
+	{
+		/**
+		 * Current position.
+		 */
+		final Board board = new Board();
+		/**
+		 * Moves journaled since the last snapshot.
+		 */
+		int sinceSnapshot;
+	}
+
+	/**
+	 * State of a game being recovered: its last snapshot and the moves journaled after it.
+	 */
+	private static final class Tail
+	{
+		/**
+		 * Column codes of the last snapshot, null for an empty grid.
+		 */
+		long[] codes;
+		/**
+		 * Player to move at the last snapshot.
+		 */
+		int player;
+		/**
+		 * Ply of the last snapshot.
+		 */
+		int ply;
+		/**
+		 * Moves journaled after the last snapshot.
+		 */
+		int[] moves = new int[SNAPSHOT_INTERVAL];
+		/**
+		 * Number of those moves.
+		 */
+		int count;
+
+		/**
+		 * Start over from a snapshot.
+		 * @param body column codes, copied
+		 * @param player player to move
+		 * @param ply ply
+		 */
+		void snapshot(long[] body, int player, int ply)
+		{
+			codes = body.clone();
+			this.player = player;
+			this.ply = ply;
+			count = 0;
+		}
+
+		/**
+		 * Add a move after the snapshot.
+		 * @param move encoded move
+		 */
+		void add(int move)
+		{
+			if(count == moves.length)
+				moves = Arrays.copyOf(moves, 2 * count);
+			moves[count++] = move;
+		}
+	}
+
+	/**
+	 * Directory holding the segments.
+	 */
+	private final Path dir;
+	/**
+	 * Minimum size of a segment in bytes.
+	 */
+	private final int segmentBytes;
+	/**
+	 * Live games by id.
+	 */
+	private final Map<Long, Live> games = new HashMap<>();
+	/**
+	 * Column codes buffer for snapshots.
+	 */
+	private final long[] codes = new long[Board.NUM_COLS];
+	/**
+	 * Syncs the mapped segment to disk.
+	 */
+	private final ScheduledExecutorService syncer;
+	/**
+	 * Number of the current segment.
+	 */
+	private long segment;
+	/**
+	 * Open channel of the current segment.
+	 */
+	private FileChannel channel;
+	/**
+	 * Mapped current segment.
+	 */
+	private MappedByteBuffer buffer;
+	/**
+	 * Whether the buffer has appends that were not synced yet.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Open a journal in a directory. Existing segments are recovered first so that
+	 * journaling can continue where it stopped; recovered games are live again.
+	 * @param dir directory for the segment files, created if missing
+	 * @param segmentBytes size of a segment file
+	 * @param fsyncMillis interval between syncs to disk
+	 * @throws IOException if the directory or a segment cannot be used
+	 */
+	public GameJournal(Path dir, int segmentBytes, long fsyncMillis) throws IOException
+	{
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(dir);
+		List<Path> old = segments(dir);
+		for(Map.Entry<Long, Board> e : recover(dir).entrySet())
+		{
+			Live live = new Live();
+			live.board.copyFrom(e.getValue());
+			games.put(e.getKey(), live);
+		}
+		segment = old.isEmpty() ? 0 : number(old.get(old.size() - 1)) + 1;
+		roll(old);
+		syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "journal-sync");
+			t.setDaemon(true);
+			return t;
+		});
+		syncer.scheduleWithFixedDelay(this::sync, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Journal a new game with an empty grid.
+	 * @param gameId id of the game
+	 */
+	public synchronized void newGame(long gameId)
+	{
+		games.put(gameId, new Live());
+		append(gameId, NEW_GAME);
+	}
+
+	/**
+	 * Journal a move that was made in a game.
+	 * @param gameId id of the game
+	 * @param move encoded move (see Moves)
+	 * @throws IllegalArgumentException if the game is unknown or the move is not legal in it
+	 */
+	public synchronized void move(long gameId, int move)
+	{
+		Live live = games.get(gameId);
+		if(live == null || !live.board.tryMake(move))
+			throw new IllegalArgumentException("Cannot journal " + Moves.toString(move) + " for game " + gameId);
+		append(gameId, move);
+		if(++live.sinceSnapshot >= SNAPSHOT_INTERVAL)
+			snapshot(gameId, live);
+	}
+
+	/**
+	 * Journal the end of a game; it will not be recovered.
+	 * @param gameId id of the game
+	 */
+	public synchronized void endGame(long gameId)
+	{
+		if(games.remove(gameId) != null)
+			append(gameId, END_GAME);
+	}
+
+	/**
+	 * O(1).
+	 * @return number of live games
+	 */
+	public synchronized int liveGames()
+	{
+		return games.size();
+	}
+
+	/**
+	 * Force all appends so far to disk.
+	 */
+	public void sync()
+	{
+		MappedByteBuffer b;
+		synchronized(this)
+		{
+			if(!dirty || buffer == null)
+				return;
+			dirty = false;
+			b = buffer;
+		}
+		b.force();
+	}
+
+	/**
+	 * Sync and close the journal.
+	 * @throws IOException if the segment cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		syncer.shutdownNow();
+		sync();
+		synchronized(this)
+		{
+			channel.close();
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Rebuild the last state of every game that was not ended from the segments in a directory.
+	 * @param dir directory holding the segment files
+	 * @return current position of every live game by id
+	 * @throws IOException if a segment cannot be read
+	 */
+	public static Map<Long, Board> recover(Path dir) throws IOException
+	{
+		Map<Long, Tail> tails = new HashMap<>();
+		long[] body = new long[Board.NUM_COLS];
+		for(Path p : segments(dir))
+		{
+			try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ))
+			{
+				MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				while(b.remaining() >= HEADER_BYTES)
+				{
+					int start = b.position();
+					long gameId = b.getLong();
+					int type = b.getInt();
+					int check = b.getInt();
+					if(type == SNAPSHOT)
+					{
+						if(b.remaining() < SNAPSHOT_BYTES)
+							break;
+						for(int c = 0; c < Board.NUM_COLS; c++)
+						{
+							body[c] = b.getLong();
+						}
+						int player = b.getInt();
+						int ply = b.getInt();
+						if(check == 0 || check != check(gameId, type, body, player, ply))
+							break;
+						tails.computeIfAbsent(gameId, k -> new Tail()).snapshot(body, player, ply);
+					}
+					else
+					{
+						if(check == 0 || check != check(gameId, type, null, 0, 0))
+						{
+							b.position(start);
+							break;
+						}
+						if(type == NEW_GAME)
+							tails.put(gameId, new Tail());
+						else if(type == END_GAME)
+							tails.remove(gameId);
+						else
+						{
+							Tail tail = tails.get(gameId);
+							if(tail != null)
+								tail.add(type);
+						}
+					}
+				}
+			}
+		}
+
+		Map<Long, Board> boards = new HashMap<>();
+		for(Map.Entry<Long, Tail> e : tails.entrySet())
+		{
+			Tail tail = e.getValue();
+			Board board = new Board();
+			if(tail.codes != null)
+				board.setPosition(tail.codes, tail.player, tail.ply);
+			boolean valid = true;
+			for(int k = 0; k < tail.count && valid; k++)
+			{
+				valid = board.tryMake(tail.moves[k]);
+			}
+			if(valid) // cannot continue a corrupt game
+				boards.put(e.getKey(), board);
+		}
+		return boards;
+	}
+
+	/**
+	 * Recover the live games as PowerConnectFour games, each under its journal id, so
+	 * later appends and events of a game keep the id it was journaled with.
+	 * @param dir directory holding the segment files
+	 * @return every live game by journal id
+	 * @throws IOException if a segment cannot be read
+	 */
+	public static Map<Long, PowerConnectFour> recoverGames(Path dir) throws IOException
+	{
+		Map<Long, PowerConnectFour> result = new HashMap<>();
+		for(Map.Entry<Long, Board> e : recover(dir).entrySet())
+		{
+			result.put(e.getKey(), new PowerConnectFour(e.getValue(), e.getValue().sizeRow(), e.getKey()));
+		}
+		return result;
+	}
+
+	/**
+	 * Append a header-only record, rolling to a new segment when full.
+	 * @param gameId id of the game
+	 * @param type move or record type
+	 */
+	private void append(long gameId, int type)
+	{
+		if(buffer.remaining() < HEADER_BYTES)
+			rollUnchecked();
+		buffer.putLong(gameId).putInt(type).putInt(check(gameId, type, null, 0, 0));
+		dirty = true;
+	}
+
+	/**
+	 * Append a snapshot record of a game.
+	 * @param gameId id of the game
+	 * @param live state of the game
+	 */
+	private void snapshot(long gameId, Live live)
+	{
+		if(buffer.remaining() < HEADER_BYTES + SNAPSHOT_BYTES)
+			rollUnchecked();
+		writeSnapshot(gameId, live);
+	}
+
+	/**
+	 * Write a snapshot record into the current buffer, which must have room for it.
+	 * @param gameId id of the game
+	 * @param live state of the game
+	 */
+	private void writeSnapshot(long gameId, Live live)
+	{
+		Board board = live.board;
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			codes[c] = board.code(c);
+		}
+		buffer.putLong(gameId).putInt(SNAPSHOT)
+			.putInt(check(gameId, SNAPSHOT, codes, board.player(), board.ply()));
+		for(long code : codes)
+		{
+			buffer.putLong(code);
+		}
+		buffer.putInt(board.player()).putInt(board.ply());
+		live.sinceSnapshot = 0;
+		dirty = true;
+	}
+
+	/**
+	 * Start a new segment from the append path.
+	 */
+	private void rollUnchecked()
+	{
+		try
+		{
+			roll(segments(dir));
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("Cannot start a new journal segment", e);
+		}
+	}
+
+	/**
+	 * Start a new segment with a snapshot of every live game, sync it, then delete the
+	 * older segments since everything they hold is in the new one.
+	 * @param old the existing segments
+	 * @throws IOException if the new segment cannot be created
+	 */
+	private void roll(List<Path> old) throws IOException
+	{
+		if(buffer != null)
+		{
+			buffer.force();
+			channel.close();
+			segment++;
+		}
+		long checkpoint = (long) games.size() * (HEADER_BYTES + SNAPSHOT_BYTES);
+		long size = Math.max(segmentBytes, 2 * checkpoint + HEADER_BYTES + SNAPSHOT_BYTES);
+		Path p = dir.resolve(String.format("%s%012d%s", PREFIX, segment, SUFFIX));
+		channel = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		for(Map.Entry<Long, Live> e : games.entrySet())
+		{
+			writeSnapshot(e.getKey(), e.getValue());
+		}
+		buffer.force();
+		dirty = false;
+		for(Path q : old)
+		{
+			Files.deleteIfExists(q);
+		}
+	}
+
+	/**
+	 * Check value of a record, never 0.
+	 * @param gameId id of the game
+	 * @param type move or record type
+	 * @param body snapshot column codes, or null
+	 * @param player snapshot player to move
+	 * @param ply snapshot ply
+	 * @return the check value
+	 */
+	private static int check(long gameId, int type, long[] body, int player, int ply)
+	{
+		long h = gameId * 0x9E3779B97F4A7C15L + type;
+		if(body != null)
+		{
+			for(long code : body)
+			{
+				h = (h ^ code) * 0xBF58476D1CE4E5B9L;
+			}
+			h = (h ^ (player + 31L * ply)) * 0x94D049BB133111EBL;
+		}
+		h ^= h >>> 31;
+		int c = (int) (h ^ (h >>> 32));
+		return c == 0 ? 1 : c;
+	}
+
+	/**
+	 * Segment files of a directory in journal order.
+	 * @param dir the directory
+	 * @return the segment paths, oldest first
+	 * @throws IOException if the directory cannot be listed
+	 */
+	private static List<Path> segments(Path dir) throws IOException
+	{
+		List<Path> list = new ArrayList<>();
+		if(!Files.isDirectory(dir))
+			return list;
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX))
+		{
+			for(Path p : ds)
+			{
+				list.add(p);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * O(1).
+	 * @param segmentPath a segment file
+	 * @return the number in its name
+	 */
+	private static long number(Path segmentPath)
+	{
+		String name = segmentPath.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Journal random games, then time appends and recovery.
+	 * @param args directory, optional number of games and moves per game
+	 * @throws IOException if the journal cannot be written
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: java GameJournal Directory [Games] [Moves_Per_Game]");
+			return;
+		}
+		Path dir = Path.of(args[0]);
+		if(!segments(dir).isEmpty())
+		{
+			System.out.println("Please use an empty directory.");
+			return;
+		}
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int perGame = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+		Random rand = new Random(310);
+		Board[] boards = new Board[count];
+		int[] list = new int[Board.MAX_MOVES];
+		long appends = 0;
+		long start = System.nanoTime();
+		try(GameJournal journal = new GameJournal(dir, 64 << 20, 50))
+		{
+			for(int g = 0; g < count; g++)
+			{
+				boards[g] = new Board();
+				journal.newGame(g);
+			}
+			for(int k = 0; k < perGame; k++)
+			{
+				for(int g = 0; g < count; g++)
+				{
+					Board b = boards[g];
+					if(b.winner() >= 0)
+						continue;
+					int m = list[rand.nextInt(b.generate(list))];
+					b.make(m);
+					journal.move(g, m);
+					appends++;
+				}
+			}
+		}
+		long written = System.nanoTime() - start;
+		System.out.format("journaled %d moves of %d games: %.2f us/append%n",
+			appends, count, written / 1000.0 / Math.max(appends, 1));
+
+		start = System.nanoTime();
+		Map<Long, Board> recovered = recover(dir);
+		long took = System.nanoTime() - start;
+		boolean same = recovered.size() == count;
+		for(int g = 0; g < count && same; g++)
+		{
+			same = recovered.get((long) g).hash() == boards[g].hash();
+		}
+		System.out.format("recovered %d games in %d ms, %s%n", recovered.size(), took / 1000000,
+			same ? "all positions match" : "MISMATCH");
+	}
+}
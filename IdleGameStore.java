@@ -0,0 +1,445 @@
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store for many hosted games, most of them idle. Games that have not been touched for
+ * idleMillis are parked as fixed-width records in direct (off-heap) buffers, indexed by
+ * game id, and their PowerConnectFour objects are dropped, so they cost neither heap nor
+ * GC scanning. game(id) hydrates a parked game into a live instance with the same id.
+ * Callers get the game through game(id) for each move and must not keep the instance,
+ * which may be parked (and replaced on the next game(id)) once it is idle.
+ *
+ * Record layout (64 bytes): seven column codes as in Board.code() (long), display rows
+ * (int), state (int: PARKED bit and the player to move in bit 1). Buffers are allocated
+ * in chunks of CHUNK_RECORDS records as ids grow; run with -XX:MaxDirectMemorySize set
+ * to 64 bytes times the highest game id. Games with a column taller than Board.MAX_HEIGHT
+ * do not fit a record and stay live.
+ */
+public class IdleGameStore implements Closeable
+{
+	/**
+	 * Bytes of a record, as a shift.
+	 */
+	private static final int RECORD_SHIFT = 6;
+	/**
+	 * Offset of the display rows in a record.
+	 */
+	private static final int ROWS_OFFSET = Board.NUM_COLS * 8;
+	/**
+	 * Offset of the state in a record.
+	 */
+	private static final int STATE_OFFSET = ROWS_OFFSET + 4;
+	/**
+	 * State bit of a record holding a parked game.
+	 */
+	private static final int PARKED = 1;
+
+	/**
+	 * Records per chunk, as a shift.
+	 */
+	private static final int CHUNK_SHIFT = 16;
+	/**
+	 * Records per chunk.
+	 */
+	public static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+
+	/**
+	 * A game held on the heap.
+	 */
+	private static final class Live
+	{
+		/**
+		 * The game.
+		 */
+		final PowerConnectFour game;
+		/**
+		 * System.nanoTime() of the last game(id).
+		 */
+		volatile long touched = System.nanoTime();
+
+		/**
+		 * Live game.
+		 * @param game the game
+		 */
+		Live(PowerConnectFour game)
+		{
+			this.game = game;
+		}
+	}
+
+	/**
+	 * Live games by id.
+	 */
+	private final ConcurrentHashMap<Long, Live> live = new ConcurrentHashMap<>();
+	/**
+	 * Off-heap records, one chunk of CHUNK_RECORDS records per slot, null until used.
+	 */
+	private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+	/**
+	 * Number of parked games.
+	 */
+	private final AtomicLong parked = new AtomicLong();
+	/**
+	 * A game is idle after this many nanoseconds without game(id).
+	 */
+	private final long idleNanos;
+	/**
+	 * Parks idle games in the background.
+	 */
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * Store that parks games idle for idleMillis, checking every idleMillis / 2.
+	 * @param idleMillis idle time before a game is parked, 0 to park only on parkIdle()
+	 */
+	public IdleGameStore(long idleMillis)
+	{
+		idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		if(idleMillis <= 0)
+		{
+			sweeper = null;
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "store-sweep");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1, idleMillis / 2);
+		sweeper.scheduleWithFixedDelay(this::parkIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start a game held by the store.
+	 * @return the new game
+	 */
+	public PowerConnectFour newGame()
+	{
+		PowerConnectFour game = new PowerConnectFour();
+		adopt(game);
+		return game;
+	}
+
+	/**
+	 * Hold an existing game in the store.
+	 * @param game the game, looked up by gameId() from now on
+	 */
+	public void adopt(PowerConnectFour game)
+	{
+		live.put(game.gameId(), new Live(game));
+	}
+
+	/**
+	 * The live instance of a game, hydrated if it was parked. Marks the game as used.
+	 * @param id id of the game
+	 * @return the game, null if the store does not hold it
+	 */
+	public PowerConnectFour game(long id)
+	{
+		Live l = live.compute(id, (k, v) -> {
+			if(v == null)
+				v = hydrate(k);
+			if(v != null)
+				v.touched = System.nanoTime();
+			return v;
+		});
+		return l == null ? null : l.game;
+	}
+
+	/**
+	 * Park a game now, whether it is idle or not.
+	 * @param id id of the game
+	 * @return whether the game was live and is now parked
+	 */
+	public boolean park(long id)
+	{
+		return park(id, System.nanoTime());
+	}
+
+	/**
+	 * Park every game idle for longer than idleMillis. Called by the sweeper.
+	 * @return number of games parked
+	 */
+	public int parkIdle()
+	{
+		long before = System.nanoTime() - idleNanos;
+		int n = 0;
+		for(Long id : live.keySet())
+		{
+			if(park(id, before))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Forget a game, live or parked.
+	 * @param id id of the game
+	 */
+	public void end(long id)
+	{
+		live.compute(id, (k, v) -> {
+			ByteBuffer chunk = chunk(k, false);
+			int offset = offset(k);
+			if(chunk != null && (chunk.getInt(offset + STATE_OFFSET) & PARKED) != 0)
+			{
+				chunk.putInt(offset + STATE_OFFSET, 0);
+				parked.decrementAndGet();
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * O(1).
+	 * @return number of games on the heap
+	 */
+	public int liveGames()
+	{
+		return live.size();
+	}
+
+	/**
+	 * O(1).
+	 * @return number of parked games
+	 */
+	public long parkedGames()
+	{
+		return parked.get();
+	}
+
+	/**
+	 * O(chunks).
+	 * @return bytes of direct memory held by the records
+	 */
+	public long offHeapBytes()
+	{
+		long bytes = 0;
+		for(ByteBuffer chunk : chunks)
+		{
+			if(chunk != null)
+				bytes += chunk.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Stop the sweeper. Games stay where they are.
+	 */
+	public void close()
+	{
+		if(sweeper != null)
+			sweeper.shutdownNow();
+	}
+
+	/**
+	 * Park a game if it was last used before a time.
+	 * @param id id of the game
+	 * @param before System.nanoTime() the last use must not be after
+	 * @return whether the game was parked
+	 */
+	private boolean park(long id, long before)
+	{
+		boolean[] done = new boolean[1];
+		live.computeIfPresent(id, (k, v) -> {
+			if(v.touched - before > 0 || !dehydrate(k, v.game))
+				return v;
+			done[0] = true;
+			return null;
+		});
+		return done[0];
+	}
+
+	/**
+	 * Write the record of a game. Runs inside the map's lock of the id.
+	 * @param id id of the game
+	 * @param game the game
+	 * @return false if a column is too tall for a record
+	 */
+	private boolean dehydrate(long id, PowerConnectFour game)
+	{
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(game.getColumn(c).size() > Board.MAX_HEIGHT)
+				return false;
+		}
+		ByteBuffer chunk = chunk(id, true);
+		int offset = offset(id);
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = game.getColumn(c).size();
+			long code = 1L << h;
+			for(int r = 0; r < h; r++)
+			{
+				if(game.get(c, r) == Token.YELLOW)
+					code |= 1L << r;
+			}
+			chunk.putLong(offset + 8 * c, code);
+		}
+		chunk.putInt(offset + ROWS_OFFSET, game.sizeRow());
+		chunk.putInt(offset + STATE_OFFSET, PARKED | game.currentPlayer().ordinal() << 1);
+		parked.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Read the record of a parked game back into a live game. Runs inside the map's
+	 * lock of the id.
+	 * @param id id of the game
+	 * @return the live game, null if the game is not parked
+	 */
+	private Live hydrate(long id)
+	{
+		ByteBuffer chunk = chunk(id, false);
+		int offset = offset(id);
+		if(chunk == null)
+			return null;
+		int state = chunk.getInt(offset + STATE_OFFSET);
+		if((state & PARKED) == 0)
+			return null;
+		long[] codes = new long[Board.NUM_COLS];
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			codes[c] = chunk.getLong(offset + 8 * c);
+		}
+		Board board = new Board();
+		board.setPosition(codes, state >>> 1, 0);
+		chunk.putInt(offset + STATE_OFFSET, 0);
+		parked.decrementAndGet();
+		return new Live(new PowerConnectFour(board, chunk.getInt(offset + ROWS_OFFSET), id));
+	}
+
+	/**
+	 * O(1).
+	 * @param id id of a game
+	 * @return byte offset of its record in its chunk
+	 */
+	private static int offset(long id)
+	{
+		return (int) (id & (CHUNK_RECORDS - 1)) << RECORD_SHIFT;
+	}
+
+	/**
+	 * The chunk holding the record of a game.
+	 * @param id id of the game
+	 * @param create whether to allocate the chunk if missing
+	 * @return the chunk, null if missing and not created
+	 */
+	private ByteBuffer chunk(long id, boolean create)
+	{
+		long index = id >>> CHUNK_SHIFT;
+		ByteBuffer[] c = chunks;
+		if(index < c.length && c[(int) index] != null)
+			return c[(int) index];
+		if(!create)
+			return null;
+		synchronized(this)
+		{
+			// copy on write, so a chunk seen through the volatile array is fully published
+			c = chunks;
+			if(index < c.length && c[(int) index] != null)
+				return c[(int) index];
+			int length = index < c.length ? c.length : (int) Math.max(index + 1, 2L * c.length);
+			c = Arrays.copyOf(c, length);
+			c[(int) index] = ByteBuffer.allocateDirect(CHUNK_RECORDS << RECORD_SHIFT);
+			chunks = c;
+			return c[(int) index];
+		}
+	}
+
+	/**
+	 * Heap in use after a GC.
+	 * @return bytes
+	 */
+	private static long usedHeap()
+	{
+		System.gc();
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Checks, then park and hydrate many games and report heap and off-heap memory.
+	 * @param args number of games, default 500000, and moves per game, default 12
+	 */
+	public static void main(String[] args)
+	{
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		int moves = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+		try(IdleGameStore store = new IdleGameStore(0))
+		{
+			PowerConnectFour g = store.newGame();
+			long id = g.gameId();
+			g.drop(3);
+			g.drop(3);
+			g.powerDrop(3, 0);
+			if(store.park(id) && store.liveGames() == 0 && store.parkedGames() == 1)
+				System.out.println("Yay 1");
+			PowerConnectFour h = store.game(id);
+			if(h != g && h.gameId() == id && h.currentPlayer() == Token.YELLOW && h.get(3, 0) == Token.RED
+				&& h.get(3, 1) == Token.RED && h.get(3, 2) == Token.YELLOW && h.sizeRow() == g.sizeRow()
+				&& store.parkedGames() == 0)
+				System.out.println("Yay 2");
+
+			PowerConnectFour tall = store.newGame();
+			for(int r = 0; r <= Board.MAX_HEIGHT; r++)
+			{
+				tall.powerDrop(0, 0);
+			}
+			if(!store.park(tall.gameId()) && store.game(tall.gameId()) == tall)
+				System.out.println("Yay 3");
+
+			store.park(id);
+			store.end(id);
+			if(store.parkedGames() == 0 && store.game(id) == null && store.parkIdle() == 0
+				&& store.liveGames() == 1)
+				System.out.println("Yay 4");
+		}
+
+		try(IdleGameStore store = new IdleGameStore(0))
+		{
+			Random rand = new Random(310);
+			long[] ids = new long[games];
+			long heapBefore = usedHeap();
+			for(int n = 0; n < games; n++)
+			{
+				PowerConnectFour g = store.newGame();
+				ids[n] = g.gameId();
+				for(int m = 0; m < moves; m++)
+				{
+					if(!g.drop(rand.nextInt(Board.NUM_COLS)))
+						g.pop(rand.nextInt(Board.NUM_COLS));
+				}
+			}
+			long heapLive = usedHeap();
+
+			long start = System.nanoTime();
+			int n = store.parkIdle();
+			long parkNanos = System.nanoTime() - start;
+			long heapParked = usedHeap();
+
+			start = System.nanoTime();
+			for(long id : ids)
+			{
+				store.game(id);
+			}
+			long hydrateNanos = System.nanoTime() - start;
+
+			System.out.format("%d games, %d moves each%n", games, moves);
+			System.out.format("live:   %,d bytes of heap per game%n", (heapLive - heapBefore) / games);
+			System.out.format("parked: %,d bytes of heap per game, %d bytes off-heap per game (%,d MB in chunks)%n",
+				(heapParked - heapBefore) / games, 1 << RECORD_SHIFT, store.offHeapBytes() >> 20);
+			System.out.format("parked %d games in %d ms, hydrated them in %d ms%n", n, parkNanos / 1000000,
+				hydrateNanos / 1000000);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Rules validator for submitted move logs. A log is replayed on a Board, without the
+ * GUI's rendering and full-grid win rescan, to find the first illegal ply and the
+ * true winner. A ply is illegal when the text is not a move, when the move breaks the
+ * rules (pop and powerPop of the opponent's token, powerDrop above the column) or
+ * when the game was already won. Once a column would outgrow Board.MAX_HEIGHT the rest
+ * of the log is replayed on a PowerConnectFour, which has no height limit.
+ * Log files have one game per line, moves in GUI notation separated by ';'
+ * (see Moves.parseLine()).
+ * Usage: java LogValidator [Log_File ...]
+ */
+public final class LogValidator
+{
+	/**
+	 * Returned by validate() when every ply is legal.
+	 */
+	public static final int OK = -1;
+
+	/**
+	 * Board reused for every log.
+	 */
+	private final Board board = new Board();
+
+	/**
+	 * Empty board to reset from.
+	 */
+	private final Board empty = new Board();
+
+	/**
+	 * Winner of the last log validated, -1 for none.
+	 */
+	private int winner = -1;
+
+	/**
+	 * Legal plies of the last log validated.
+	 */
+	private int plies;
+
+	/**
+	 * Replay a log until its first illegal ply. Does not allocate unless a column grows
+	 * past Board.MAX_HEIGHT.
+	 * @param moves encoded moves, Moves.NONE for text that is not a move
+	 * @param from index of the first ply
+	 * @param to index after the last ply
+	 * @return index of the first illegal ply counted from 0, or OK
+	 */
+	public int validate(int[] moves, int from, int to)
+	{
+		board.copyFrom(empty);
+		winner = -1;
+		for(int k = from; k < to; k++)
+		{
+			int move = moves[k];
+			if(winner >= 0 || move == Moves.NONE)
+			{
+				plies = k - from;
+				return plies;
+			}
+			if(!board.isLegal(move))
+			{
+				int kind = Moves.kind(move);
+				if((kind == Moves.DROP || kind == Moves.POWER_DROP) && Moves.col(move) < Board.NUM_COLS
+					&& board.height(Moves.col(move)) == Board.MAX_HEIGHT)
+					return validateTall(moves, from, k, to);
+				plies = k - from;
+				return plies;
+			}
+			board.make(move);
+			winner = board.winnerAfter(Moves.col(move));
+		}
+		plies = to - from;
+		return OK;
+	}
+
+	/**
+	 * Finish validate() on a PowerConnectFour once a column is full on the Board, with
+	 * the win check of the GUI.
+	 * @param moves encoded moves
+	 * @param from index of the first ply
+	 * @param k index of the first ply the Board cannot hold
+	 * @param to index after the last ply
+	 * @return index of the first illegal ply counted from 0, or OK
+	 */
+	private int validateTall(int[] moves, int from, int k, int to)
+	{
+		PowerConnectFour game = new PowerConnectFour();
+		for(int i = from; i < k; i++)
+		{
+			Moves.apply(game, moves[i]);
+		}
+		for(; k < to; k++)
+		{
+			int move = moves[k];
+			Token player = game.currentPlayer();
+			if(winner >= 0 || move == Moves.NONE || !Moves.apply(game, move))
+			{
+				plies = k - from;
+				return plies;
+			}
+			winner = game.hasFourConnected(player) ? player.ordinal()
+				: game.hasFourConnected(game.currentPlayer()) ? game.currentPlayer().ordinal() : -1;
+		}
+		plies = to - from;
+		return OK;
+	}
+
+	/**
+	 * O(1).
+	 * @return winner of the last log up to its first illegal ply: 0 RED, 1 YELLOW, -1 none
+	 */
+	public int winner()
+	{
+		return winner;
+	}
+
+	/**
+	 * O(1).
+	 * @return number of legal plies in the last log
+	 */
+	public int plies()
+	{
+		return plies;
+	}
+
+	/**
+	 * Name of a player for reports.
+	 * @param who 0 RED, 1 YELLOW, -1 none
+	 * @return "R", "Y" or "-"
+	 */
+	private static String name(int who)
+	{
+		return who < 0 ? "-" : who == 0 ? "R" : "Y";
+	}
+
+	/**
+	 * Validate the log files given, one result per log, or without arguments run the
+	 * checks and a benchmark on random logs.
+	 * @param args log files
+	 * @throws IOException if a file cannot be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		LogValidator v = new LogValidator();
+		if(args.length > 0)
+		{
+			int[] buf = new int[256];
+			for(String a : args)
+			{
+				try(BufferedReader in = Files.newBufferedReader(Path.of(a)))
+				{
+					int lineNo = 0;
+					String line;
+					while((line = in.readLine()) != null)
+					{
+						lineNo++;
+						String t = line.trim();
+						if(t.isEmpty() || t.startsWith("#"))
+							continue;
+						buf = Moves.parseLine(line, buf);
+						int bad = v.validate(buf, 1, 1 + buf[0]);
+						if(bad == OK)
+							System.out.println(a + ":" + lineNo + " OK, " + v.plies() + " plies, winner " + name(v.winner()));
+						else
+							System.out.println(a + ":" + lineNo + " illegal ply " + (bad + 1) + ", winner " + name(v.winner()));
+					}
+				}
+			}
+			return;
+		}
+
+		int[] log = Moves.parseLine("D 3;D 3;P 3;PP 0 0", new int[4]);
+		if(v.validate(log, 1, 1 + log[0]) == 3 && v.winner() == -1)
+			System.out.println("Yay 1");
+
+		log = Moves.parseLine("D 0;D 1;D 0;D 1;D 0;D 1;D 0;D 2", new int[4]);
+		if(v.validate(log, 1, 1 + log[0]) == 7 && v.winner() == 0)
+			System.out.println("Yay 2");
+
+		log = Moves.parseLine("PD 0 0;PD 0 2;D 3", new int[4]);
+		if(v.validate(log, 1, 1 + log[0]) == 1 && v.plies() == 1
+			&& v.validate(Moves.parseLine("D 2;D 9", log), 1, 3) == 1)
+			System.out.println("Yay 3");
+
+		//random games: winnerAfter() must agree with the full winner() scan
+		Random rand = new Random(310);
+		int games = 200000;
+		int[] moves = new int[games * 64];
+		int[] starts = new int[games + 1];
+		int[] legal = new int[Board.MAX_MOVES];
+		int[] winners = new int[games];
+		Board b = new Board();
+		Board start = new Board();
+		boolean agree = true;
+		int n = 0;
+		for(int g = 0; g < games; g++)
+		{
+			starts[g] = n;
+			b.copyFrom(start);
+			int w = -1;
+			while(w < 0 && n - starts[g] < 64)
+			{
+				int move = legal[rand.nextInt(b.generate(legal))];
+				b.make(move);
+				moves[n++] = move;
+				w = b.winner();
+				agree &= w == b.winnerAfter(Moves.col(move));
+			}
+			winners[g] = w;
+		}
+		starts[games] = n;
+		boolean same = true;
+		for(int g = 0; g < games; g++)
+		{
+			same &= v.validate(moves, starts[g], starts[g + 1]) == OK && v.winner() == winners[g];
+		}
+		if(agree && same)
+			System.out.println("Yay 4");
+
+		//the 63rd token of a column is legal, past what a Board holds
+		log = Moves.parseLine("D 0;".repeat(Board.MAX_HEIGHT + 1) + "P 1", new int[4]);
+		if(v.validate(log, 1, 1 + log[0]) == Board.MAX_HEIGHT + 1 && v.winner() == -1)
+			System.out.println("Yay 5");
+
+		for(int round = 0; round < 5; round++)
+		{
+			long t0 = System.nanoTime();
+			for(int g = 0; g < games; g++)
+			{
+				v.validate(moves, starts[g], starts[g + 1]);
+			}
+			long ns = System.nanoTime() - t0;
+			System.out.format("%d moves in %d ms: %.1f M moves/s%n", n, ns / 1000000, n * 1000.0 / ns);
+		}
+	}
+}
@@ -0,0 +1,491 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monte Carlo Tree Search (UCT) engine for Power Connect Four.
+ * The tree lives in preallocated int arrays indexed by node number, so memory stays the
+ * same however many playouts are run; once the arrays are full the tree stops growing and
+ * playouts start from the leaves. Several threads share the tree (tree parallelization):
+ * a thread adds a visit to every node on its way down before the playout is known, which
+ * acts as a virtual loss that steers the other threads to different branches.
+ * Playouts run on a per-thread Board and do not allocate.
+ */
+public class MctsEngine
+{
+	/**
+	 * Atomic access to int array elements.
+	 */
+	private static final VarHandle INT = MethodHandles.arrayElementVarHandle(int[].class);
+
+	/**
+	 * Node has not been expanded.
+	 */
+	private static final int LEAF = 0;
+	/**
+	 * A thread is expanding the node.
+	 */
+	private static final int EXPANDING = 1;
+	/**
+	 * Node children are ready.
+	 */
+	private static final int EXPANDED = 2;
+	/**
+	 * Node could not be expanded because the tree is full.
+	 */
+	private static final int FULL = 3;
+
+	/**
+	 * UCT exploration constant.
+	 */
+	private static final double EXPLORATION = 1.4;
+
+	/**
+	 * Playouts longer than this many plies count as a draw.
+	 */
+	private static final int PLAYOUT_LIMIT = 200;
+
+	/**
+	 * Deepest path followed in the tree.
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	/**
+	 * Result of a search.
+	 */
+	public static final class Result
+	{
+		/**
+		 * Most visited root move.
+		 */
+		public final int move;
+		/**
+		 * Visits of the chosen move.
+		 */
+		public final int visits;
+		/**
+		 * Score of the chosen move for the player to move, 0 to 1.
+		 */
+		public final double winRate;
+		/**
+		 * Playouts run.
+		 */
+		public final long playouts;
+		/**
+		 * Milliseconds spent.
+		 */
+		public final long millis;
+		/**
+		 * Threads used.
+		 */
+		public final int threads;
+		/**
+		 * Tree nodes used.
+		 */
+		public final int nodes;
+
+		/**
+		 * Create a result.
+		 * @param move chosen move
+		 * @param visits visits of the move
+		 * @param winRate score of the move
+		 * @param playouts playouts run
+		 * @param millis milliseconds spent
+		 * @param threads threads used
+		 * @param nodes tree nodes used
+		 */
+		Result(int move, int visits, double winRate, long playouts, long millis, int threads, int nodes)
+		{
+			this.move = move;
+			this.visits = visits;
+			this.winRate = winRate;
+			this.playouts = playouts;
+			this.millis = millis;
+			this.threads = threads;
+			this.nodes = nodes;
+		}
+
+		/**
+		 * O(1).
+		 * @return playouts per second for each thread
+		 */
+		public long playoutsPerSecondPerThread()
+		{
+			return playouts * 1000 / Math.max(millis, 1) / threads;
+		}
+
+		/**
+		 * One line report.
+		 * @return the report
+		 */
+		public String toString()
+		{
+			return String.format("%s visits %d score %.3f playouts %d time %dms threads %d playouts/s/thread %d nodes %d",
+				Moves.toString(move), visits, winRate, playouts, millis, threads, playoutsPerSecondPerThread(), nodes);
+		}
+	}
+
+	/**
+	 * Move that leads to each node.
+	 */
+	private final int[] move;
+	/**
+	 * Index of the first child of each node.
+	 */
+	private final int[] firstChild;
+	/**
+	 * Number of children of each node.
+	 */
+	private final int[] childCount;
+	/**
+	 * Visits of each node, including visits of playouts still running (virtual loss).
+	 */
+	private final int[] visits;
+	/**
+	 * Half points won by the player who moved into each node (2 win, 1 draw).
+	 */
+	private final int[] wins;
+	/**
+	 * LEAF, EXPANDING, EXPANDED or FULL for each node.
+	 */
+	private final int[] state;
+	/**
+	 * Next free node index.
+	 */
+	private final AtomicInteger nextFree = new AtomicInteger();
+	/**
+	 * Playouts run in the current search.
+	 */
+	private final AtomicLong playouts = new AtomicLong();
+	/**
+	 * Worker threads.
+	 */
+	private final ExecutorService pool;
+	/**
+	 * Number of worker threads.
+	 */
+	private final int threads;
+	/**
+	 * Position at the root of the current search.
+	 */
+	private final Board root = new Board();
+	/**
+	 * System.nanoTime() at which the workers stop.
+	 */
+	private volatile long deadline;
+	/**
+	 * Playouts after which the workers stop.
+	 */
+	private volatile long maxPlayouts;
+
+	/**
+	 * Engine with a tree of the given number of nodes (24 bytes each) and a thread pool.
+	 * @param capacity maximum number of tree nodes
+	 * @param threads number of search threads
+	 */
+	public MctsEngine(int capacity, int threads)
+	{
+		move = new int[capacity];
+		firstChild = new int[capacity];
+		childCount = new int[capacity];
+		visits = new int[capacity];
+		wins = new int[capacity];
+		state = new int[capacity];
+		this.threads = threads;
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "mcts");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown()
+	{
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Search a position until the time or playout budget runs out.
+	 * @param position the position to search, not modified
+	 * @param millis time budget in milliseconds
+	 * @param playoutBudget playouts to run at most
+	 * @return the most visited root move and search statistics
+	 */
+	public Result search(Board position, long millis, long playoutBudget)
+	{
+		long start = System.nanoTime();
+		root.copyFrom(position);
+		move[0] = Moves.NONE;
+		visits[0] = 0;
+		wins[0] = 0;
+		state[0] = LEAF;
+		nextFree.set(1);
+		playouts.set(0);
+		maxPlayouts = playoutBudget;
+		deadline = start + millis * 1000000L;
+
+		List<Callable<Void>> workers = new ArrayList<>();
+		for(int t = 0; t < threads; t++)
+		{
+			workers.add(new Worker(start + t));
+		}
+		try
+		{
+			for(Future<Void> f : pool.invokeAll(workers))
+			{
+				f.get();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+
+		int best = -1;
+		if(state[0] == EXPANDED)
+		{
+			for(int c = firstChild[0]; c < firstChild[0] + childCount[0]; c++)
+			{
+				if(best < 0 || visits[c] > visits[best])
+					best = c;
+			}
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+		long count = Math.min(playouts.get(), maxPlayouts);
+		if(best < 0)
+			return new Result(Moves.NONE, 0, 0, count, elapsed, threads, nextFree.get());
+		return new Result(move[best], visits[best], wins[best] / (2.0 * Math.max(visits[best], 1)),
+			count, elapsed, threads, nextFree.get());
+	}
+
+	/**
+	 * One search thread with its own board and buffers.
+	 */
+	private final class Worker implements Callable<Void>
+	{
+		/**
+		 * Board walked down the tree and played out.
+		 */
+		private final Board board = new Board();
+		/**
+		 * Generated moves.
+		 */
+		private final int[] list = new int[Board.MAX_MOVES];
+		/**
+		 * Nodes on the current path.
+		 */
+		private final int[] path = new int[MAX_DEPTH];
+		/**
+		 * Xorshift random state.
+		 */
+		private long rng;
+
+		/**
+		 * Create a worker.
+		 * @param seed random seed
+		 */
+		Worker(long seed)
+		{
+			rng = seed * 0x9E3779B97F4A7C15L | 1;
+		}
+
+		/**
+		 * Run playouts until the budget is used up.
+		 * @return nothing
+		 */
+		public Void call()
+		{
+			while(System.nanoTime() < deadline && playouts.incrementAndGet() <= maxPlayouts)
+			{
+				iterate();
+			}
+			return null;
+		}
+
+		/**
+		 * Select, expand, play out and back up once.
+		 */
+		private void iterate()
+		{
+			board.copyFrom(root);
+			int rootPlayer = board.player();
+			int node = 0;
+			int depth = 0;
+			path[depth++] = 0;
+			INT.getAndAdd(visits, 0, 1);
+			int winner = -1;
+			boolean terminal = false;
+			while(depth < MAX_DEPTH)
+			{
+				int s = (int) INT.getAcquire(state, node);
+				if(s == LEAF && INT.compareAndSet(state, node, LEAF, EXPANDING))
+					s = expand(node);
+				if(s != EXPANDED)
+					break;
+				node = select(node);
+				INT.getAndAdd(visits, node, 1);
+				board.make(move[node]);
+				path[depth++] = node;
+				winner = board.winner();
+				if(winner >= 0)
+				{
+					terminal = true;
+					break;
+				}
+			}
+			if(!terminal)
+				winner = playout();
+			for(int d = 1; d < depth; d++)
+			{
+				int mover = rootPlayer ^ ((d - 1) & 1);
+				int reward = winner < 0 ? 1 : winner == mover ? 2 : 0;
+				INT.getAndAdd(wins, path[d], reward);
+			}
+		}
+
+		/**
+		 * Add the children of a node, which this thread has claimed.
+		 * @param node the node to expand
+		 * @return EXPANDED, or FULL if the tree has no room left
+		 */
+		private int expand(int node)
+		{
+			int n = board.generate(list);
+			int start;
+			do
+			{
+				start = nextFree.get();
+				if(start + n > move.length)
+				{
+					INT.setRelease(state, node, FULL);
+					return FULL;
+				}
+			} while(!nextFree.compareAndSet(start, start + n));
+			for(int i = 0; i < n; i++)
+			{
+				int c = start + i;
+				move[c] = list[i];
+				visits[c] = 0;
+				wins[c] = 0;
+				state[c] = LEAF;
+			}
+			firstChild[node] = start;
+			childCount[node] = n;
+			INT.setRelease(state, node, EXPANDED);
+			return EXPANDED;
+		}
+
+		/**
+		 * UCT selection among the children of a node.
+		 * @param node an expanded node
+		 * @return the chosen child
+		 */
+		private int select(int node)
+		{
+			int first = firstChild[node];
+			int end = first + childCount[node];
+			double logParent = Math.log(Math.max((int) INT.getOpaque(visits, node), 1));
+			int best = first;
+			double bestValue = -1;
+			for(int c = first; c < end; c++)
+			{
+				int v = (int) INT.getOpaque(visits, c);
+				if(v == 0)
+					return c;
+				double value = (int) INT.getOpaque(wins, c) / (2.0 * v) + EXPLORATION * Math.sqrt(logParent / v);
+				if(value > bestValue)
+				{
+					bestValue = value;
+					best = c;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Random game from the current board. Half of the moves are drops in a random
+		 * column, the other half are picked among all legal moves, so that games do not
+		 * drift into long power drop / power pop sequences.
+		 * @return the winner, or -1 for no winner within PLAYOUT_LIMIT plies
+		 */
+		private int playout()
+		{
+			for(int i = 0; i < PLAYOUT_LIMIT; i++)
+			{
+				long r = next();
+				int m;
+				int col = (int) ((r >>> 33) % Board.NUM_COLS);
+				if((r & 1) == 0 && board.height(col) < Board.MAX_HEIGHT)
+					m = Moves.encode(Moves.DROP, col, 0);
+				else
+				{
+					int n = board.generate(list);
+					if(n == 0)
+						return -1;
+					m = list[(int) ((r >>> 1) % n)];
+				}
+				board.make(m);
+				int winner = board.winner();
+				if(winner >= 0)
+					return winner;
+			}
+			return -1;
+		}
+
+		/**
+		 * Xorshift step.
+		 * @return next random value
+		 */
+		private long next()
+		{
+			rng ^= rng << 13;
+			rng ^= rng >>> 7;
+			rng ^= rng << 17;
+			return rng & Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Main method with a sample search.
+	 * @param args optional: number of threads, milliseconds
+	 */
+	public static void main(String[] args)
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		MctsEngine engine = new MctsEngine(1 << 22, threads);
+
+		// red has three in column 3 and wins by dropping there
+		Board board = new Board();
+		int[] cols = {3, 4, 3, 4, 3, 4};
+		for(int c : cols)
+		{
+			board.make(Moves.encode(Moves.DROP, c, 0));
+		}
+		Result r = engine.search(board, millis, Long.MAX_VALUE);
+		System.out.println("  " + r);
+		if(r.move == Moves.encode(Moves.DROP, 3, 0))
+			System.out.println("Yay 1");
+
+		r = engine.search(new Board(), millis, Long.MAX_VALUE);
+		System.out.println("  " + r);
+		if(r.move != Moves.NONE && r.nodes <= 1 << 22)
+			System.out.println("Yay 2");
+		engine.shutdown();
+	}
+}
@@ -0,0 +1,346 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Post-game review: annotate every move of a script with the engine's score of the
+ * move played, the best move and how much was lost. The game is first replayed on a
+ * Board to collect the positions; then each position is searched twice, to depth d
+ * for its best move and to depth d-1 for the value of the move that led to it (the
+ * depth its parent's search gives to that child). Those searches are independent,
+ * so they run on a pool of threads, each with its own SearchEngine but one shared
+ * transposition table.
+ * Scripts use GUI notation, one move per line (or several separated by ';'). Lines
+ * that are not a move, or moves that are not legal, are listed as invalid.
+ * Usage: java MoveAnnotator Input_File_Name [depth] [threads] [millisPerSearch]
+ */
+public final class MoveAnnotator
+{
+	/**
+	 * Scores above this mean a forced win was found.
+	 */
+	private static final int MATE_BOUND = SearchEngine.MATE - SearchEngine.MAX_PLY;
+
+	/**
+	 * Loss for a dubious move "?!".
+	 */
+	private static final int DUBIOUS = 32;
+
+	/**
+	 * Loss for a mistake "?".
+	 */
+	private static final int MISTAKE = 128;
+
+	/**
+	 * Loss for a blunder "??", also given when a forced win is thrown away or a forced
+	 * loss walked into.
+	 */
+	private static final int BLUNDER = 512;
+
+	/**
+	 * One move of the game and its annotation.
+	 */
+	public static final class Annotation
+	{
+		/**
+		 * Step number in the script, from 1.
+		 */
+		public final int step;
+		/**
+		 * Player who made the move, 0 RED and 1 YELLOW.
+		 */
+		public final int player;
+		/**
+		 * Move played, Moves.NONE if the text was not a move.
+		 */
+		public final int move;
+		/**
+		 * Text of the move in the script.
+		 */
+		public final String text;
+		/**
+		 * Whether the move was legal.
+		 */
+		public final boolean valid;
+		/**
+		 * Score of the move played for the player who made it.
+		 */
+		int played;
+		/**
+		 * Best move of the position.
+		 */
+		int best = Moves.NONE;
+		/**
+		 * Score of the best move.
+		 */
+		int bestScore;
+		/**
+		 * Depth of the search of the best move.
+		 */
+		int depth;
+
+		/**
+		 * Annotation of one step.
+		 * @param step step number
+		 * @param player player to move
+		 * @param move move played
+		 * @param text text of the move
+		 * @param valid whether the move was legal
+		 */
+		Annotation(int step, int player, int move, String text, boolean valid)
+		{
+			this.step = step;
+			this.player = player;
+			this.move = move;
+			this.text = text;
+			this.valid = valid;
+		}
+
+		/**
+		 * O(1).
+		 * @return score lost by the move played compared to the best move, at least 0
+		 */
+		public int loss()
+		{
+			return valid ? Math.max(0, bestScore - played) : 0;
+		}
+
+		/**
+		 * O(1).
+		 * @return "??", "?", "?!" or "" by the size of the loss
+		 */
+		public String mark()
+		{
+			if(!valid || best == move)
+				return "";
+			boolean threwWin = bestScore >= MATE_BOUND && played < MATE_BOUND;
+			boolean walkedIntoLoss = played <= -MATE_BOUND && bestScore > -MATE_BOUND;
+			int loss = loss();
+			if(threwWin || walkedIntoLoss || loss >= BLUNDER)
+				return "??";
+			if(loss >= MISTAKE)
+				return "?";
+			if(loss >= DUBIOUS)
+				return "?!";
+			return "";
+		}
+
+		/**
+		 * One line of the annotated move list.
+		 * @return the line
+		 */
+		public String toString()
+		{
+			String who = player == 0 ? "R" : "Y";
+			if(!valid)
+				return String.format("%4d. %s %-8s invalid", step, who, text);
+			return String.format("%4d. %s %-8s %-3s %12s   best %-8s %12s  depth %2d", step, who,
+				Moves.toString(move), mark(), format(played), Moves.toString(best), format(bestScore), depth);
+		}
+	}
+
+	/**
+	 * Search depth for the best moves.
+	 */
+	private final int depth;
+
+	/**
+	 * Time cap of one search in milliseconds.
+	 */
+	private final long millis;
+
+	/**
+	 * Worker threads.
+	 */
+	private final int threads;
+
+	/**
+	 * Table shared by all engines.
+	 */
+	private final TranspositionTable table;
+
+	/**
+	 * Annotator.
+	 * @param depth search depth for the best moves, at least 2
+	 * @param threads worker threads
+	 * @param millis time cap of one search in milliseconds
+	 * @param tableEntries entries of the shared transposition table
+	 */
+	public MoveAnnotator(int depth, int threads, long millis, int tableEntries)
+	{
+		this.depth = Math.max(depth, 2);
+		this.threads = Math.max(threads, 1);
+		this.millis = millis;
+		this.table = new TranspositionTable(tableEntries);
+	}
+
+	/**
+	 * Replay a game and annotate its moves.
+	 * @param texts the moves of the script in GUI notation
+	 * @return one annotation per step
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public List<Annotation> annotate(List<String> texts) throws InterruptedException
+	{
+		// replay once to collect the positions before each valid move
+		List<Annotation> notes = new ArrayList<>();
+		List<Board> before = new ArrayList<>();
+		List<Annotation> played = new ArrayList<>();
+		Board board = new Board();
+		int step = 0;
+		for(String text : texts)
+		{
+			int move = Moves.parse(text);
+			boolean valid = move != Moves.NONE && board.isLegal(move);
+			Annotation a = new Annotation(++step, board.player(), move, text, valid);
+			notes.add(a);
+			if(!valid)
+				continue;
+			Board position = new Board();
+			position.copyFrom(board);
+			before.add(position);
+			played.add(a);
+			board.make(move);
+			if(board.winner() >= 0)
+				break;
+		}
+
+		// two searches per move, all independent
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ThreadLocal<SearchEngine> engines = ThreadLocal.withInitial(() -> new SearchEngine(table));
+		List<Future<SearchEngine.Result>> bestSearches = new ArrayList<>();
+		List<Future<Integer>> playedSearches = new ArrayList<>();
+		try
+		{
+			for(int i = 0; i < played.size(); i++)
+			{
+				Board position = before.get(i);
+				int move = played.get(i).move;
+				bestSearches.add(pool.submit(() -> engines.get().search(position, depth, millis, millis)));
+				playedSearches.add(pool.submit(() -> valueOf(engines.get(), position, move)));
+			}
+			for(int i = 0; i < played.size(); i++)
+			{
+				Annotation a = played.get(i);
+				SearchEngine.Result r = bestSearches.get(i).get();
+				a.best = r.move;
+				a.bestScore = r.score;
+				a.depth = r.depth;
+				a.played = a.move == r.move ? r.score : Math.min(playedSearches.get(i).get(), r.score);
+			}
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		return notes;
+	}
+
+	/**
+	 * Score of a move for the player making it, searching the position after it one
+	 * ply less deep, as the search of the position before it would.
+	 * @param engine the engine of this thread
+	 * @param position position before the move
+	 * @param move the move
+	 * @return score for the player making the move
+	 */
+	private int valueOf(SearchEngine engine, Board position, int move)
+	{
+		Board after = new Board();
+		after.copyFrom(position);
+		int mover = after.player();
+		after.make(move);
+		int winner = after.winner();
+		if(winner == mover)
+			return SearchEngine.MATE - 1;
+		if(winner >= 0)
+			return -(SearchEngine.MATE - 1);
+		int s = engine.search(after, depth - 1, millis, millis).score;
+		if(s >= MATE_BOUND)
+			return -s + 1;
+		if(s <= -MATE_BOUND)
+			return -s - 1;
+		return -s;
+	}
+
+	/**
+	 * Score in words for mate scores.
+	 * @param score a search score
+	 * @return "win in n", "loss in n" or the number
+	 */
+	static String format(int score)
+	{
+		if(score >= MATE_BOUND)
+			return "win in " + (SearchEngine.MATE - score);
+		if(score <= -MATE_BOUND)
+			return "loss in " + (SearchEngine.MATE + score);
+		return String.format("%+d", score);
+	}
+
+	/**
+	 * Read the moves of a script.
+	 * @param script the script file
+	 * @return the move texts up to the end or Q
+	 * @throws IOException if the file cannot be read
+	 */
+	static List<String> readScript(Path script) throws IOException
+	{
+		List<String> texts = new ArrayList<>();
+		try(BufferedReader in = Files.newBufferedReader(script))
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				for(String text : line.split(";"))
+				{
+					text = text.trim();
+					if(text.equals("Q"))
+						return texts;
+					if(!text.isEmpty())
+						texts.add(text);
+				}
+			}
+		}
+		return texts;
+	}
+
+	/**
+	 * Print the annotated move list of a script.
+	 * @param args script file, optional depth, threads and time cap per search in ms
+	 * @throws IOException if the script cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.out.println("Usage: java MoveAnnotator Input_File_Name [depth] [threads] [millisPerSearch]");
+			return;
+		}
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long millis = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+		List<String> texts = readScript(Path.of(args[0]));
+
+		long start = System.nanoTime();
+		MoveAnnotator annotator = new MoveAnnotator(depth, threads, millis, 1 << 22);
+		List<Annotation> notes = annotator.annotate(texts);
+		for(Annotation a : notes)
+		{
+			System.out.println(a);
+		}
+		System.out.format("%d moves annotated at depth %d on %d threads in %d ms%n", notes.size(), depth, threads,
+			(System.nanoTime() - start) / 1000000);
+	}
+}
@@ -0,0 +1,283 @@
+import java.util.Arrays;
+
+/**
+ * Helpers for moves encoded as a single int, so engines can keep them in primitive arrays.
+ * Layout: bits 0-1 kind, bits 2-5 column, bits 6 and up row (only used by power moves).
+ * The text form matches the GUI input: "D 3", "P 3", "PD 3 1", "PP 3 1".
+ */
+public final class Moves
+{
+	/**
+	 * Drop a token on top of a column.
+	 */
+	public static final int DROP = 0;
+	/**
+	 * Pop the bottom token of a column.
+	 */
+	public static final int POP = 1;
+	/**
+	 * Insert a token at a column and row.
+	 */
+	public static final int POWER_DROP = 2;
+	/**
+	 * Remove the token at a column and row.
+	 */
+	public static final int POWER_POP = 3;
+
+	/**
+	 * Number of move kinds.
+	 */
+	public static final int KINDS = 4;
+
+	/**
+	 * Value used for "no move".
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Command used in the GUI / input files for each kind.
+	 */
+	private static final String[] COMMANDS = {"D", "P", "PD", "PP"};
+
+	/**
+	 * No instances, only static helpers.
+	 */
+	private Moves()
+	{
+	}
+
+	/**
+	 * Encode a move. O(1)
+	 * @param kind DROP, POP, POWER_DROP or POWER_POP
+	 * @param col take an integer as column index
+	 * @param row take an integer as row index (ignored by DROP and POP)
+	 * @return the encoded move
+	 */
+	public static int encode(int kind, int col, int row)
+	{
+		if(kind == DROP || kind == POP)
+			row = 0;
+		return (row << 6) | (col << 2) | kind;
+	}
+
+	/**
+	 * O(1).
+	 * @param move encoded move
+	 * @return kind of the move
+	 */
+	public static int kind(int move)
+	{
+		return move & 3;
+	}
+
+	/**
+	 * O(1).
+	 * @param move encoded move
+	 * @return column of the move
+	 */
+	public static int col(int move)
+	{
+		return (move >>> 2) & 15;
+	}
+
+	/**
+	 * O(1).
+	 * @param move encoded move
+	 * @return row of the move (0 for DROP and POP)
+	 */
+	public static int row(int move)
+	{
+		return move >>> 6;
+	}
+
+	/**
+	 * The same move on the left-right mirror image of the grid.
+	 * @param move encoded move
+	 * @return move with column c replaced by NUM_COLS-1-c
+	 */
+	public static int mirror(int move)
+	{
+		if(move == NONE)
+			return NONE;
+		return (move & ~(15 << 2)) | ((Board.NUM_COLS - 1 - col(move)) << 2);
+	}
+
+	/**
+	 * Apply a move to a game, as the GUI would.
+	 * @param game the game to play on
+	 * @param move encoded move
+	 * @return true if the move was valid
+	 */
+	public static boolean apply(PowerConnectFour game, int move)
+	{
+		switch(kind(move))
+		{
+			case DROP:
+				return game.drop(col(move));
+			case POP:
+				return game.pop(col(move));
+			case POWER_DROP:
+				return game.powerDrop(col(move), row(move));
+			default:
+				return game.powerPop(col(move), row(move));
+		}
+	}
+
+	/**
+	 * Parse a move in GUI notation, e.g. "D 3" or "PP 3 1".
+	 * @param text the move text
+	 * @return encoded move, or NONE if the text is not a move
+	 */
+	public static int parse(String text)
+	{
+		String[] parts = text.trim().split("\\s+");
+		for(int kind = 0; kind < KINDS; kind++)
+		{
+			if(!COMMANDS[kind].equals(parts[0]))
+				continue;
+			int args = kind < POWER_DROP ? 1 : 2;
+			if(parts.length != args + 1)
+				return NONE;
+			try
+			{
+				int col = Integer.parseInt(parts[1]);
+				int row = args == 2 ? Integer.parseInt(parts[2]) : 0;
+				if(col < 0 || col > 15 || row < 0)
+					return NONE;
+				return encode(kind, col, row);
+			}
+			catch(NumberFormatException e)
+			{
+				return NONE;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Parse a move in GUI notation from part of a text without allocating,
+	 * for replaying logs and archives.
+	 * @param s the text
+	 * @param from start of the move
+	 * @param to end of the move (exclusive)
+	 * @return encoded move, or NONE if the text is not a move
+	 */
+	public static int parse(CharSequence s, int from, int to)
+	{
+		while(from < to && s.charAt(from) == ' ')
+		{
+			from++;
+		}
+		if(from >= to)
+			return NONE;
+		int kind;
+		char c0 = s.charAt(from);
+		char c1 = from + 1 < to ? s.charAt(from + 1) : ' ';
+		if(c0 == 'D' && c1 == ' ')
+			kind = DROP;
+		else if(c0 == 'P' && c1 == ' ')
+			kind = POP;
+		else if(c0 == 'P' && c1 == 'D')
+			kind = POWER_DROP;
+		else if(c0 == 'P' && c1 == 'P')
+			kind = POWER_POP;
+		else
+			return NONE;
+		int pos = from + (kind < POWER_DROP ? 1 : 2);
+		int col = 0;
+		int row = 0;
+		int count = kind < POWER_DROP ? 1 : 2;
+		for(int k = 0; k < count; k++)
+		{
+			while(pos < to && s.charAt(pos) == ' ')
+			{
+				pos++;
+			}
+			int v = 0;
+			int digits = 0;
+			while(pos < to && s.charAt(pos) >= '0' && s.charAt(pos) <= '9' && digits < 4)
+			{
+				v = v * 10 + s.charAt(pos++) - '0';
+				digits++;
+			}
+			if(digits == 0)
+				return NONE;
+			if(k == 0)
+				col = v;
+			else
+				row = v;
+		}
+		while(pos < to && s.charAt(pos) == ' ')
+		{
+			pos++;
+		}
+		if(pos != to || col > 15 || row > Board.MAX_HEIGHT)
+			return NONE;
+		return encode(kind, col, row);
+	}
+
+	/**
+	 * Split a game record of moves separated by ';' into encoded moves, for the log and
+	 * archive readers. Empty moves between two ';' are skipped; text that is not a move
+	 * gives NONE.
+	 * @param line the record
+	 * @param out array to fill, grown when too short
+	 * @return the filled array; its first element is the number of moves that follow
+	 */
+	static int[] parseLine(CharSequence line, int[] out)
+	{
+		int n = 0;
+		int pos = 0;
+		int length = line.length();
+		while(pos < length)
+		{
+			int end = pos;
+			while(end < length && line.charAt(end) != ';')
+			{
+				end++;
+			}
+			int move = parse(line, pos, end);
+			if(move != NONE || !isBlank(line, pos, end))
+			{
+				if(n + 2 > out.length)
+					out = Arrays.copyOf(out, out.length * 2);
+				out[++n] = move;
+			}
+			pos = end + 1;
+		}
+		out[0] = n;
+		return out;
+	}
+
+	/**
+	 * O(to - from).
+	 * @param s text
+	 * @param from start index
+	 * @param to end index (exclusive)
+	 * @return whether the range holds only spaces
+	 */
+	static boolean isBlank(CharSequence s, int from, int to)
+	{
+		for(int k = from; k < to; k++)
+		{
+			if(s.charAt(k) != ' ')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Text form of a move in GUI notation.
+	 * @param move encoded move
+	 * @return text such as "D 3" or "PP 3 1"
+	 */
+	public static String toString(int move)
+	{
+		if(move == NONE)
+			return "-";
+		int kind = kind(move);
+		if(kind < POWER_DROP)
+			return COMMANDS[kind] + " " + col(move);
+		return COMMANDS[kind] + " " + col(move) + " " + row(move);
+	}
+}
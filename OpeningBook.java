@@ -0,0 +1,715 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Opening book built from archives of played games (the format of ArchiveAnalytics) and
+ * read straight from a memory-mapped file.
+ *
+ * Building replays every archive in one parallel pass, each stream split into its own
+ * Builder, and counts for the first plies of each game how often each move was played in
+ * each position and how the games ended for the player who made it. Positions are keyed
+ * by Board.canonicalKey() and moves stored in the canonical orientation, so a line and
+ * its mirror image count together. Moves played fewer than minCount times are pruned;
+ * the rest can also be given an engine eval by a fixed depth search.
+ *
+ * The file is a 32 byte header and one 32 byte entry per move, sorted by position key
+ * and move:
+ * 		header	magic "PCFBOOK1", version, entries, plies, minCount, evalDepth, 0 (int each)
+ * 		entry	key (long), move, count, wins, losses, eval (NO_EVAL if none), 0 (int each)
+ * open() maps it and probe() binary searches it in place: there is nothing to load, the
+ * pages a lookup touches are read on demand, and lookups from many threads are safe.
+ * Usage: java OpeningBook Book_File [Archive_File ...]
+ * with -Dbook.plies=N (default 12), -Dbook.min=N (default 3), -Dbook.depth=N (default 0,
+ * no evals). Without archives, a sample archive of random games is built and checked.
+ */
+public final class OpeningBook
+{
+	/**
+	 * "PCFBOOK1".
+	 */
+	static final long MAGIC = 0x504346424F4F4B31L;
+
+	/**
+	 * Format version.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Bytes of the header.
+	 */
+	static final int HEADER = 32;
+
+	/**
+	 * Bytes of an entry.
+	 */
+	static final int ENTRY = 32;
+
+	/**
+	 * Eval of an entry built without evals.
+	 */
+	public static final int NO_EVAL = Integer.MIN_VALUE;
+
+	/**
+	 * Games added to every count when ranking moves by results, so a move won once in
+	 * one game does not beat one that scores well over many.
+	 */
+	private static final int PRIOR = 4;
+
+	/**
+	 * The mapped file.
+	 */
+	private final MappedByteBuffer map;
+
+	/**
+	 * Number of entries.
+	 */
+	private final int entries;
+
+	/**
+	 * Plies of each game counted when building.
+	 */
+	private final int plies;
+
+	/**
+	 * Whether the entries have evals.
+	 */
+	private final boolean evals;
+
+	/**
+	 * Book over a mapped file.
+	 * @param map the file, header checked
+	 */
+	private OpeningBook(MappedByteBuffer map)
+	{
+		this.map = map;
+		this.entries = map.getInt(12);
+		this.plies = map.getInt(16);
+		this.evals = map.getInt(24) > 0;
+	}
+
+	/**
+	 * Map a book file. The mapping stays valid after the file is closed.
+	 * @param file the book
+	 * @return the book
+	 * @throws IOException if the file cannot be read or is not a book
+	 */
+	public static OpeningBook open(Path file) throws IOException
+	{
+		try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			if(ch.size() < HEADER)
+				throw new IOException("Not an opening book: " + file);
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if(map.getLong(0) != MAGIC || map.getInt(8) != VERSION
+				|| ch.size() != HEADER + (long) ENTRY * map.getInt(12))
+				throw new IOException("Not an opening book: " + file);
+			return new OpeningBook(map);
+		}
+	}
+
+	/**
+	 * O(1).
+	 * @return number of entries
+	 */
+	public int size()
+	{
+		return entries;
+	}
+
+	/**
+	 * O(1).
+	 * @return plies of each game counted when building; deeper positions are not in the book
+	 */
+	public int plies()
+	{
+		return plies;
+	}
+
+	/**
+	 * The book move of a position: the legal move with the best eval, or if the book has
+	 * no evals, with the best results for the player who made it. A board with plies()
+	 * tokens or more is past the plies counted (see Board.tokens()) and returns at once.
+	 * O(log(size) + moves)
+	 * @param board the position
+	 * @return the entry of the move, -1 if the position is not in the book
+	 */
+	public int probe(Board board)
+	{
+		if(board.tokens() >= plies)
+			return -1;
+		long key = board.canonicalKey();
+		int best = -1;
+		double bestRank = 0;
+		for(int i = first(key); i < entries && key(i) == key; i++)
+		{
+			if(!board.isLegal(board.canonicalMove(move(i))))
+				continue;
+			double rank = evals ? eval(i) + count(i) / (count(i) + 1.0)
+				: (double) (wins(i) - losses(i)) / (count(i) + PRIOR);
+			if(best < 0 || rank > bestRank)
+			{
+				best = i;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * O(log(size)).
+	 * @param key position key
+	 * @return first entry whose key is not less than key
+	 */
+	int first(long key)
+	{
+		int lo = 0;
+		int hi = entries;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(key(mid) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return Board.canonicalKey() of the position
+	 */
+	public long key(int i)
+	{
+		return map.getLong(HEADER + ENTRY * i);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return the move in the canonical orientation; pass through Board.canonicalMove()
+	 */
+	public int move(int i)
+	{
+		return map.getInt(HEADER + ENTRY * i + 8);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return games in which the move was played in the position
+	 */
+	public int count(int i)
+	{
+		return map.getInt(HEADER + ENTRY * i + 12);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return those games won by the player who made the move
+	 */
+	public int wins(int i)
+	{
+		return map.getInt(HEADER + ENTRY * i + 16);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return those games lost by the player who made the move
+	 */
+	public int losses(int i)
+	{
+		return map.getInt(HEADER + ENTRY * i + 20);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return engine score of the move for the player who made it, NO_EVAL if none
+	 */
+	public int eval(int i)
+	{
+		return map.getInt(HEADER + ENTRY * i + 24);
+	}
+
+	/**
+	 * O(1).
+	 * @param i entry
+	 * @return the eval, or without evals the results of the games, scaled
+	 * (+100 for all won, -100 for all lost)
+	 */
+	public int score(int i)
+	{
+		return evals ? eval(i) : 100 * (wins(i) - losses(i)) / count(i);
+	}
+
+	/**
+	 * Counts of one move in one position.
+	 */
+	static final class Line
+	{
+		/**
+		 * Games in which the move was played.
+		 */
+		int count;
+		/**
+		 * Those won by the player who made it.
+		 */
+		int wins;
+		/**
+		 * Those lost by the player who made it.
+		 */
+		int losses;
+		/**
+		 * Engine score of the move, NO_EVAL if none.
+		 */
+		int eval = NO_EVAL;
+	}
+
+	/**
+	 * A position seen in the archives.
+	 */
+	static final class Position
+	{
+		/**
+		 * PositionCodec key of the first board seen with this canonical key, to search it again.
+		 */
+		final long high, low;
+		/**
+		 * Counts by move in the canonical orientation.
+		 */
+		final Map<Integer, Line> moves = new HashMap<>();
+
+		/**
+		 * Position without moves.
+		 * @param high high bits of the PositionCodec key
+		 * @param low low bits of the PositionCodec key
+		 */
+		Position(long high, long low)
+		{
+			this.high = high;
+			this.low = low;
+		}
+	}
+
+	/**
+	 * Counts for a part of the archives; one per stream split, merged at the end.
+	 */
+	static final class Builder
+	{
+		/**
+		 * Plies of each game counted.
+		 */
+		private final int plies;
+		/**
+		 * Board reused for every game.
+		 */
+		private final Board board = new Board();
+		/**
+		 * Empty board to reset from.
+		 */
+		private final Board empty = new Board();
+		/**
+		 * Positions of the game being replayed, until its result is known.
+		 */
+		private final Position[] gamePositions;
+		/**
+		 * Canonical moves of the game being replayed.
+		 */
+		private final int[] gameMoves;
+		/**
+		 * Player of each of those moves.
+		 */
+		private final int[] gamePlayers;
+		/**
+		 * Moves of the line being replayed, as filled by Moves.parseLine().
+		 */
+		private int[] moves = new int[256];
+
+		/**
+		 * Positions by Board.canonicalKey().
+		 */
+		final Map<Long, Position> positions = new HashMap<>();
+		/**
+		 * Games replayed.
+		 */
+		long games;
+		/**
+		 * Lines that could not be parsed.
+		 */
+		long badRecords;
+
+		/**
+		 * Empty builder.
+		 * @param plies plies of each game counted
+		 */
+		Builder(int plies)
+		{
+			this.plies = plies;
+			this.gamePositions = new Position[plies];
+			this.gameMoves = new int[plies];
+			this.gamePlayers = new int[plies];
+		}
+
+		/**
+		 * Replay one archive line.
+		 * @param line the game record
+		 */
+		void add(String line)
+		{
+			int n = line.length();
+			int pos = 0;
+			while(pos < n && line.charAt(pos) == ' ')
+			{
+				pos++;
+			}
+			if(pos == n || line.charAt(pos) == '#')
+				return;
+
+			board.copyFrom(empty);
+			int counted = 0;
+			int winner = -1;
+			moves = Moves.parseLine(line, moves);
+			for(int k = 1; k <= moves[0] && winner < 0; k++)
+			{
+				int move = moves[k];
+				if(move == Moves.NONE)
+				{
+					badRecords++;
+					return;
+				}
+				if(!board.isLegal(move))
+					continue;
+				if(counted < plies && PositionCodec.fitsKey(board))
+				{
+					gamePositions[counted] = position(board);
+					gameMoves[counted] = board.canonicalMove(move);
+					gamePlayers[counted] = board.player();
+					counted++;
+				}
+				board.make(move);
+				winner = board.winner();
+			}
+			games++;
+			for(int p = 0; p < counted; p++)
+			{
+				Line l = gamePositions[p].moves.computeIfAbsent(gameMoves[p], m -> new Line());
+				l.count++;
+				if(winner == gamePlayers[p])
+					l.wins++;
+				else if(winner >= 0)
+					l.losses++;
+			}
+		}
+
+		/**
+		 * O(1).
+		 * @param board a position that fits a PositionCodec key
+		 * @return its entry, created if new
+		 */
+		private Position position(Board board)
+		{
+			Position p = positions.get(board.canonicalKey());
+			if(p == null)
+			{
+				p = new Position(PositionCodec.keyHigh(board), PositionCodec.keyLow(board));
+				positions.put(board.canonicalKey(), p);
+			}
+			return p;
+		}
+
+		/**
+		 * Add the counts of another part.
+		 * @param other counts of another part
+		 * @return this
+		 */
+		Builder merge(Builder other)
+		{
+			games += other.games;
+			badRecords += other.badRecords;
+			for(Map.Entry<Long, Position> e : other.positions.entrySet())
+			{
+				Position p = positions.putIfAbsent(e.getKey(), e.getValue());
+				if(p == null)
+					continue;
+				for(Map.Entry<Integer, Line> m : e.getValue().moves.entrySet())
+				{
+					Line l = p.moves.putIfAbsent(m.getKey(), m.getValue());
+					if(l != null)
+					{
+						l.count += m.getValue().count;
+						l.wins += m.getValue().wins;
+						l.losses += m.getValue().losses;
+					}
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Count the first plies of every game of an archive, in parallel.
+	 * @param archive path of the archive
+	 * @param plies plies of each game counted
+	 * @return the counts
+	 * @throws IOException if the file cannot be read
+	 */
+	static Builder count(Path archive, int plies) throws IOException
+	{
+		try(Stream<String> lines = Files.lines(archive))
+		{
+			return lines.parallel().collect(Collector.of(() -> new Builder(plies), Builder::add, Builder::merge,
+				Collector.Characteristics.UNORDERED));
+		}
+		catch(UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Build a book file from archives.
+	 * @param archives archive files
+	 * @param book the book file to write, replaced if it exists
+	 * @param plies plies of each game counted
+	 * @param minCount moves played fewer times are left out
+	 * @param evalDepth depth of the search that evals each move, 0 for no evals
+	 * @return number of entries written
+	 * @throws IOException if an archive cannot be read or the book cannot be written
+	 */
+	public static int build(List<Path> archives, Path book, int plies, int minCount, int evalDepth) throws IOException
+	{
+		Builder total = new Builder(plies);
+		for(Path a : archives)
+		{
+			total.merge(count(a, plies));
+		}
+
+		// prune, eval, then sort by key and move
+		List<long[]> kept = new ArrayList<>();
+		List<Position> owners = new ArrayList<>();
+		List<Line> lines = new ArrayList<>();
+		for(Map.Entry<Long, Position> e : total.positions.entrySet())
+		{
+			for(Map.Entry<Integer, Line> m : e.getValue().moves.entrySet())
+			{
+				if(m.getValue().count < minCount)
+					continue;
+				kept.add(new long[] {e.getKey(), m.getKey(), lines.size()});
+				owners.add(e.getValue());
+				lines.add(m.getValue());
+			}
+		}
+		if(evalDepth > 0)
+		{
+			ThreadLocal<SearchEngine> engines = ThreadLocal.withInitial(() -> new SearchEngine(new TranspositionTable(1 << 18)));
+			ThreadLocal<PositionCodec> codecs = ThreadLocal.withInitial(PositionCodec::new);
+			IntStream.range(0, lines.size()).parallel().forEach(i ->
+			{
+				Board board = new Board();
+				Position p = owners.get(i);
+				codecs.get().readKey(p.high, p.low, board);
+				lines.get(i).eval = eval(engines.get(), board, board.canonicalMove((int) kept.get(i)[1]), evalDepth);
+			});
+		}
+		kept.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+		ByteBuffer b = ByteBuffer.allocate(HEADER + ENTRY * kept.size());
+		b.putLong(MAGIC).putInt(VERSION).putInt(kept.size()).putInt(plies).putInt(minCount).putInt(evalDepth).putInt(0);
+		for(long[] k : kept)
+		{
+			Line l = lines.get((int) k[2]);
+			b.putLong(k[0]).putInt((int) k[1]).putInt(l.count).putInt(l.wins).putInt(l.losses).putInt(l.eval).putInt(0);
+		}
+		b.flip();
+		try(FileChannel ch = FileChannel.open(book, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while(b.hasRemaining())
+			{
+				ch.write(b);
+			}
+		}
+		return kept.size();
+	}
+
+	/**
+	 * Engine score of a move.
+	 * @param engine the engine
+	 * @param board the position before the move, modified
+	 * @param move the move
+	 * @param depth depth of the search after the move
+	 * @return the score for the player who made the move
+	 */
+	static int eval(SearchEngine engine, Board board, int move, int depth)
+	{
+		int who = board.player();
+		board.make(move);
+		int winner = board.winner();
+		if(winner >= 0)
+			return winner == who ? SearchEngine.MATE - 1 : 1 - SearchEngine.MATE;
+		return -engine.search(board, depth, Integer.MAX_VALUE, Integer.MAX_VALUE).score;
+	}
+
+	/**
+	 * Write an archive of random games that mostly follow a few popular openings.
+	 * @param file the archive
+	 * @param games number of games
+	 * @param seed random seed
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writeSample(Path file, int games, long seed) throws IOException
+	{
+		SplittableRandom rand = new SplittableRandom(seed);
+		int[] list = new int[Board.MAX_MOVES];
+		StringBuilder s = new StringBuilder();
+		for(int g = 0; g < games; g++)
+		{
+			Board board = new Board();
+			for(int p = 0; p < 60 && board.winner() < 0; p++)
+			{
+				int move;
+				if(p < 8 && rand.nextInt(4) != 0)
+					move = Moves.encode(Moves.DROP, 2 + rand.nextInt(3), 0); // centre columns
+				else
+				{
+					int n = board.generate(list);
+					move = list[rand.nextInt(n)];
+				}
+				if(board.tryMake(move))
+					s.append(board.ply() == 1 ? "" : ";").append(Moves.toString(move));
+			}
+			s.append('\n');
+		}
+		Files.writeString(file, s, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build a book from archives and check it, or from a sample archive.
+	 * @param args book file, then archive files
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length == 0)
+		{
+			System.out.println("Usage: java OpeningBook Book_File [Archive_File ...]");
+			return;
+		}
+		int plies = Integer.getInteger("book.plies", 12);
+		int minCount = Integer.getInteger("book.min", 3);
+		int evalDepth = Integer.getInteger("book.depth", 0);
+		Path bookFile = Path.of(args[0]);
+		List<Path> archives = new ArrayList<>();
+		for(int a = 1; a < args.length; a++)
+		{
+			archives.add(Path.of(args[a]));
+		}
+		boolean sample = archives.isEmpty();
+		if(sample)
+		{
+			// a line and its mirror image count together; single games are pruned
+			Path small = Files.createTempFile("book", ".txt");
+			Files.writeString(small, "D 0;D 1\n# comment\n\nD 6;D 5\nD 3;D 3;D 4;D 4;D 2;D 2;D 1\n");
+			int n = build(List.of(small), bookFile, 2, 2, 0);
+			OpeningBook book = open(bookFile);
+			Board left = new Board();
+			left.make(Moves.parse("D 0"));
+			Board right = new Board();
+			right.make(Moves.parse("D 6"));
+			int i = book.probe(left);
+			int j = book.probe(right);
+			if(n == 1 && book.probe(new Board()) < 0 && i == 0 && j == 0 && book.count(i) == 2 && book.wins(i) == 0
+				&& left.canonicalMove(book.move(i)) == Moves.parse("D 1")
+				&& right.canonicalMove(book.move(j)) == Moves.parse("D 5"))
+				System.out.println("Yay 1");
+
+			// evals: RED with three in row 0 takes the win, not the more popular move
+			Files.writeString(small, "D 3;D 3;D 4;D 4;D 2;D 2;D 5\nD 3;D 3;D 4;D 4;D 2;D 2;D 6;D 5\nD 3;D 3;D 4;D 4;D 2;D 2;D 6;D 1\n");
+			build(List.of(small), bookFile, 8, 1, 2);
+			book = open(bookFile);
+			Board board = new Board();
+			for(String m : "D 3;D 3;D 4;D 4;D 2;D 2".split(";"))
+			{
+				board.make(Moves.parse(m));
+			}
+			i = book.probe(board);
+			int move = i < 0 ? Moves.NONE : board.canonicalMove(book.move(i));
+			if(Moves.col(move) == 5 && book.eval(i) == SearchEngine.MATE - 1 && book.count(i) == 1)
+				System.out.println("Yay 2");
+			Files.delete(small);
+
+			Path archive = Files.createTempFile("archive", ".txt");
+			writeSample(archive, 200000, 50);
+			archives.add(archive);
+		}
+
+		long start = System.nanoTime();
+		int n = build(archives, bookFile, plies, minCount, evalDepth);
+		System.out.format("%,d entries, %,d bytes, built in %d ms%n", n, Files.size(bookFile),
+			(System.nanoTime() - start) / 1000000);
+
+		start = System.nanoTime();
+		OpeningBook book = open(bookFile);
+		System.out.format("opened in %.3f ms%n", (System.nanoTime() - start) / 1e6);
+
+		// sorted, and every entry found again
+		boolean ok = true;
+		for(int i = 1; i < book.size(); i++)
+		{
+			ok &= book.key(i - 1) < book.key(i) || book.key(i - 1) == book.key(i) && book.move(i - 1) < book.move(i);
+		}
+		for(int i = 0; i < book.size(); i += Math.max(1, book.size() / 1000))
+		{
+			ok &= book.key(book.first(book.key(i))) == book.key(i);
+		}
+		if(ok)
+			System.out.println("Yay 3");
+
+		// follow the book from the empty board, then time lookups against a search
+		Board board = new Board();
+		StringBuilder line = new StringBuilder();
+		for(int i = book.probe(board); i >= 0; i = book.probe(board))
+		{
+			int move = board.canonicalMove(book.move(i));
+			line.append(' ').append(Moves.toString(move));
+			board.make(move);
+			if(board.winner() >= 0)
+				break;
+		}
+		System.out.println("book line:" + line);
+		Board root = new Board();
+		int lookups = 1000000;
+		long sum = 0;
+		start = System.nanoTime();
+		for(int k = 0; k < lookups; k++)
+		{
+			sum += book.probe(root);
+		}
+		double nanos = (double) (System.nanoTime() - start) / lookups;
+		SearchEngine.Result r = new SearchEngine().search(root, SearchEngine.MAX_PLY - 1, 400, 1000);
+		System.out.format("lookup %.0f ns, search %s%n", nanos, r);
+		if(sum != 0 && line.length() > 0 && nanos * 1000 < r.millis * 1e6)
+			System.out.println("Yay 4");
+		if(sample)
+			Files.delete(archives.get(0));
+	}
+}
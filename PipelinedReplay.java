@@ -0,0 +1,533 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Script replay for PowerConnectFourGUI split into three stages on their own threads,
+ * linked by bounded lock-free queues: the parser turns the script into commands, the
+ * engine applies them to the game and sends a frame with the changed column, and the
+ * renderer keeps its own copy of the grid and prints. The move log is printed for every
+ * step, but when the renderer falls behind it skips drawing the grid of frames that are
+ * already superseded (the last grid is always drawn). Run with -Dpipeline.frames=all
+ * to draw every grid, which gives the file mode output without the enter prompts.
+ * An instance runs one replay.
+ * Usage: java PowerConnectFourGUI --pipeline Input_File_Name
+ */
+public final class PipelinedReplay
+{
+	/**
+	 * Line between the sections of the output.
+	 */
+	private static final String LINE = "-----------------------------------------------\n";
+
+	/**
+	 * Prompt of the file mode of the GUI after each step.
+	 */
+	private static final String PROMPT = "Press enter to continue ...";
+
+	/**
+	 * Capacity of each queue.
+	 */
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Time budget of an engine move in milliseconds, as in PowerConnectFourGUI.
+	 */
+	private static final long ENGINE_MILLIS = Long.getLong("engine.millis", 1000);
+
+	/**
+	 * Frames printed between checks that the output is still being written.
+	 */
+	private static final int CHECK_FRAMES = 64;
+
+	/**
+	 * Whether every grid is drawn.
+	 */
+	private static final boolean ALL_FRAMES = "all".equals(System.getProperty("pipeline.frames"));
+
+	/**
+	 * Command types sent by the parser.
+	 */
+	private static final int MOVE = 0;
+	/**
+	 * Engine move (E).
+	 */
+	private static final int ENGINE = 1;
+	/**
+	 * Quit (Q).
+	 */
+	private static final int QUIT = 2;
+	/**
+	 * Text that is not a command, reported as an invalid move.
+	 */
+	private static final int UNKNOWN = 3;
+	/**
+	 * End of the script.
+	 */
+	private static final int END = 4;
+
+	/**
+	 * One parsed command.
+	 */
+	private static final class Command
+	{
+		/**
+		 * MOVE, ENGINE, QUIT, UNKNOWN or END.
+		 */
+		final int type;
+		/**
+		 * Encoded move for MOVE.
+		 */
+		final int move;
+		/**
+		 * The text for UNKNOWN.
+		 */
+		final String text;
+
+		/**
+		 * Command.
+		 * @param type the type
+		 * @param move encoded move for MOVE
+		 * @param text the text for UNKNOWN
+		 */
+		Command(int type, int move, String text)
+		{
+			this.type = type;
+			this.move = move;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * State change after one step, sent by the engine to the renderer.
+	 */
+	private static final class Frame
+	{
+		/**
+		 * Move log text of the step, null for frames without a step.
+		 */
+		final String text;
+		/**
+		 * Column that changed, -1 if none.
+		 */
+		final int col;
+		/**
+		 * New contents of that column from row 0 up.
+		 */
+		final Token[] column;
+		/**
+		 * sizeRow() after the step.
+		 */
+		final int rows;
+		/**
+		 * Row to keep in view, Viewport.TOP for the top of the grid.
+		 */
+		final int focus;
+		/**
+		 * Symbol of the player to move after the step.
+		 */
+		final char player;
+		/**
+		 * Symbol of the winner, 0 if none.
+		 */
+		final char winner;
+		/**
+		 * Whether the game ended with Q.
+		 */
+		final boolean quit;
+
+		/**
+		 * Frame.
+		 * @param text move log text of the step
+		 * @param col column that changed, -1 if none
+		 * @param column new contents of that column
+		 * @param rows sizeRow() after the step
+		 * @param focus row to keep in view
+		 * @param player symbol of the player to move
+		 * @param winner symbol of the winner, 0 if none
+		 * @param quit whether the game ended with Q
+		 */
+		Frame(String text, int col, Token[] column, int rows, int focus, char player, char winner, boolean quit)
+		{
+			this.text = text;
+			this.col = col;
+			this.column = column;
+			this.rows = rows;
+			this.focus = focus;
+			this.player = player;
+			this.winner = winner;
+			this.quit = quit;
+		}
+	}
+
+	/**
+	 * Whether every grid is drawn, not only the ones the renderer keeps up with.
+	 */
+	private final boolean allFrames;
+
+	/**
+	 * Whether the enter prompts of the file mode are printed too.
+	 */
+	private final boolean prompts;
+
+	/**
+	 * Parser to engine.
+	 */
+	private final SpscQueue<Command> commands = new SpscQueue<>(QUEUE_CAPACITY);
+
+	/**
+	 * Engine to renderer.
+	 */
+	private final SpscQueue<Frame> frames = new SpscQueue<>(QUEUE_CAPACITY);
+
+	/**
+	 * Set when the engine is done or the output fails, so the other stages stop early.
+	 */
+	private volatile boolean finished;
+
+	/**
+	 * First error of the parser, rethrown by run().
+	 */
+	private volatile IOException parseError;
+
+	/**
+	 * Replay with the given output options.
+	 * @param allFrames draw every grid
+	 * @param prompts also print the enter prompts, for output identical to the file mode
+	 */
+	public PipelinedReplay(boolean allFrames, boolean prompts)
+	{
+		this.allFrames = allFrames;
+		this.prompts = prompts;
+	}
+
+	/**
+	 * Parser stage: read the script with the tokenizing rules of the GUI.
+	 * @param script the script, closed at the end
+	 */
+	private void parse(BufferedReader script)
+	{
+		try(BufferedReader in = script)
+		{
+			String line;
+			while((line = in.readLine()) != null && !finished)
+			{
+				String[] tokens = line.trim().split("\\s+");
+				int t = 0;
+				while(t < tokens.length && !tokens[t].isEmpty())
+				{
+					String cmd = tokens[t++];
+					Command c;
+					switch(cmd)
+					{
+						case "D":
+						case "P":
+						case "PD":
+						case "PP":
+							int args = cmd.length() == 1 ? 1 : 2;
+							StringBuilder move = new StringBuilder(cmd);
+							for(int a = 0; a < args && t + a < tokens.length; a++)
+							{
+								move.append(' ').append(tokens[t + a]);
+							}
+							c = new Command(MOVE, Moves.parse(move.toString()), null);
+							if(c.move == Moves.NONE)
+								c = new Command(UNKNOWN, 0, move.toString());
+							t = tokens.length; //the GUI skips the rest of the line
+							break;
+						case "E":
+							c = new Command(ENGINE, 0, null);
+							t = tokens.length;
+							break;
+						case "Q":
+							c = new Command(QUIT, 0, null);
+							break;
+						default:
+							c = new Command(UNKNOWN, 0, cmd);
+					}
+					if(!commands.put(c, () -> finished))
+						return;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			parseError = e;
+		}
+		finally
+		{
+			commands.put(new Command(END, 0, null), () -> finished);
+		}
+	}
+
+	/**
+	 * Engine stage: apply the commands and send frames. The win check runs on a Board
+	 * kept in step with the game (only the changed column is checked), falling back to
+	 * the full scan of the GUI if a column outgrows Board.MAX_HEIGHT.
+	 */
+	private void play()
+	{
+		try
+		{
+			playAll();
+		}
+		finally
+		{
+			finished = true;
+			frames.put(new Frame(null, -1, null, 0, Viewport.TOP, ' ', (char) 0, false), () -> false);
+		}
+	}
+
+	/**
+	 * Apply commands until the end of the script, a winner or Q.
+	 */
+	private void playAll()
+	{
+		PowerConnectFour game = new PowerConnectFour();
+		Board board = new Board();
+		SearchEngine engine = null;
+		int step = 0;
+		int moves = 0;
+		int focus = Viewport.TOP;
+		Token winner = null;
+		StringBuilder text = new StringBuilder();
+		while(!finished)
+		{
+			Command c = commands.take();
+			if(c.type == END)
+				break;
+			if(c.type == QUIT)
+			{
+				frames.put(new Frame(null, -1, null, game.sizeRow(), focus, ' ', (char) 0, true), () -> false);
+				GameEvents.gameEnded(game, null, moves);
+				return;
+			}
+			step++;
+			Token player = game.currentPlayer();
+			text.setLength(0);
+			text.append(' ').append(step).append(": Move by player ").append(player.getSymbol()).append(" : ");
+			int move = Moves.NONE;
+			if(c.type == MOVE)
+			{
+				move = c.move;
+				describe(text, move);
+			}
+			else if(c.type == ENGINE)
+			{
+				if(engine == null)
+					engine = new SearchEngine();
+				try
+				{
+					SearchEngine.Result result = engine.bestMove(game, ENGINE_MILLIS);
+					move = result.move;
+					text.append("Engine ").append(Moves.toString(move)).append(" (").append(result).append("): ");
+				}
+				catch(IllegalArgumentException e)
+				{
+					text.append("Engine: ").append(e.getMessage()).append(": ");
+				}
+			}
+			else
+				text.append(c.text).append(' ');
+
+			boolean valid = move != Moves.NONE && Moves.apply(game, move);
+			text.append(valid ? "Valid Move" : "Invalid Move");
+			int col = -1;
+			Token[] column = null;
+			if(valid)
+			{
+				moves++;
+				focus = Viewport.focus(game, move);
+				col = Moves.col(move);
+				column = new Token[game.getColumn(col).size()];
+				for(int r = 0; r < column.length; r++)
+				{
+					column[r] = game.get(col, r);
+				}
+				if(board != null && board.isLegal(move))
+				{
+					board.make(move);
+					int w = board.winnerAfter(col);
+					winner = w < 0 ? null : Token.values()[w];
+				}
+				else
+				{
+					board = null;
+					winner = game.hasFourConnected(player) ? player
+						: game.hasFourConnected(game.currentPlayer()) ? game.currentPlayer() : null;
+				}
+			}
+			frames.put(new Frame(text.toString(), col, column, game.sizeRow(), focus, game.currentPlayer().getSymbol(),
+				winner == null ? 0 : winner.getSymbol(), false), () -> false);
+			if(winner != null)
+				break;
+		}
+		GameEvents.gameEnded(game, winner, moves);
+	}
+
+	/**
+	 * Append the move log text of a move in the words of the GUI.
+	 * @param text where to append
+	 * @param move encoded move
+	 */
+	private static void describe(StringBuilder text, int move)
+	{
+		int col = Moves.col(move);
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				text.append("Drop ").append(col).append(": ");
+				break;
+			case Moves.POP:
+				text.append("Pop ").append(col).append(": ");
+				break;
+			case Moves.POWER_DROP:
+				text.append("Power Drop Column ").append(col).append(" Row ").append(Moves.row(move)).append(": ");
+				break;
+			default:
+				text.append("Power Pop Column ").append(col).append(" Row ").append(Moves.row(move)).append(": ");
+		}
+	}
+
+	/**
+	 * Renderer stage: print the frames in order on the calling thread.
+	 * @param out where to print
+	 */
+	private void render(PrintStream out)
+	{
+		int cols = Board.NUM_COLS;
+		Token[][] grid = new Token[cols][0];
+		int rows = 6;
+		StringBuilder s = new StringBuilder();
+		s.append(LINE).append("- Starting Game\n").append(LINE);
+		drawGrid(s, grid, rows, Viewport.TOP);
+		s.append("Player R's turn\n");
+		if(prompts)
+			s.append(PROMPT);
+		out.append(s);
+		for(int n = 1; true; n++)
+		{
+			if(n % CHECK_FRAMES == 0 && out.checkError())
+			{
+				//nobody reads the output any more: stop the engine and let it finish
+				finished = true;
+				for(Frame f = frames.take(); f.text != null || f.quit; f = frames.take())
+				{
+				}
+				return;
+			}
+			Frame f = frames.take();
+			s.setLength(0);
+			if(f.quit)
+			{
+				out.append(s.append(LINE).append(" - Ending Game\n").append(LINE));
+				return;
+			}
+			if(f.text == null)
+				break;
+			if(f.col >= 0)
+				grid[f.col] = f.column;
+			rows = f.rows;
+			s.append(LINE).append(f.text).append('\n').append(LINE);
+			if(allFrames || f.winner != 0 || frames.size() == 0)
+				drawGrid(s, grid, rows, f.focus);
+			if(f.winner != 0)
+				s.append(LINE).append(" Winner: ").append(f.winner).append("!\n");
+			else
+			{
+				s.append("Player ").append(f.player).append("'s turn\n");
+				if(prompts)
+					s.append(PROMPT);
+			}
+			out.append(s);
+		}
+		out.append(LINE).append(" - Ending Game\n").append(LINE);
+	}
+
+	/**
+	 * Append the grid as PowerConnectFourGUI.displayGrid() prints it, windowed by
+	 * Viewport.ROWS.
+	 * @param s where to append
+	 * @param grid tokens of each column from row 0 up
+	 * @param rows number of rows of the grid
+	 * @param focus row to keep in view
+	 */
+	private static void drawGrid(StringBuilder s, Token[][] grid, int rows, int focus)
+	{
+		int top = Viewport.top(rows, focus, Viewport.ROWS);
+		int bottom = Viewport.bottom(rows, focus, Viewport.ROWS);
+		s.append("|   |");
+		for(int c = 0; c < grid.length; c++)
+		{
+			s.append("| ").append(c).append(" |");
+		}
+		s.append('\n');
+		if(top < rows - 1)
+			Viewport.appendHidden(s, true, top + 1, rows - 1);
+		for(int r = top; r >= bottom; r--)
+		{
+			s.append("| ").append(r).append(" |");
+			for(Token[] column : grid)
+			{
+				s.append("| ").append(r < column.length ? column[r].getSymbol() : '-').append(" |");
+			}
+			s.append('\n');
+		}
+		if(bottom > 0)
+			Viewport.appendHidden(s, false, 0, bottom - 1);
+	}
+
+	/**
+	 * Replay a script file through the three stages, drawing grids as set by
+	 * -Dpipeline.frames.
+	 * @param script the script file
+	 * @param output where to print
+	 * @throws IOException if the script cannot be read
+	 */
+	public static void run(Path script, OutputStream output) throws IOException
+	{
+		new PipelinedReplay(ALL_FRAMES, false).replay(Files.newBufferedReader(script), output);
+	}
+
+	/**
+	 * Replay a script through the three stages; the calling thread renders.
+	 * @param script the script, closed at the end
+	 * @param output where to print, flushed but not closed
+	 * @throws IOException if the script cannot be read or the output written
+	 */
+	public void replay(BufferedReader script, OutputStream output) throws IOException
+	{
+		Thread parser = new Thread(() -> parse(script), "replay-parser");
+		Thread engine = new Thread(this::play, "replay-engine");
+		parser.setDaemon(true);
+		engine.setDaemon(true);
+		parser.start();
+		engine.start();
+		PrintStream out = new PrintStream(new BufferedOutputStream(output, 1 << 16), false);
+		render(out);
+		out.flush();
+		if(out.checkError())
+			throw new IOException("Error writing the output");
+		if(parseError != null)
+			throw parseError;
+	}
+
+	/**
+	 * Replay a script, e.g. to time it against the file mode of the GUI.
+	 * @param args the script file
+	 * @throws IOException if the script cannot be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 1)
+		{
+			System.out.println("Usage: java PipelinedReplay Input_File_Name");
+			return;
+		}
+		run(Path.of(args[0]), System.out);
+	}
+}
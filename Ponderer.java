@@ -0,0 +1,261 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Background search while the opponent thinks. After the engine moved, start() ranks
+ * the opponent's replies, the one its principal variation expects first and the others
+ * by a one ply search, and then searches the position after each of the most likely
+ * ones, with the same budget as an engine move, on a daemon thread.
+ * Its SearchEngine shares the transposition table of the engine that plays, so even an
+ * abandoned search leaves entries that make the next real search faster. When the
+ * actual reply was searched to the end, hit() returns that result right away.
+ */
+public final class Ponderer
+{
+	/**
+	 * Number of replies searched, set with -Dponder.replies=...
+	 */
+	public static final int REPLIES = Math.max(1, Integer.getInteger("ponder.replies", 4));
+
+	/**
+	 * Engine of the background thread.
+	 */
+	private final SearchEngine engine;
+
+	/**
+	 * Time budget of each search in milliseconds.
+	 */
+	private final long millis;
+
+	/**
+	 * Number of replies searched.
+	 */
+	private final int replies;
+
+	/**
+	 * Finished searches by Board.hash() of the position searched.
+	 */
+	private final Map<Long, SearchEngine.Result> results = new ConcurrentHashMap<>();
+
+	/**
+	 * Set by stop() so the thread does not start another search.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * The pondering thread, null if none was started.
+	 */
+	private Thread thread;
+
+	/**
+	 * Ponderer filling a shared transposition table.
+	 * @param table table of the engine that plays
+	 * @param millis time budget of an engine move
+	 * @param replies number of replies searched
+	 */
+	public Ponderer(TranspositionTable table, long millis, int replies)
+	{
+		this.engine = new SearchEngine(table);
+		this.millis = millis;
+		this.replies = replies;
+	}
+
+	/**
+	 * Stop pondering and start over on a new position, forgetting earlier results.
+	 * @param position position with the opponent to move, copied
+	 */
+	public void start(Board position)
+	{
+		start(position, Moves.NONE);
+	}
+
+	/**
+	 * Stop pondering and start over on a new position, forgetting earlier results.
+	 * @param position position with the opponent to move, copied
+	 * @param expected reply to search first, usually the second move of the principal
+	 * variation, or Moves.NONE
+	 */
+	public void start(Board position, int expected)
+	{
+		stop();
+		results.clear();
+		cancelled = false;
+		Board board = new Board();
+		board.copyFrom(position);
+		thread = new Thread(() -> ponder(board, expected), "ponder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Abandon the running search and wait for the thread to end. Finished results stay
+	 * available to hit(). Call from the thread that called start().
+	 */
+	public void stop()
+	{
+		if(thread == null)
+			return;
+		cancelled = true;
+		boolean interrupted = false;
+		while(thread.isAlive())
+		{
+			engine.stop(); // again, in case a search started after the last call
+			try
+			{
+				thread.join(1);
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		thread = null;
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * O(1).
+	 * @param position the position to move in
+	 * @return the finished search of the position, null if it was not pondered
+	 */
+	public SearchEngine.Result hit(Board position)
+	{
+		return results.get(position.hash());
+	}
+
+	/**
+	 * O(1).
+	 * @return number of replies searched to the end since the last start()
+	 */
+	public int pondered()
+	{
+		return results.size();
+	}
+
+	/**
+	 * Body of the thread: search the likely replies until done or cancelled.
+	 * @param board position with the opponent to move, owned by the thread
+	 * @param expected reply to search first, or Moves.NONE
+	 */
+	private void ponder(Board board, int expected)
+	{
+		int[] list = new int[Board.MAX_MOVES];
+		int n = likelyReplies(board, list);
+		for(int i = 0; i < n; i++)
+		{
+			if(list[i] == expected)
+			{
+				System.arraycopy(list, 0, list, 1, i);
+				list[0] = expected;
+				break;
+			}
+		}
+		n = Math.min(replies, n);
+		for(int i = 0; i < n && !cancelled; i++)
+		{
+			board.make(list[i]);
+			SearchEngine.Result r = engine.search(board, SearchEngine.MAX_PLY - 1, millis * 2 / 5, millis);
+			if(!cancelled)
+				results.put(board.hash(), r);
+			board.unmake(list[i]);
+		}
+	}
+
+	/**
+	 * Replies of the opponent, best for them first by a one ply search. Replies that
+	 * win on the spot are left out, there is nothing to search after them.
+	 * @param board position with the opponent to move, unchanged on return
+	 * @param out array to fill, at least Board.MAX_MOVES long
+	 * @return number of replies
+	 */
+	int likelyReplies(Board board, int[] out)
+	{
+		int n = board.generate(out);
+		int[] scores = new int[n];
+		int kept = 0;
+		for(int i = 0; i < n && !cancelled; i++)
+		{
+			int move = out[i];
+			board.make(move);
+			if(board.winnerAfter(Moves.col(move)) < 0)
+			{
+				// score for us, the player to move after the reply: lower is better for them
+				int score = engine.search(board, 1, millis, millis).score;
+				int k = kept++;
+				for(; k > 0 && scores[k - 1] > score; k--)
+				{
+					scores[k] = scores[k - 1];
+					out[k] = out[k - 1];
+				}
+				scores[k] = score;
+				out[k] = move;
+			}
+			board.unmake(move);
+		}
+		return kept;
+	}
+
+	/**
+	 * Engine move after each of the likely replies, cold and after pondering.
+	 * @param args time budget in milliseconds, default 1000
+	 */
+	public static void main(String[] args)
+	{
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		// RED has three in row 0, open at both ends
+		Board board = new Board();
+		for(int move : new int[] {Moves.encode(Moves.DROP, 3, 0), Moves.encode(Moves.DROP, 3, 0),
+			Moves.encode(Moves.DROP, 2, 0), Moves.encode(Moves.DROP, 2, 0), Moves.encode(Moves.DROP, 4, 0)})
+		{
+			board.make(move);
+		}
+		int[] list = new int[Board.MAX_MOVES];
+		Ponderer ranking = new Ponderer(new TranspositionTable(1 << 16), millis, REPLIES);
+		int n = ranking.likelyReplies(board, list);
+		SearchEngine check = new SearchEngine(new TranspositionTable(1 << 16));
+		board.make(list[0]);
+		int first = check.search(board, 1, millis, millis).score;
+		board.unmake(list[0]);
+		board.make(list[n - 1]);
+		int last = check.search(board, 1, millis, millis).score;
+		board.unmake(list[n - 1]);
+		// only a reply that breaks the row keeps RED from winning at once
+		if(n == board.generate(new int[Board.MAX_MOVES]) && first < SearchEngine.MATE - SearchEngine.MAX_PLY
+			&& last == SearchEngine.MATE - 1)
+			System.out.println("Yay 1");
+
+		SearchEngine cold = new SearchEngine();
+		SearchEngine warm = new SearchEngine();
+		Ponderer ponderer = new Ponderer(warm.table(), millis, REPLIES);
+		ponderer.start(board);
+		try
+		{
+			Thread.sleep(millis * (REPLIES + 1));
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		ponderer.stop();
+		if(ponderer.pondered() == REPLIES)
+			System.out.println("Yay 2");
+
+		boolean same = true;
+		for(int i = 0; i < Math.min(n, REPLIES + 2); i++)
+		{
+			board.make(list[i]);
+			SearchEngine.Result r = cold.search(board, SearchEngine.MAX_PLY - 1, millis * 2 / 5, millis);
+			long start = System.nanoTime();
+			SearchEngine.Result hit = ponderer.hit(board);
+			SearchEngine.Result w = hit != null ? hit : warm.search(board, SearchEngine.MAX_PLY - 1, millis * 2 / 5, millis);
+			double took = (System.nanoTime() - start) / 1e6;
+			System.out.format("reply %-8s cold: depth %2d in %4d ms   %s: depth %2d in %7.2f ms%n", Moves.toString(list[i]),
+				r.depth, r.millis, hit != null ? "ponder hit" : "warm table", w.depth, took);
+			same &= i >= REPLIES || hit != null && took < 1;
+			board.unmake(list[i]);
+		}
+		if(same)
+			System.out.println("Yay 3");
+	}
+}
@@ -0,0 +1,617 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Serialized forms of a position, so caches, archives, the validator and people can
+ * pass positions around without rendering or building PowerConnectFour objects.
+ * 		text		columns from 0 to 6 separated by '/', each its tokens from the bottom as
+ * 					R or Y, a run of three or more as the symbol and its length; then a
+ * 					space and the player to move, e.g. "/Y/RRY/R4/R//Y R"
+ * 		key			128 bits as two longs: the Board.code() of column c in bits
+ * 					[18c, 18c + 18) and the player to move in bit 126, for columns of at
+ * 					most KEY_HEIGHT tokens. Equal positions have equal keys, so the two
+ * 					longs can be used as they are in hash maps and sorted indexes.
+ * 		variable	bytes: the player to move, then per column its height as a varint and
+ * 					its owner bits, 8 rows per byte from the bottom, for columns of any height
+ * Positions read back have no move history, so Board.ply() is the number of tokens.
+ * Encoding and decoding boards do not allocate; one codec per thread, it keeps scratch
+ * space. Malformed input makes the read methods return false, as Moves.parse() returns
+ * NONE.
+ */
+public final class PositionCodec
+{
+	/**
+	 * Tallest column a key can hold.
+	 */
+	public static final int KEY_HEIGHT = 17;
+
+	/**
+	 * Bits per column in a key.
+	 */
+	private static final int KEY_BITS = KEY_HEIGHT + 1;
+
+	/**
+	 * Bit of the key, counted from bit 0 of the low long, holding the player to move.
+	 */
+	private static final int KEY_SIDE = 126;
+
+	/**
+	 * Column separator of the text form.
+	 */
+	private static final char SEPARATOR = '/';
+
+	/**
+	 * Runs at least this long are written with a count.
+	 */
+	private static final int MIN_RUN = 3;
+
+	/**
+	 * Column codes being decoded.
+	 */
+	private final long[] codes = new long[Board.NUM_COLS];
+
+	/**
+	 * Codec with its own scratch space.
+	 */
+	public PositionCodec()
+	{
+	}
+
+	/**
+	 * Append the text form of a board. O(tokens)
+	 * @param board the position
+	 * @param out where to write
+	 * @return out
+	 */
+	public static StringBuilder appendText(Board board, StringBuilder out)
+	{
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(c > 0)
+				out.append(SEPARATOR);
+			long bits = board.bits(c);
+			int h = board.height(c);
+			for(int r = 0; r < h;)
+			{
+				int who = (int) (bits >>> r) & 1;
+				int run = 1;
+				while(r + run < h && ((bits >>> (r + run)) & 1) == who)
+				{
+					run++;
+				}
+				appendRun(out, who, run);
+				r += run;
+			}
+		}
+		return out.append(' ').append(symbol(board.player()));
+	}
+
+	/**
+	 * Append the text form of a game, whatever the height of its columns. O(tokens)
+	 * @param game the game
+	 * @param out where to write
+	 * @return out
+	 */
+	public static StringBuilder appendText(PowerConnectFour game, StringBuilder out)
+	{
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(c > 0)
+				out.append(SEPARATOR);
+			int h = game.getColumn(c).size();
+			for(int r = 0; r < h;)
+			{
+				Token t = game.get(c, r);
+				int run = 1;
+				while(r + run < h && game.get(c, r + run) == t)
+				{
+					run++;
+				}
+				appendRun(out, t.ordinal(), run);
+				r += run;
+			}
+		}
+		return out.append(' ').append(game.currentPlayer().getSymbol().charValue());
+	}
+
+	/**
+	 * Append a run of one player's tokens.
+	 * @param out where to write
+	 * @param who 0 for RED, 1 for YELLOW
+	 * @param run number of tokens
+	 */
+	private static void appendRun(StringBuilder out, int who, int run)
+	{
+		char s = symbol(who);
+		if(run >= MIN_RUN)
+			out.append(s).append(run);
+		else
+		{
+			for(int k = 0; k < run; k++)
+			{
+				out.append(s);
+			}
+		}
+	}
+
+	/**
+	 * O(1).
+	 * @param who 0 for RED, 1 for YELLOW
+	 * @return the player's symbol
+	 */
+	private static char symbol(int who)
+	{
+		return who == 0 ? 'R' : 'Y';
+	}
+
+	/**
+	 * O(1).
+	 * @param c a character
+	 * @return 0 for R, 1 for Y, -1 for anything else
+	 */
+	private static int player(char c)
+	{
+		return c == 'R' ? 0 : c == 'Y' ? 1 : -1;
+	}
+
+	/**
+	 * Read the text form into a board without allocating. O(length)
+	 * @param s the text
+	 * @param board where to put the position, unchanged if the text is malformed
+	 * @return false if the text is not a position or a column is taller than Board.MAX_HEIGHT
+	 */
+	public boolean parse(CharSequence s, Board board)
+	{
+		int n = s.length();
+		int pos = 0;
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(c > 0)
+			{
+				if(pos >= n || s.charAt(pos) != SEPARATOR)
+					return false;
+				pos++;
+			}
+			long bits = 0;
+			int h = 0;
+			while(pos < n && player(s.charAt(pos)) >= 0)
+			{
+				int who = player(s.charAt(pos++));
+				int start = pos;
+				int run = 0;
+				while(pos < n && s.charAt(pos) >= '0' && s.charAt(pos) <= '9' && pos - start < 3)
+				{
+					run = run * 10 + s.charAt(pos++) - '0';
+				}
+				if(pos > start && run == 0)
+					return false;
+				run = Math.max(run, 1);
+				if(h + run > Board.MAX_HEIGHT)
+					return false;
+				if(who == 1)
+					bits |= ((1L << run) - 1) << h;
+				h += run;
+			}
+			codes[c] = bits | 1L << h;
+		}
+		if(pos + 2 != n || s.charAt(pos) != ' ' || player(s.charAt(pos + 1)) < 0)
+			return false;
+		board.setPosition(codes, player(s.charAt(pos + 1)), tokens());
+		return true;
+	}
+
+	/**
+	 * Read the text form of a game, whatever the height of its columns. O(length)
+	 * @param s the text
+	 * @return a new game, null if the text is not a position
+	 */
+	public static PowerConnectFour parseGame(CharSequence s)
+	{
+		int n = s.length();
+		int pos = 0;
+		Token[][] columns = new Token[Board.NUM_COLS][];
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(c > 0)
+			{
+				if(pos >= n || s.charAt(pos) != SEPARATOR)
+					return null;
+				pos++;
+			}
+			Token[] column = new Token[8];
+			int h = 0;
+			while(pos < n && player(s.charAt(pos)) >= 0)
+			{
+				Token t = Token.values()[player(s.charAt(pos++))];
+				int start = pos;
+				int run = 0;
+				while(pos < n && s.charAt(pos) >= '0' && s.charAt(pos) <= '9' && pos - start < 5)
+				{
+					run = run * 10 + s.charAt(pos++) - '0';
+				}
+				if(pos > start && run == 0)
+					return null;
+				run = Math.max(run, 1);
+				while(h + run > column.length)
+				{
+					column = Arrays.copyOf(column, column.length * 2);
+				}
+				for(int k = 0; k < run; k++)
+				{
+					column[h++] = t;
+				}
+			}
+			columns[c] = Arrays.copyOf(column, h);
+		}
+		if(pos + 2 != n || s.charAt(pos) != ' ' || player(s.charAt(pos + 1)) < 0)
+			return null;
+		return new PowerConnectFour(columns, Token.values()[player(s.charAt(pos + 1))]);
+	}
+
+	/**
+	 * O(1).
+	 * @param board a position
+	 * @return whether every column fits in a key
+	 */
+	public static boolean fitsKey(Board board)
+	{
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(board.height(c) > KEY_HEIGHT)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Low 64 bits of the key of a board. O(cols)
+	 * @param board a position that fitsKey()
+	 * @return bits 0 to 63 of the key
+	 */
+	public static long keyLow(Board board)
+	{
+		long low = 0;
+		for(int c = 0; c < Board.NUM_COLS && KEY_BITS * c < 64; c++)
+		{
+			low |= board.code(c) << (KEY_BITS * c);
+		}
+		return low;
+	}
+
+	/**
+	 * High 64 bits of the key of a board. O(cols)
+	 * @param board a position that fitsKey()
+	 * @return bits 64 to 127 of the key
+	 */
+	public static long keyHigh(Board board)
+	{
+		long high = (long) board.player() << (KEY_SIDE - 64);
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int shift = KEY_BITS * c - 64;
+			if(shift >= 0)
+				high |= board.code(c) << shift;
+			else if(shift > -KEY_BITS)
+				high |= board.code(c) >>> -shift;
+		}
+		return high;
+	}
+
+	/**
+	 * Read a key into a board without allocating. O(cols)
+	 * @param high bits 64 to 127 of the key
+	 * @param low bits 0 to 63 of the key
+	 * @param board where to put the position, unchanged if the key is not valid
+	 * @return false if the key is not a position
+	 */
+	public boolean readKey(long high, long low, Board board)
+	{
+		long mask = (1L << KEY_BITS) - 1;
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int shift = KEY_BITS * c;
+			long code;
+			if(shift + KEY_BITS <= 64)
+				code = low >>> shift;
+			else if(shift >= 64)
+				code = high >>> (shift - 64);
+			else
+				code = low >>> shift | high << (64 - shift);
+			codes[c] = code & mask;
+			if(codes[c] == 0)
+				return false;
+		}
+		if(high >>> (KEY_SIDE + 1 - 64) != 0)
+			return false;
+		board.setPosition(codes, (int) (high >>> (KEY_SIDE - 64)) & 1, tokens());
+		return true;
+	}
+
+	/**
+	 * Write the variable length form of a board. O(tokens)
+	 * @param board the position
+	 * @param out where to write, with at least maxVariableBytes() remaining
+	 */
+	public static void write(Board board, ByteBuffer out)
+	{
+		out.put((byte) board.player());
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = board.height(c);
+			putVarint(out, h);
+			long bits = board.bits(c);
+			for(int r = 0; r < h; r += 8)
+			{
+				out.put((byte) (bits >>> r));
+			}
+		}
+	}
+
+	/**
+	 * Write the variable length form of a game, whatever the height of its columns. O(tokens)
+	 * @param game the game
+	 * @param out where to write, with enough bytes remaining: 1 + per column 5 + height / 8 + 1
+	 */
+	public static void write(PowerConnectFour game, ByteBuffer out)
+	{
+		out.put((byte) game.currentPlayer().ordinal());
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = game.getColumn(c).size();
+			putVarint(out, h);
+			int b = 0;
+			for(int r = 0; r < h; r++)
+			{
+				if(game.get(c, r) == Token.YELLOW)
+					b |= 1 << (r & 7);
+				if((r & 7) == 7 || r == h - 1)
+				{
+					out.put((byte) b);
+					b = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * O(1).
+	 * @return bytes of the longest variable length form of a Board
+	 */
+	public static int maxVariableBytes()
+	{
+		return 1 + Board.NUM_COLS * (1 + (Board.MAX_HEIGHT + 7) / 8);
+	}
+
+	/**
+	 * Read the variable length form into a board without allocating. O(tokens)
+	 * @param in where to read, positioned after the form on success
+	 * @param board where to put the position, unchanged if the form is not valid
+	 * @return false if the bytes are not a position or a column is taller than Board.MAX_HEIGHT
+	 */
+	public boolean read(ByteBuffer in, Board board)
+	{
+		if(!in.hasRemaining())
+			return false;
+		int start = in.position();
+		int who = in.get();
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = getVarint(in);
+			if(h < 0 || h > Board.MAX_HEIGHT || in.remaining() < (h + 7) / 8)
+			{
+				in.position(start);
+				return false;
+			}
+			long bits = 0;
+			for(int r = 0; r < h; r += 8)
+			{
+				bits |= (in.get() & 0xFFL) << r;
+			}
+			codes[c] = bits & ((1L << h) - 1) | 1L << h;
+		}
+		if(who != 0 && who != 1)
+		{
+			in.position(start);
+			return false;
+		}
+		board.setPosition(codes, who, tokens());
+		return true;
+	}
+
+	/**
+	 * Read the variable length form of a game, whatever the height of its columns. O(tokens)
+	 * @param in where to read, positioned after the form on success
+	 * @return a new game, null if the bytes are not a position
+	 */
+	public static PowerConnectFour readGame(ByteBuffer in)
+	{
+		if(!in.hasRemaining())
+			return null;
+		int start = in.position();
+		int who = in.get();
+		Token[][] columns = new Token[Board.NUM_COLS][];
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			int h = getVarint(in);
+			if(h < 0 || in.remaining() < (h + 7L) / 8 || who != 0 && who != 1)
+			{
+				in.position(start);
+				return null;
+			}
+			columns[c] = new Token[h];
+			int b = 0;
+			for(int r = 0; r < h; r++)
+			{
+				if((r & 7) == 0)
+					b = in.get();
+				columns[c][r] = (b >>> (r & 7) & 1) == 0 ? Token.RED : Token.YELLOW;
+			}
+		}
+		return new PowerConnectFour(columns, who == 0 ? Token.RED : Token.YELLOW);
+	}
+
+	/**
+	 * Write an unsigned varint, 7 bits per byte, low bits first.
+	 * @param out where to write
+	 * @param v value, not negative
+	 */
+	private static void putVarint(ByteBuffer out, int v)
+	{
+		while(v >= 0x80)
+		{
+			out.put((byte) (v | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	/**
+	 * Read an unsigned varint.
+	 * @param in where to read
+	 * @return the value, -1 if it is cut short or does not fit in an int
+	 */
+	private static int getVarint(ByteBuffer in)
+	{
+		int v = 0;
+		for(int shift = 0; shift < 32; shift += 7)
+		{
+			if(!in.hasRemaining())
+				return -1;
+			int b = in.get();
+			v |= (b & 0x7F) << shift;
+			if(b >= 0)
+				return v < 0 ? -1 : v;
+		}
+		return -1;
+	}
+
+	/**
+	 * O(cols).
+	 * @return number of tokens in codes
+	 */
+	private int tokens()
+	{
+		int n = 0;
+		for(long code : codes)
+		{
+			n += 63 - Long.numberOfLeadingZeros(code);
+		}
+		return n;
+	}
+
+	/**
+	 * Round trips of random positions through every form, then time them.
+	 * @param args not used
+	 */
+	public static void main(String[] args)
+	{
+		PositionCodec codec = new PositionCodec();
+		Board board = new Board();
+		for(int move : new int[] {Moves.encode(Moves.DROP, 2, 0), Moves.encode(Moves.DROP, 1, 0),
+			Moves.encode(Moves.DROP, 2, 0), Moves.encode(Moves.DROP, 2, 0), Moves.encode(Moves.POWER_DROP, 2, 0)})
+		{
+			board.make(move);
+		}
+		String text = appendText(board, new StringBuilder()).toString();
+		Board back = new Board();
+		if(text.equals("/Y/R3Y//// Y") && codec.parse(text, back) && back.hash() == board.hash()
+			&& codec.parse("R3Y2//////Y R", back) && back.height(0) == 5 && back.get(0, 3) == 1 && back.height(6) == 1
+			&& !codec.parse("R3Y2///// R", back) && !codec.parse("///////R R", back) && !codec.parse("R0////// R", back))
+			System.out.println("Yay 1");
+
+		Random rand = new Random(310);
+		int[] list = new int[Board.MAX_MOVES];
+		ByteBuffer buf = ByteBuffer.allocate(maxVariableBytes());
+		StringBuilder s = new StringBuilder();
+		Board[] boards = new Board[4096];
+		boolean same = true;
+		for(int i = 0; i < boards.length; i++)
+		{
+			Board b = new Board();
+			int plies = rand.nextInt(60);
+			for(int p = 0; p < plies; p++)
+			{
+				int move = list[rand.nextInt(b.generate(list))];
+				if(Moves.kind(move) == Moves.POWER_DROP || b.height(Moves.col(move)) < KEY_HEIGHT)
+					b.make(move);
+			}
+			boards[i] = b;
+			s.setLength(0);
+			same &= codec.parse(appendText(b, s), back) && back.hash() == b.hash();
+			same &= !fitsKey(b) || codec.readKey(keyHigh(b), keyLow(b), back) && back.hash() == b.hash();
+			buf.clear();
+			write(b, buf);
+			buf.flip();
+			same &= codec.read(buf, back) && back.hash() == b.hash() && !buf.hasRemaining();
+			PowerConnectFour game = new PowerConnectFour(b);
+			s.setLength(0);
+			same &= appendText(game, s).toString().equals(appendText(b, new StringBuilder()).toString());
+			same &= Board.of(parseGame(s)).hash() == b.hash();
+		}
+		if(same)
+			System.out.println("Yay 2");
+
+		// a tall powerDrop column only fits the variable and text forms of a game
+		PowerConnectFour tall = new PowerConnectFour();
+		for(int k = 0; k < 100; k++)
+		{
+			tall.powerDrop(3, 0);
+		}
+		ByteBuffer big = ByteBuffer.allocate(64);
+		write(tall, big);
+		big.flip();
+		PowerConnectFour tallBack = readGame(big);
+		s.setLength(0);
+		String tallText = appendText(tall, s).toString();
+		if(tallBack != null && tallBack.getColumn(3).size() == 100 && tallBack.get(3, 0) == Token.YELLOW
+			&& tallBack.get(3, 99) == Token.RED && tallBack.currentPlayer() == Token.RED
+			&& tallText.startsWith("///YRYRYR") && appendText(parseGame(tallText), new StringBuilder()).toString().equals(tallText)
+			&& !codec.parse(tallText, back))
+			System.out.println("Yay 3");
+
+		// malformed forms are rejected, not read past the end or allocated for
+		ByteBuffer empty = ByteBuffer.allocate(0);
+		ByteBuffer huge = ByteBuffer.wrap(new byte[] {0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7});
+		ByteBuffer cut = ByteBuffer.wrap(new byte[] {0, 9, 1});
+		if(!codec.read(empty, back) && readGame(empty) == null && readGame(huge) == null && huge.position() == 0
+			&& !codec.read(huge, back) && huge.position() == 0 && readGame(cut) == null && !codec.read(cut, back))
+			System.out.println("Yay 4");
+
+		long sink = 0;
+		long bestText = Long.MAX_VALUE;
+		long bestKey = Long.MAX_VALUE;
+		long bestVar = Long.MAX_VALUE;
+		for(int round = 0; round < 100; round++)
+		{
+			long start = System.nanoTime();
+			for(Board b : boards)
+			{
+				s.setLength(0);
+				appendText(b, s);
+				codec.parse(s, back);
+				sink += back.ply();
+			}
+			bestText = Math.min(bestText, System.nanoTime() - start);
+			start = System.nanoTime();
+			for(Board b : boards)
+			{
+				if(codec.readKey(keyHigh(b), keyLow(b), back))
+					sink += back.ply();
+			}
+			bestKey = Math.min(bestKey, System.nanoTime() - start);
+			start = System.nanoTime();
+			for(Board b : boards)
+			{
+				buf.clear();
+				write(b, buf);
+				buf.flip();
+				codec.read(buf, back);
+				sink += back.ply();
+			}
+			bestVar = Math.min(bestVar, System.nanoTime() - start);
+		}
+		System.out.format("encode + decode: text %.0f ns, key %.0f ns, variable %.0f ns per position (%d)%n",
+			(double) bestText / boards.length, (double) bestKey / boards.length, (double) bestVar / boards.length, sink % 10);
+	}
+}
@@ -1,3 +1,6 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Create a class that hold methods for Power Connect Four game.
  * @author Jackie Nguyen
@@ -10,14 +13,30 @@ public class PowerConnectFour
 	private Column<Token>[] grid;
 	/**
 	 * an integer to keep track of player's turn.
+	 * One per game, so several games can live in the same process.
+	 */
+	private int i = 0;
+
+	/**
+	 * Winner found by the last applyMoves(), null if there was none.
 	 */
-	private static int i = 0;
+	private Token batchWinner;
 
 	/**
 	 * Initiate a reference.
 	 */
 	PowerConnectFour game;
 
+	/**
+	 * Counter used to hand out game ids.
+	 */
+	private static final AtomicLong nextGameId = new AtomicLong();
+
+	/**
+	 * Id of this game, used to tie profiling events to a game.
+	 */
+	private final long gameId;
+
 	/**
 	 *  The fixed number of columns the game grid should have.
 	 */
@@ -55,11 +74,108 @@ public class PowerConnectFour
 	@SuppressWarnings("unchecked")	
 	public PowerConnectFour() 
 	{
+		gameId = nextGameId.incrementAndGet();
 		grid = (Column<Token>[]) new Column[NUM_COLS];
 		for(int i = 0; i < NUM_COLS; i++)
 		{
 			grid[i] = (Column<Token>) new Column<Token>(MIN_ROWS);
 		}
+		GameEvents.gameStarted(gameId);
+	}
+
+	/**
+	 * PowerConnect Four Constructor that restores a position, e.g. from a snapshot.
+	 * The grid gets the display rows it would have reached by playing to this position.
+	 * @param board the tokens and player to move
+	 */
+	PowerConnectFour(Board board)
+	{
+		this(board, board.sizeRow(), nextGameId.incrementAndGet());
+		GameEvents.gameStarted(gameId);
+	}
+
+	/**
+	 * PowerConnect Four Constructor that brings a parked game back under its own id,
+	 * e.g. from IdleGameStore or GameJournal. New games get ids above it.
+	 * @param board the tokens and player to move
+	 * @param rows number of display rows the grid had, at least board.sizeRow()
+	 * @param gameId id the game had
+	 */
+	PowerConnectFour(Board board, int rows, long gameId)
+	{
+		this.gameId = gameId;
+		nextGameId.accumulateAndGet(gameId, Math::max);
+		load(board, Math.max(rows, board.sizeRow()));
+		i = board.player();
+	}
+
+	/**
+	 * PowerConnect Four Constructor from the tokens of each column, e.g. from PositionCodec.
+	 * Unlike a Board, columns may be of any height.
+	 * The grid gets the display rows it would have reached by playing to this position.
+	 * @param columns tokens of each column from the bottom, NUM_COLS columns
+	 * @param toMove the player to move
+	 */
+	PowerConnectFour(Token[][] columns, Token toMove)
+	{
+		gameId = nextGameId.incrementAndGet();
+		int rows = MIN_ROWS;
+		for(Token[] column : columns)
+		{
+			rows = Math.max(rows, column.length + MARGIN_ROWS);
+		}
+		grid = newGrid();
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			grid[c] = new Column<Token>(rows);
+			for(Token t : columns[c])
+			{
+				grid[c].add(t);
+			}
+		}
+		i = toMove == playerOne ? 0 : 1;
+		GameEvents.gameStarted(gameId);
+	}
+
+	/**
+	 * Replace the grid with the tokens of a board.
+	 * @param board the tokens
+	 * @param rows number of display rows, more than the tallest column
+	 * @return number of tokens copied
+	 */
+	private int load(Board board, int rows)
+	{
+		int copied = 0;
+		grid = newGrid();
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			grid[c] = new Column<Token>(rows);
+			for(int r = 0; r < board.height(c); r++)
+			{
+				grid[c].add(board.get(c, r) == 0 ? playerOne : playerTwo);
+				copied++;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * An array for NUM_COLS columns, with no columns in it yet.
+	 * @return the new array
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Column<Token>[] newGrid()
+	{
+		return (Column<Token>[]) new Column[NUM_COLS];
+	}
+
+	/**
+	 * O(1).
+	 * @return the id of this game.
+	 */
+	public long gameId()
+	{
+		return gameId;
 	}
 
 	/**
@@ -105,6 +221,7 @@ public class PowerConnectFour
 	private void expand()
 	{
 		int currentSizeRow = sizeRow();
+		int copied = 0;
 		Column<Token>[] temp = (Column<Token>[]) new Column[NUM_COLS];
 		temp = grid;
 
@@ -119,9 +236,13 @@ public class PowerConnectFour
 					getEmptySymbol();
 				}
 				else
+				{
 					grid[i].add(j, temp[i].get(j));
+					copied++;
+				}
 			}
 		}
+		GameEvents.gridResized(gameId, currentSizeRow, sizeRow(), copied);
 	}
 
 	/**
@@ -131,6 +252,7 @@ public class PowerConnectFour
 	private void shrink()
 	{
 		int currentSizeRow = sizeRow();
+		int copied = 0;
 		Column<Token>[] temp = (Column<Token>[]) new Column[NUM_COLS];
 		temp = grid;
 
@@ -145,9 +267,13 @@ public class PowerConnectFour
 					getEmptySymbol();
 				}
 				else
+				{
 					grid[i].add(j, temp[i].get(j));
+					copied++;
+				}
 			}
 		}
+		GameEvents.gridResized(gameId, currentSizeRow, sizeRow(), copied);
 	}
 
 	/**
@@ -240,7 +366,7 @@ public class PowerConnectFour
 	{
 		try
 		{
-			if(col < 0 || col > NUM_COLS)
+			if(col < 0 || col >= NUM_COLS)
 			{
 				throw new IndexOutOfBoundsException();
 			}
@@ -276,6 +402,8 @@ public class PowerConnectFour
 	 */
 	public boolean powerDrop(int col, int row)
 	{
+		if(col < 0 || col >= NUM_COLS || row < 0 || row >= sizeRow())
+			return false;
 		if(row>=1 && grid[col].get(row-1) == null )
 		{
 			return false;
@@ -304,7 +432,7 @@ public class PowerConnectFour
 	 */
 	public boolean pop(int col)
 	{
-		if (col < 0 || col > sizeCol())
+		if (col < 0 || col >= sizeCol())
 			return false;
 		if(currentPlayer() == grid[col].get(0))
 		{
@@ -333,12 +461,17 @@ public class PowerConnectFour
 	 */
 	public boolean powerPop(int col, int row)
 	{
-		if(col < 0 || col > NUM_COLS || row < 0 || row > sizeRow())
+		if(col < 0 || col >= NUM_COLS || row < 0 || row >= sizeRow())
 			return false;
 
 		if(currentPlayer() == grid[col].get(row))
 		{
-			grid[col].delete(row);
+			//shift down in place: Column.delete() may shrink the column below sizeRow()
+			for(int k = row + 1; k < grid[col].size(); k++)
+			{
+				grid[col].set(k - 1, grid[col].get(k));
+			}
+			grid[col].set(grid[col].size() - 1, null);
 			i++;
 			checkSizeRow(col);
 			return true;
@@ -347,6 +480,124 @@ public class PowerConnectFour
 			return false;
 	}
 
+	/**
+	 * Apply a sequence of moves, encoded as in Moves, as one step, e.g. when replaying a
+	 * log or a client's queued moves. The moves are checked and played on a Board first,
+	 * which finds a win in O(1) per move, and the grid is then rebuilt once with the
+	 * display rows it would have reached move by move, instead of an expand() or shrink()
+	 * per move and a hasFourConnected() scan afterwards. Playing stops after a move that
+	 * connects four, with the winner in batchWinner(). If a move is invalid the game is
+	 * left as it was. A game in which four are already connected is over and takes no
+	 * moves: the batch is rejected as if its first move were invalid.
+	 * Grids that could get taller than Board.MAX_HEIGHT are played move by move instead,
+	 * with the same result.
+	 * O(moves + tokens)
+	 * @param moves encoded moves
+	 * @param from index of the first move
+	 * @param to index after the last move
+	 * @return number of moves applied, fewer than to - from only after a win;
+	 * -1 - index of the first invalid move if nothing was applied
+	 */
+	public int applyMoves(int[] moves, int from, int to)
+	{
+		batchWinner = null;
+		int tallest = 0;
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			tallest = Math.max(tallest, grid[c].size());
+		}
+		if(tallest + (to - from) > Board.MAX_HEIGHT)
+		{
+			if(from < to && (hasFourConnected(playerOne) || hasFourConnected(playerTwo)))
+				return -1 - from;
+			return applyEach(moves, from, to);
+		}
+
+		Board board = Board.of(this);
+		if(from < to && board.winner() >= 0)
+			return -1 - from;
+		int oldRows = sizeRow();
+		int rows = oldRows;
+		int winner = -1;
+		int k = from;
+		while(k < to && winner < 0)
+		{
+			int move = moves[k];
+			if(move < 0 || !board.isLegal(move))
+				return -1 - k;
+			board.make(move);
+			k++;
+			int col = Moves.col(move);
+			int h = board.height(col);
+			// what checkSizeRow(col) does to the display rows
+			tallest = 0;
+			for(int c = 0; c < NUM_COLS; c++)
+			{
+				tallest = Math.max(tallest, board.height(c));
+			}
+			if(rows <= h)
+				rows++;
+			else if(rows > MIN_ROWS && rows - tallest >= 2)
+				rows--;
+			winner = board.winnerAfter(col);
+		}
+		int copied = load(board, rows);
+		if(rows != oldRows)
+			GameEvents.gridResized(gameId, oldRows, rows, copied);
+		i += k - from;
+		batchWinner = winner < 0 ? null : winner == 0 ? playerOne : playerTwo;
+		return k - from;
+	}
+
+	/**
+	 * applyMoves() one move at a time, for grids too tall for a Board. Restores a copy
+	 * of the grid if a move is invalid.
+	 * @param moves encoded moves
+	 * @param from index of the first move
+	 * @param to index after the last move
+	 * @return as applyMoves()
+	 */
+	private int applyEach(int[] moves, int from, int to)
+	{
+		Column<Token>[] saved = newGrid();
+		for(int c = 0; c < NUM_COLS; c++)
+		{
+			saved[c] = new Column<Token>(grid[c].capacity());
+			for(Token t : grid[c])
+			{
+				saved[c].add(t);
+			}
+		}
+		int savedTurn = i;
+		for(int k = from; k < to; k++)
+		{
+			Token mover = currentPlayer();
+			if(moves[k] < 0 || !Moves.apply(this, moves[k]))
+			{
+				grid = saved;
+				i = savedTurn;
+				return -1 - k;
+			}
+			Token other = currentPlayer();
+			if(hasFourConnected(mover))
+				batchWinner = mover;
+			else if(hasFourConnected(other))
+				batchWinner = other;
+			if(batchWinner != null)
+				return k + 1 - from;
+		}
+		return to - from;
+	}
+
+	/**
+	 * O(1).
+	 * @return the player who connected four during the last applyMoves(), null if nobody did
+	 */
+	public Token batchWinner()
+	{
+		return batchWinner;
+	}
+
 	/**
 	 * Count and return the number of consecutive tokens for the given player in a row.
 	 * O(1)	 
@@ -451,7 +702,7 @@ public class PowerConnectFour
 			horizontal = col - 1;
 			vertical = row + 1;
 
-			while(horizontal >= -1 && vertical <= grid[0].capacity())
+			while(horizontal >= 0 && vertical < grid[0].capacity())
 			{
 				if(grid[horizontal].get(vertical) == player)
 				{
@@ -490,7 +741,7 @@ public class PowerConnectFour
 		int count = 0;
 		if(player == grid[col].get(row))
 		{
-			while(horizontal < NUM_COLS && vertical <= grid[0].capacity())
+			while(horizontal < NUM_COLS && vertical < grid[0].capacity())
 			{
 				if(grid[horizontal].get(vertical) == player)
 				{
@@ -499,7 +750,7 @@ public class PowerConnectFour
 				else
 					break;
 
-				if(horizontal == NUM_COLS - 1 || vertical == 0)
+				if(horizontal == NUM_COLS - 1 || vertical == grid[0].capacity() - 1)
 				{
 					break;
 				}
@@ -510,7 +761,7 @@ public class PowerConnectFour
 			horizontal = col - 1;
 			vertical = row - 1;
 
-			while(horizontal >= -1 && vertical >= 0)
+			while(horizontal >= 0 && vertical >= 0)
 			{
 				if(grid[horizontal].get(vertical) == player)
 				{
@@ -519,7 +770,7 @@ public class PowerConnectFour
 				else
 					break;
 
-				if(horizontal == - 1 || vertical == grid[0].capacity())
+				if(horizontal == 0 || vertical == 0)
 				{
 					break;
 				}
@@ -634,5 +885,61 @@ public class PowerConnectFour
 			&& myGame.countMinorDiagonal(2,0,Token.YELLOW) == 1){
 			System.out.println("Yay 6!");												
 		}
+
+		// batch: rolled back on an invalid move, stops at a win
+		PowerConnectFour batch = new PowerConnectFour();
+		int[] script = {Moves.encode(Moves.DROP, 0, 0), Moves.encode(Moves.DROP, 1, 0),
+			Moves.encode(Moves.DROP, 0, 0), Moves.encode(Moves.POP, 0, 0) /*not YELLOW's*/};
+		if (batch.applyMoves(script, 0, 4) == -4 && batch.getColumn(0).size() == 0
+			&& batch.currentPlayer() == Token.RED && batch.applyMoves(script, 0, 3) == 3
+			&& batch.getColumn(0).size() == 2 && batch.currentPlayer() == Token.YELLOW){
+			script = new int[] {Moves.encode(Moves.DROP, 1, 0), Moves.encode(Moves.DROP, 0, 0),
+				Moves.encode(Moves.DROP, 1, 0), Moves.encode(Moves.DROP, 0, 0), Moves.encode(Moves.DROP, 1, 0)};
+			if (batch.applyMoves(script, 0, 5) == 4 && batch.batchWinner() == Token.RED
+				&& batch.getColumn(0).size() == 4 && batch.sizeRow() == MIN_ROWS
+				// the game is won: no more moves, nothing changes
+				&& batch.applyMoves(script, 0, 1) == -1 && batch.getColumn(1).size() == 3
+				&& batch.currentPlayer() == Token.YELLOW)
+				System.out.println("Yay 7!");
+		}
+
+		// batch against the same moves one by one, through expands and shrinks
+		Random rand = new Random(310);
+		boolean same = true;
+		for (int g = 0; g < 200 && same; g++){
+			PowerConnectFour one = new PowerConnectFour();
+			PowerConnectFour all = new PowerConnectFour();
+			Board b = new Board();
+			int[] list = new int[Board.MAX_MOVES];
+			int[] seq = new int[40];
+			int n = 0;
+			while (n < seq.length){
+				int k = b.generate(list);
+				int move = list[rand.nextInt(k)];
+				if (Moves.kind(move) == Moves.POWER_POP || rand.nextInt(3) == 0)
+					move = Moves.encode(Moves.DROP, Moves.col(move), 0);
+				b.make(move);
+				seq[n++] = move;
+				if (b.winner() >= 0)
+					break;
+			}
+			int played = 0;
+			Token winner = null;
+			for (int k = 0; k < n && winner == null; k++){
+				Token mover = one.currentPlayer();
+				Moves.apply(one, seq[k]);
+				played++;
+				winner = one.hasFourConnected(mover) ? mover : one.hasFourConnected(one.currentPlayer()) ? one.currentPlayer() : null;
+			}
+			same = all.applyMoves(seq, 0, n) == played && all.batchWinner() == winner
+				&& all.sizeRow() == one.sizeRow() && all.currentPlayer() == one.currentPlayer();
+			for (int c = 0; c < NUM_COLS && same; c++){
+				same = all.getColumn(c).size() == one.getColumn(c).size();
+				for (int r = 0; r < one.getColumn(c).size() && same; r++)
+					same = all.get(c, r) == one.get(c, r);
+			}
+		}
+		if (same)
+			System.out.println("Yay 8!");
 	}
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 import java.util.Scanner;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  *  A little ASCII GUI to help you interact with the game.
@@ -8,6 +9,12 @@ import java.io.IOException;
  *      java PowerConnectFourGUI 
  *  or 
  * 		java PowerConnectFourGUI Input_File_Name
+ *  or, to replay a file without prompts through the pipelined stages of PipelinedReplay,
+ * 		java PowerConnectFourGUI --pipeline Input_File_Name
+ *  Add -Dview.rows=N to draw only N rows of tall grids, around the last move (see Viewport).
+ *  Add -Dengine.ponder=true to let the engine think about your likely replies while
+ *  you type, after each of its moves in keyboard mode (see Ponderer).
+ *  Add -Dengine.book=Book_File to let the engine play from an opening book (see OpeningBook).
  *  
  *  @author Y Zhong
  */	
@@ -18,6 +25,31 @@ public class PowerConnectFourGUI {
 	 */
 	
 	enum Mode { KEYBOARD, FILE};
+
+	/**
+	 * Time budget of an engine move in milliseconds, set with -Dengine.millis=...
+	 */
+	private static final long ENGINE_MILLIS = Long.getLong("engine.millis", 1000);
+
+	/**
+	 * Engine used by the E command, created on first use.
+	 */
+	private static SearchEngine engine;
+
+	/**
+	 * Whether the engine ponders in keyboard mode, set with -Dengine.ponder=true
+	 */
+	private static final boolean PONDER = Boolean.getBoolean("engine.ponder");
+
+	/**
+	 * Background search sharing the engine's table, created on first use.
+	 */
+	private static Ponderer ponderer;
+
+	/**
+	 * Opening book file of the engine, set with -Dengine.book=..., null for none.
+	 */
+	private static final String BOOK = System.getProperty("engine.book");
 	 
 	/**
 	 *  The main method that presents the GUI.
@@ -33,9 +65,21 @@ public class PowerConnectFourGUI {
 		Mode mode = Mode.FILE;
 		String next;
 		boolean validMove = false;
+		int moves = 0;
+		int move = Moves.NONE;
+		int focus = Viewport.TOP;
+		Token winner = null;
 		
+		if(args.length == 2 && args[0].equals("--pipeline")){
+			try{
+				PipelinedReplay.run(Path.of(args[1]), System.out);
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
 		if(args.length > 1){
-			System.out.println("Usage: java PowerConnectFourGUI [Input_File_Name]");
+			System.out.println("Usage: java PowerConnectFourGUI [--pipeline] [Input_File_Name]");
 			System.exit(0);
 		}
 		else if (args.length == 1){
@@ -51,7 +95,7 @@ public class PowerConnectFourGUI {
 		
 			// no file provided, use keyboard input (standard input)
 			scanner = new Scanner(System.in);
-			System.out.println("  Supported Moves: \n\tD-Drop, P-Pop, PD-Power Drop, PP-Power Pop, Q-Quit");
+			System.out.println("  Supported Moves: \n\tD-Drop, P-Pop, PD-Power Drop, PP-Power Pop, E-Engine Move, Q-Quit");
 			System.out.println("  Example format: 'D 5' - Drop at Column 5");
 			System.out.println("  Example format: 'PP 3 0' - Power Pop from Column 3 Row 0");
 			mode = Mode.KEYBOARD;
@@ -74,6 +118,8 @@ public class PowerConnectFourGUI {
 			int col, row;		
 
 			next = scanner.next();
+			if (ponderer != null)
+				ponderer.stop(); // the reply is here: keep what was finished, drop the rest
 			validMove = false;
 			step++;
 			switch (next) {
@@ -83,6 +129,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Drop %d: ", step, player.getSymbol(), col);
 					validMove = game.drop(col);
+					move = Moves.encode(Moves.DROP, col, 0);
 					break;
 				case "P": //pop
 					col = scanner.nextInt();
@@ -90,6 +137,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Pop %d: ", step, player.getSymbol(), col);
 					validMove = game.pop(col);
+					move = Moves.encode(Moves.POP, col, 0);
 					break;
 				case "PD": //power drop
 					col = scanner.nextInt();
@@ -98,6 +146,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Power Drop Column %d Row %d: ", step, player.getSymbol(), col, row);
 					validMove = game.powerDrop(col,row);
+					move = Moves.encode(Moves.POWER_DROP, col, row);
 					break;
 				case "PP": //power pop
 					col = scanner.nextInt();
@@ -106,11 +155,19 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Power Pop Column %d Row %d: ", step, player.getSymbol(), col, row);
 					validMove = game.powerPop(col,row);
+					move = Moves.encode(Moves.POWER_POP, col, row);
+					break;
+				case "E": //engine move
+					next = scanner.nextLine();
+					System.out.println("-----------------------------------------------");	
+					move = engineMove(game, step, player, PONDER && mode == Mode.KEYBOARD);
+					validMove = move != Moves.NONE;
 					break;
 				case "Q": //quit
 					System.out.println("-----------------------------------------------");	
 					System.out.println(" - Ending Game");	
 					System.out.println("-----------------------------------------------");	
+					GameEvents.gameEnded(game, null, moves);
 					System.exit(0);	
 					break;				
 				default:
@@ -119,22 +176,27 @@ public class PowerConnectFourGUI {
 
 			}
 						
-			if (validMove)
+			if (validMove){
+				moves++;
+				focus = Viewport.focus(game, move);
 				System.out.println("Valid Move");
+			}
 			else
 				System.out.println("Invalid Move");	
 			System.out.println("-----------------------------------------------");							
-			displayGrid(game);
+			displayGrid(game, focus);
 
-			if (game.hasFourConnected(player)){
+			if (GameEvents.timedWinCheck(game, player)){
 				System.out.println("-----------------------------------------------");	
 				System.out.format(" Winner: %c!\n", player.getSymbol());
+				winner = player;
 				break;			
 			}
 			player = game.currentPlayer(); //if valid move, player already switched
-			if (game.hasFourConnected(player)){
+			if (GameEvents.timedWinCheck(game, player)){
 				System.out.println("-----------------------------------------------");	
 				System.out.format(" Winner: %c!\n", player.getSymbol());
+				winner = player;
 				break;			
 			}
 			reportcurrentPlayer(game);
@@ -145,27 +207,95 @@ public class PowerConnectFourGUI {
 
 		
 		}
+		GameEvents.gameEnded(game, winner, moves);
 		System.out.println("-----------------------------------------------");	
 		System.out.println(" - Ending Game");	
 		System.out.println("-----------------------------------------------");	
 		
 	}
 	
+	/**
+	 * Let the engine pick and make the move of the current player within ENGINE_MILLIS,
+	 * or at once if that position was pondered.
+	 *
+	 * @param game the connect four game involved
+	 * @param step the step number
+	 * @param player the current player
+	 * @param ponder whether to ponder the opponent's replies after the move
+	 * @return the move made, Moves.NONE if no valid move was made
+	 */
+	private static int engineMove(PowerConnectFour game, int step, Token player, boolean ponder){
+		if (engine == null){
+			engine = new SearchEngine();
+			if (BOOK != null){
+				try{
+					engine.setBook(OpeningBook.open(Path.of(BOOK)));
+				}catch(IOException e) {
+					System.out.println("Cannot open book: " + e.getMessage());
+				}
+			}
+		}
+		SearchEngine.Result result = null;
+		boolean hit = false;
+		try{
+			if (ponderer != null)
+				result = ponderer.hit(Board.of(game));
+			hit = result != null;
+			if (!hit)
+				result = engine.bestMove(game, ENGINE_MILLIS);
+		}catch(IllegalArgumentException e) {
+			System.out.format(" %d: Move by player %c : Engine: %s: ", step, player.getSymbol(), e.getMessage());
+			return Moves.NONE;
+		}
+		System.out.format(" %d: Move by player %c : Engine %s (%s%s): ", step, player.getSymbol(),
+			Moves.toString(result.move), result, hit ? ", pondered" : result.book ? ", book" : "");
+		if (result.move == Moves.NONE || !Moves.apply(game, result.move))
+			return Moves.NONE;
+		if (ponder){
+			if (ponderer == null)
+				ponderer = new Ponderer(engine.table(), ENGINE_MILLIS, Ponderer.REPLIES);
+			try{
+				ponderer.start(Board.of(game), result.pv.length > 1 ? result.pv[1] : Moves.NONE);
+			}catch(IllegalArgumentException e) {
+				// grid too tall for the engine, nothing to ponder
+			}
+		}
+		return result.move;
+	}
+
 	/**
 	 * The method that displays the grid of the game.
 	 *
 	 * @param game the connect four game to be displayed
 	 */
 	public static void displayGrid(PowerConnectFour game){
+		displayGrid(game, Viewport.TOP);
+	}
+
+	/**
+	 * The method that displays the grid of the game, only Viewport.ROWS rows around
+	 * a focus row if that is set and the grid is taller.
+	 *
+	 * @param game the connect four game to be displayed
+	 * @param focus row to keep in view, Viewport.TOP for the top of the grid
+	 */
+	public static void displayGrid(PowerConnectFour game, int focus){
 		int row = game.sizeRow();
 		int col = game.sizeCol();
+		int top = Viewport.top(row, focus, Viewport.ROWS);
+		int bottom = Viewport.bottom(row, focus, Viewport.ROWS);
+		StringBuilder hidden = new StringBuilder();
 				
 		System.out.format("|   |");
 		for (int j=0; j<col; j++){
 			System.out.format("| %d |", j);
 		}
 		System.out.println("");		
-		for (int i=row-1; i>=0; i--){
+		if (top < row-1){
+			Viewport.appendHidden(hidden, true, top+1, row-1);
+			System.out.print(hidden);
+		}
+		for (int i=top; i>=bottom; i--){
 			System.out.format("| %d |", i);
 			for (int j=0; j<col; j++){
 				Token cell = game.get(j,i);
@@ -176,6 +306,11 @@ public class PowerConnectFourGUI {
 			}
 			System.out.println("");
 		}
+		if (bottom > 0){
+			hidden.setLength(0);
+			Viewport.appendHidden(hidden, false, 0, bottom-1);
+			System.out.print(hidden);
+		}
 
 	}
 	
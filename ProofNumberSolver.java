@@ -0,0 +1,541 @@
+import java.util.Arrays;
+
+/**
+ * Depth-first proof-number (df-pn) solver that proves or disproves a forced win for the
+ * player to move within a number of plies. Proof and disproof numbers are kept in a
+ * fixed size hashed table, so memory does not grow with the search. Pops and power pops
+ * make it possible to reach the same position again; a position that repeats one on the
+ * current path counts as "no win" for the attacker. Such a disproof holds only for that
+ * path, so it is not stored in the table, and neither is any ancestor whose numbers
+ * depend on it (proofs never do: a repetition can only take a win away).
+ * The table is keyed by Board.canonicalKey(), so mirror image positions share an entry.
+ */
+public class ProofNumberSolver
+{
+	/**
+	 * The player to move has a forced win.
+	 */
+	public static final int WIN = 1;
+	/**
+	 * The player to move has no forced win within the given plies.
+	 */
+	public static final int NO_WIN = 0;
+	/**
+	 * The node budget ran out before the position was solved.
+	 */
+	public static final int UNKNOWN = -1;
+
+	/**
+	 * Proof/disproof number of a solved node.
+	 */
+	private static final int INF = 100000000;
+
+	/**
+	 * Kinds mask of winningMoves() for every move.
+	 */
+	public static final int ALL_KINDS = (1 << Moves.KINDS) - 1;
+
+	/**
+	 * Kinds mask of winningMoves() for pop and powerPop.
+	 */
+	public static final int POP_KINDS = 1 << Moves.POP | 1 << Moves.POWER_POP;
+
+	/**
+	 * Deepest number of plies the solver accepts.
+	 */
+	public static final int MAX_PLIES = 60;
+
+	/**
+	 * Mixed into the hash so that the same position with a different remaining depth
+	 * has its own entry.
+	 */
+	private static final long DEPTH_KEY = 0xC2B2AE3D27D4EB4FL;
+
+	/**
+	 * Result of a solve.
+	 */
+	public static final class Result
+	{
+		/**
+		 * WIN, NO_WIN or UNKNOWN.
+		 */
+		public final int outcome;
+		/**
+		 * Winning line starting with the move of the player to move (empty unless WIN).
+		 */
+		public final int[] line;
+		/**
+		 * Nodes searched.
+		 */
+		public final long nodes;
+
+		/**
+		 * Create a result.
+		 * @param outcome WIN, NO_WIN or UNKNOWN
+		 * @param line the winning line
+		 * @param nodes nodes searched
+		 */
+		Result(int outcome, int[] line, long nodes)
+		{
+			this.outcome = outcome;
+			this.line = line;
+			this.nodes = nodes;
+		}
+
+		/**
+		 * One line report such as "win D 3 P 4 D 3 (1203 nodes)".
+		 * @return the report
+		 */
+		public String toString()
+		{
+			StringBuilder s = new StringBuilder(outcome == WIN ? "win" : outcome == NO_WIN ? "no win" : "unknown");
+			for(int m : line)
+			{
+				s.append(' ').append(Moves.toString(m));
+			}
+			return s.append(" (").append(nodes).append(" nodes)").toString();
+		}
+	}
+
+	/**
+	 * Keys of the proof table.
+	 */
+	private final long[] keys;
+	/**
+	 * Proof numbers of the proof table.
+	 */
+	private final int[] proof;
+	/**
+	 * Disproof numbers of the proof table.
+	 */
+	private final int[] disproof;
+	/**
+	 * Move to follow from each stored node.
+	 */
+	private final int[] best;
+	/**
+	 * Mask used to turn a key into an index.
+	 */
+	private final int mask;
+
+	/**
+	 * Board being solved.
+	 */
+	private final Board board = new Board();
+	/**
+	 * Generated moves at each ply.
+	 */
+	private final int[][] moves = new int[MAX_PLIES + 1][Board.MAX_MOVES];
+	/**
+	 * Proof numbers of the children at each ply.
+	 */
+	private final int[][] childProof = new int[MAX_PLIES + 1][Board.MAX_MOVES];
+	/**
+	 * Disproof numbers of the children at each ply.
+	 */
+	private final int[][] childDisproof = new int[MAX_PLIES + 1][Board.MAX_MOVES];
+	/**
+	 * Whether the numbers of the children at each ply depend on a repetition on the path.
+	 */
+	private final boolean[][] childDependent = new boolean[MAX_PLIES + 1][Board.MAX_MOVES];
+	/**
+	 * Hash of each position on the current path, for repetition detection.
+	 */
+	private final long[] path = new long[MAX_PLIES + 2];
+	/**
+	 * Position whose moves winningMoves() tries.
+	 */
+	private final Board root = new Board();
+	/**
+	 * Moves of root.
+	 */
+	private final int[] rootMoves = new int[Board.MAX_MOVES];
+
+	/**
+	 * Player trying to prove the win.
+	 */
+	private int attacker;
+	/**
+	 * Nodes searched in the current solve.
+	 */
+	private long nodes;
+	/**
+	 * Node budget of the current solve.
+	 */
+	private long maxNodes;
+	/**
+	 * Proof number returned by the last mid() call.
+	 */
+	private int resultProof;
+	/**
+	 * Disproof number returned by the last mid() call.
+	 */
+	private int resultDisproof;
+	/**
+	 * Whether the numbers returned by the last mid() call depend on a repetition.
+	 */
+	private boolean resultDependent;
+
+	/**
+	 * Solver with a proof table of at least the given number of entries (24 bytes each).
+	 * @param entries requested number of table entries
+	 */
+	public ProofNumberSolver(int entries)
+	{
+		int size = Integer.highestOneBit(Math.max(entries - 1, 1)) << 1;
+		keys = new long[size];
+		proof = new int[size];
+		disproof = new int[size];
+		best = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Prove or disprove a win for the player to move within maxPlies plies (both sides' moves).
+	 * @param position the position to solve, not modified
+	 * @param maxPlies plies the win must come within, at most MAX_PLIES
+	 * @param nodeBudget nodes to search before giving up with UNKNOWN
+	 * @return the outcome and, for WIN, the winning line
+	 */
+	public Result solve(Board position, int maxPlies, long nodeBudget)
+	{
+		maxPlies = Math.min(maxPlies, MAX_PLIES);
+		Arrays.fill(keys, 0);
+		int outcome = prove(position, position.player(), maxPlies, nodeBudget);
+		if(outcome == WIN)
+			return new Result(WIN, winningLine(position, maxPlies), nodes);
+		return new Result(outcome, new int[0], nodes);
+	}
+
+	/**
+	 * Find the moves of the player to move that force a win within maxPlies plies, e.g.
+	 * to tell a puzzle with a unique solution. Each move is proved on its own, the
+	 * defender to move, so the count is exact, not just one winning line. The proofs
+	 * share one table, so what one move's proof finds about a position is reused by the next.
+	 * @param position the position, not modified
+	 * @param maxPlies plies the win must come within, including the move, at most MAX_PLIES
+	 * @param nodeBudget nodes to search per move before giving up
+	 * @param out where to write the winning moves
+	 * @param limit stop after finding this many, at most out.length
+	 * @return number of winning moves found, UNKNOWN if a move could not be decided first
+	 */
+	public int winningMoves(Board position, int maxPlies, long nodeBudget, int[] out, int limit)
+	{
+		return winningMoves(position, maxPlies, nodeBudget, out, limit, ALL_KINDS);
+	}
+
+	/**
+	 * winningMoves() over the moves of some kinds only, e.g. to look for a win by pop or
+	 * powerPop without proving every drop.
+	 * @param position the position, not modified
+	 * @param maxPlies plies the win must come within, including the move, at most MAX_PLIES
+	 * @param nodeBudget nodes to search per move before giving up
+	 * @param out where to write the winning moves
+	 * @param limit stop after finding this many, at most out.length
+	 * @param kinds bit k set to try the moves of kind k (Moves.DROP ... Moves.POWER_POP)
+	 * @return number of winning moves found, UNKNOWN if a move could not be decided first
+	 */
+	public int winningMoves(Board position, int maxPlies, long nodeBudget, int[] out, int limit, int kinds)
+	{
+		maxPlies = Math.min(maxPlies, MAX_PLIES);
+		Arrays.fill(keys, 0);
+		root.copyFrom(position);
+		int who = root.player();
+		int n = root.generate(rootMoves);
+		int found = 0;
+		for(int i = 0; i < n && found < limit; i++)
+		{
+			int m = rootMoves[i];
+			if((kinds >>> Moves.kind(m) & 1) == 0)
+				continue;
+			root.make(m);
+			int winner = root.winner();
+			int outcome = winner == who ? WIN
+				: winner >= 0 || maxPlies == 1 ? NO_WIN : prove(root, who, maxPlies - 1, nodeBudget);
+			root.unmake(m);
+			if(outcome == UNKNOWN)
+				return UNKNOWN;
+			if(outcome == WIN)
+				out[found++] = m;
+		}
+		return found;
+	}
+
+	/**
+	 * Run df-pn from a position. Entries already in the table are reused: they are keyed
+	 * by remaining plies and must have been stored for the same attacker.
+	 * @param position the position, not modified
+	 * @param who the attacker, 0 for RED and 1 for YELLOW, not necessarily to move
+	 * @param maxPlies plies the win must come within
+	 * @param nodeBudget nodes to search before giving up
+	 * @return WIN, NO_WIN or UNKNOWN for the attacker
+	 */
+	private int prove(Board position, int who, int maxPlies, long nodeBudget)
+	{
+		board.copyFrom(position);
+		attacker = who;
+		nodes = 0;
+		maxNodes = nodeBudget;
+		path[0] = board.hash();
+		mid(0, maxPlies, INF, INF);
+		if(resultProof == 0)
+			return WIN;
+		if(resultDisproof == 0)
+			return NO_WIN;
+		return UNKNOWN;
+	}
+
+	/**
+	 * Multiple iterative deepening step of df-pn: search the node at the given ply until
+	 * its proof or disproof number reaches the threshold.
+	 * @param ply distance from the root
+	 * @param remaining plies left for the attacker to win
+	 * @param thProof proof number threshold
+	 * @param thDisproof disproof number threshold
+	 */
+	private void mid(int ply, int remaining, int thProof, int thDisproof)
+	{
+		nodes++;
+		boolean or = board.player() == attacker;
+		int[] list = moves[ply];
+		int[] cp = childProof[ply];
+		int[] cd = childDisproof[ply];
+		boolean[] dep = childDependent[ply];
+		int n = board.generate(list);
+		for(int i = 0; i < n; i++)
+		{
+			board.make(list[i]);
+			evaluateChild(ply + 1, remaining - 1, cp, cd, dep, i);
+			board.unmake(list[i]);
+		}
+
+		int pn = INF;
+		int dn = 0;
+		int bestIndex = -1;
+		while(true)
+		{
+			// proof/disproof numbers of this node from its children
+			int first = INF + 1;
+			int second = INF + 1;
+			long sum = 0;
+			bestIndex = -1;
+			for(int i = 0; i < n; i++)
+			{
+				int small = or ? cp[i] : cd[i];
+				sum += or ? cd[i] : cp[i];
+				if(small < first)
+				{
+					second = first;
+					first = small;
+					bestIndex = i;
+				}
+				else if(small < second)
+					second = small;
+			}
+			int min = n == 0 ? INF : first;
+			int total = n == 0 ? 0 : (int) Math.min(sum, INF);
+			pn = or ? min : total;
+			dn = or ? total : min;
+			if(pn >= thProof || dn >= thDisproof || pn == 0 || dn == 0 || nodes >= maxNodes)
+				break;
+
+			int childProofTh;
+			int childDisproofTh;
+			if(or)
+			{
+				childProofTh = (int) Math.min(thProof, (long) second + 1);
+				childDisproofTh = (int) Math.min(INF, (long) thDisproof - dn + cd[bestIndex]);
+			}
+			else
+			{
+				childProofTh = (int) Math.min(INF, (long) thProof - pn + cp[bestIndex]);
+				childDisproofTh = (int) Math.min(thDisproof, (long) second + 1);
+			}
+			int move = list[bestIndex];
+			board.make(move);
+			path[ply + 1] = board.hash();
+			mid(ply + 1, remaining - 1, childProofTh, childDisproofTh);
+			board.unmake(move);
+			cp[bestIndex] = resultProof;
+			cd[bestIndex] = resultDisproof;
+			dep[bestIndex] = resultDependent;
+		}
+		boolean dependent = false;
+		for(int i = 0; i < n && pn != 0 && !dependent; i++)
+		{
+			dependent = dep[i];
+		}
+		if(!dependent)
+			store(board.canonicalKey(), remaining, pn, dn, bestIndex >= 0 ? board.canonicalMove(list[bestIndex]) : Moves.NONE);
+		resultProof = pn;
+		resultDisproof = dn;
+		resultDependent = dependent;
+	}
+
+	/**
+	 * Proof and disproof numbers of the position just reached by a move.
+	 * @param ply distance of the child from the root
+	 * @param remaining plies left at the child
+	 * @param cp child proof numbers to fill
+	 * @param cd child disproof numbers to fill
+	 * @param dep child repetition flags to fill
+	 * @param i index of the child
+	 */
+	private void evaluateChild(int ply, int remaining, int[] cp, int[] cd, boolean[] dep, int i)
+	{
+		int winner = board.winner();
+		boolean proven = winner == attacker;
+		dep[i] = winner < 0 && remaining > 0 && repeats(ply);
+		boolean disproven = winner >= 0 && !proven || winner < 0 && remaining == 0 || dep[i];
+		if(proven || disproven)
+		{
+			cp[i] = proven ? 0 : INF;
+			cd[i] = proven ? INF : 0;
+			return;
+		}
+		int slot = lookup(board.canonicalKey(), remaining);
+		cp[i] = slot >= 0 ? proof[slot] : 1;
+		cd[i] = slot >= 0 ? disproof[slot] : 1;
+	}
+
+	/**
+	 * O(ply).
+	 * @param ply distance of the current position from the root
+	 * @return whether the current position already occurred on the path
+	 */
+	private boolean repeats(int ply)
+	{
+		long h = board.hash();
+		for(int k = ply - 2; k >= 0; k -= 2)
+		{
+			if(path[k] == h)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find a stored node.
+	 * @param hash position hash
+	 * @param remaining plies left
+	 * @return table slot, or -1 if not stored
+	 */
+	private int lookup(long hash, int remaining)
+	{
+		long key = key(hash, remaining);
+		int slot = (int) key & mask;
+		return keys[slot] == key ? slot : -1;
+	}
+
+	/**
+	 * Store a node, always replacing the slot.
+	 * @param hash position hash
+	 * @param remaining plies left
+	 * @param pn proof number
+	 * @param dn disproof number
+	 * @param move move to follow
+	 */
+	private void store(long hash, int remaining, int pn, int dn, int move)
+	{
+		long key = key(hash, remaining);
+		int slot = (int) key & mask;
+		keys[slot] = key;
+		proof[slot] = pn;
+		disproof[slot] = dn;
+		best[slot] = move;
+	}
+
+	/**
+	 * Table key of a position and remaining depth, never 0.
+	 * @param hash position hash
+	 * @param remaining plies left
+	 * @return the key
+	 */
+	private static long key(long hash, int remaining)
+	{
+		long key = hash ^ (DEPTH_KEY * (remaining + 1));
+		return key == 0 ? 1 : key;
+	}
+
+	/**
+	 * Follow the proof table from the root to read out a winning line. The attacker
+	 * plays a proven move; the defender plays the reply that was searched last.
+	 * @param position the solved position
+	 * @param maxPlies plies the win must come within
+	 * @return the winning line, possibly cut short if table entries were replaced
+	 */
+	private int[] winningLine(Board position, int maxPlies)
+	{
+		board.copyFrom(position);
+		int[] line = new int[maxPlies];
+		int length = 0;
+		for(int remaining = maxPlies; remaining > 0; remaining--)
+		{
+			int n = board.generate(moves[0]);
+			int slot = lookup(board.canonicalKey(), remaining);
+			int move = slot >= 0 ? board.canonicalMove(best[slot]) : Moves.NONE;
+			if(board.player() == attacker)
+			{
+				int proven = Moves.NONE;
+				for(int i = 0; i < n; i++)
+				{
+					int m = moves[0][i];
+					board.make(m);
+					int child = lookup(board.canonicalKey(), remaining - 1);
+					if(board.winner() == attacker || board.winner() < 0 && child >= 0 && proof[child] == 0)
+						proven = proven == Moves.NONE || m == move ? m : proven;
+					board.unmake(m);
+				}
+				move = proven;
+			}
+			else if(move == Moves.NONE && n > 0)
+				move = moves[0][0];
+			if(move == Moves.NONE || !board.isLegal(move))
+				break;
+			line[length++] = move;
+			board.make(move);
+			if(board.winner() >= 0)
+				break;
+		}
+		int[] result = new int[length];
+		System.arraycopy(line, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Main method with sample proofs.
+	 * @param args does not accept arguments.
+	 */
+	public static void main(String[] args)
+	{
+		ProofNumberSolver solver = new ProofNumberSolver(1 << 20);
+
+		// yellow to move wins with a power drop that sets up two threats
+		Board board = new Board();
+		int[] cols = {2, 1, 0, 1, 3, 5, 3, 4, 1, 2, 0};
+		for(int c : cols)
+		{
+			board.make(Moves.encode(Moves.DROP, c, 0));
+		}
+		Result r = solver.solve(board, 3, 1000000);
+		if(r.outcome == WIN && r.line.length == 3 && r.line[0] == Moves.encode(Moves.POWER_DROP, 3, 0))
+			System.out.println("Yay 1");
+
+		// but there is no win in a single move
+		r = solver.solve(board, 1, 1000000);
+		if(r.outcome == NO_WIN)
+			System.out.println("Yay 2");
+
+		// a tiny budget cannot decide the empty board
+		r = solver.solve(new Board(), 9, 100);
+		if(r.outcome == UNKNOWN)
+			System.out.println("Yay 3");
+
+		// the power drop is the only win within 3 plies, and nothing wins in 1
+		int[] wins = new int[Board.MAX_MOVES];
+		int n = solver.winningMoves(board, 3, 1000000, wins, wins.length);
+		if(n == 1 && wins[0] == Moves.encode(Moves.POWER_DROP, 3, 0)
+			&& solver.winningMoves(board, 1, 1000000, wins, wins.length) == 0 && solver.winningMoves(board, 3, 1000000, wins, 1) == 1)
+			System.out.println("Yay 4");
+	}
+}
@@ -0,0 +1,320 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tactical puzzles mined from random games: positions where the player to move has
+ * exactly one move that forces a win within the given plies, and no faster win. One
+ * worker per core plays randomized games, each with its own ProofNumberSolver, and
+ * tries every position along the way. Puzzles are deduplicated by Board.canonicalKey()
+ * (a position and its mirror image are one puzzle) and appended to the output file as
+ * they are found, one line each:
+ * 		position (PositionCodec text)	plies	a winning line, starting with the solution
+ * e.g. "Y/Y/RRY/RR//YRR/YY R	3	D 4 D 0 PD 1 0". Puzzles whose solution is a pop or
+ * powerPop are counted apart; with "pops" only those are kept. To find more of them,
+ * each game move is the one of a few random moves that leaves the player to move the
+ * most tokens to take, and with "pops" pop and powerPop are proved before the other
+ * moves. Even so they are rare: the defender can powerDrop back into the popped column.
+ * A game ends at its first puzzle, since the next positions mostly repeat it.
+ * Usage: java PuzzleGenerator Output_File [seconds] [threads] [plies] [pops]
+ */
+public final class PuzzleGenerator
+{
+	/**
+	 * Nodes the solver may search per move tried.
+	 */
+	private static final long NODE_BUDGET = 20000;
+
+	/**
+	 * Longest random game.
+	 */
+	private static final int MAX_GAME_PLIES = 60;
+
+	/**
+	 * Plies played before positions are tried.
+	 */
+	private static final int MIN_PLY = 6;
+
+	/**
+	 * Random moves drawn for each move of a game; the one leaving the player to move the
+	 * most tokens to pop or powerPop is played.
+	 */
+	private static final int CANDIDATES = 3;
+
+	/**
+	 * Plies the win must come within, odd.
+	 */
+	private final int plies;
+
+	/**
+	 * Whether only puzzles solved by a pop or powerPop are kept.
+	 */
+	private final boolean popsOnly;
+
+	/**
+	 * Keys of the puzzles written so far.
+	 */
+	private final Set<Long> seen = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Positions tried.
+	 */
+	final LongAdder tried = new LongAdder();
+
+	/**
+	 * Puzzles written.
+	 */
+	final LongAdder found = new LongAdder();
+
+	/**
+	 * Puzzles written whose solution starts with pop or powerPop.
+	 */
+	final LongAdder pops = new LongAdder();
+
+	/**
+	 * Unique wins already written, found again.
+	 */
+	final LongAdder duplicates = new LongAdder();
+
+	/**
+	 * Set when the workers should stop.
+	 */
+	private volatile boolean done;
+
+	/**
+	 * Generator.
+	 * @param plies plies the win must come within, odd
+	 * @param popsOnly whether only puzzles solved by a pop or powerPop are kept
+	 */
+	public PuzzleGenerator(int plies, boolean popsOnly)
+	{
+		this.plies = plies;
+		this.popsOnly = popsOnly;
+	}
+
+	/**
+	 * Generate puzzles for a while.
+	 * @param out where to write the puzzles, shared by the workers
+	 * @param threads worker threads
+	 * @param millis how long to run
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public void run(Writer out, int threads, long millis) throws InterruptedException
+	{
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			SplittableRandom rand = new SplittableRandom(310 + t);
+			workers[t] = new Thread(() -> work(out, rand), "puzzles-" + t);
+			workers[t].start();
+		}
+		long end = System.currentTimeMillis() + millis;
+		for(Thread w : workers)
+		{
+			w.join(Math.max(1, end - System.currentTimeMillis()));
+		}
+		done = true;
+		for(Thread w : workers)
+		{
+			w.join();
+		}
+	}
+
+	/**
+	 * Worker loop: random games until done.
+	 * @param out where to write the puzzles
+	 * @param rand the worker's random numbers
+	 */
+	private void work(Writer out, SplittableRandom rand)
+	{
+		ProofNumberSolver solver = new ProofNumberSolver(1 << 14);
+		Board board = new Board();
+		Board empty = new Board();
+		int[] list = new int[Board.MAX_MOVES];
+		int[] wins = new int[2];
+		StringBuilder line = new StringBuilder();
+		while(!done)
+		{
+			board.copyFrom(empty);
+			for(int p = 0; p < MAX_GAME_PLIES && !done; p++)
+			{
+				if(p >= MIN_PLY && solve(solver, board, wins, line))
+				{
+					// later positions of this game tend to repeat the puzzle: start a new one
+					write(out, line);
+					break;
+				}
+				int n = board.generate(list);
+				int move = Moves.NONE;
+				int bestTargets = -1;
+				for(int k = 0; k < CANDIDATES; k++)
+				{
+					int m = list[rand.nextInt(n)];
+					// mostly plain drops, so positions look like games people play
+					if(rand.nextInt(3) != 0 && board.height(Moves.col(m)) < Board.MAX_HEIGHT)
+						m = Moves.encode(Moves.DROP, Moves.col(m), 0);
+					board.make(m);
+					int targets = board.winnerAfter(Moves.col(m)) >= 0 ? -1 : popTargets(board);
+					board.unmake(m);
+					if(targets > bestTargets)
+					{
+						move = m;
+						bestTargets = targets;
+					}
+				}
+				if(move == Moves.NONE)
+					move = list[rand.nextInt(n)];
+				board.make(move);
+				if(board.winnerAfter(Moves.col(move)) >= 0)
+					break;
+			}
+		}
+	}
+
+	/**
+	 * O(NUM_COLS).
+	 * @param board the position
+	 * @return number of tokens the player to move may take with pop or powerPop
+	 */
+	private static int popTargets(Board board)
+	{
+		int n = 0;
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			n += Long.bitCount(board.mask(c, board.player()));
+		}
+		return n;
+	}
+
+	/**
+	 * Try a position as a puzzle.
+	 * @param solver the worker's solver
+	 * @param board the position, not modified
+	 * @param wins scratch for the winning moves, 2 long
+	 * @param line where to write the puzzle line
+	 * @return whether the position is a new puzzle
+	 */
+	boolean solve(ProofNumberSolver solver, Board board, int[] wins, StringBuilder line)
+	{
+		tried.increment();
+		// an immediate win is the cheapest to rule out
+		if(plies > 1 && solver.winningMoves(board, 1, NODE_BUDGET, wins, 1) != 0)
+			return false;
+		// with "pops", prove the few pops and powerPops before every other move
+		if(popsOnly && solver.winningMoves(board, plies, NODE_BUDGET, wins, 2, ProofNumberSolver.POP_KINDS) != 1)
+			return false;
+		// no win in fewer plies, then exactly one winning move
+		if(plies > 3 && solver.winningMoves(board, plies - 2, NODE_BUDGET, wins, 1) != 0
+			|| solver.winningMoves(board, plies, NODE_BUDGET, wins, 2) != 1)
+			return false;
+		int kind = Moves.kind(wins[0]);
+		boolean pop = kind == Moves.POP || kind == Moves.POWER_POP;
+		if(popsOnly && !pop)
+			return false;
+		if(!seen.add(board.canonicalKey()))
+		{
+			duplicates.increment();
+			return false;
+		}
+		ProofNumberSolver.Result r = solver.solve(board, plies, NODE_BUDGET * plies);
+		line.setLength(0);
+		PositionCodec.appendText(board, line).append('\t').append(plies).append('\t');
+		if(r.outcome == ProofNumberSolver.WIN && r.line.length > 0 && r.line[0] == wins[0])
+		{
+			for(int k = 0; k < r.line.length; k++)
+			{
+				line.append(k == 0 ? "" : " ").append(Moves.toString(r.line[k]));
+			}
+		}
+		else
+			line.append(Moves.toString(wins[0]));
+		line.append('\n');
+		found.increment();
+		if(pop)
+			pops.increment();
+		return true;
+	}
+
+	/**
+	 * Append a line to the shared output.
+	 * @param out the output
+	 * @param line the line
+	 */
+	private void write(Writer out, CharSequence line)
+	{
+		synchronized(out)
+		{
+			try
+			{
+				out.append(line);
+			}
+			catch(IOException e)
+			{
+				System.err.println("Cannot write puzzle: " + e.getMessage());
+				done = true;
+			}
+		}
+	}
+
+	/**
+	 * Generate puzzles and report the rate.
+	 * @param args output file, seconds (default 60), threads (default all cores),
+	 * plies (default 3), "pops" to keep only puzzles solved by a pop or powerPop
+	 * @throws IOException if the output cannot be written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.out.println("Usage: java PuzzleGenerator Output_File [seconds] [threads] [plies] [pops]");
+			return;
+		}
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int plies = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		boolean popsOnly = args.length > 4 && args[4].equals("pops");
+		if(plies < 1 || plies % 2 == 0 || plies > ProofNumberSolver.MAX_PLIES)
+		{
+			System.out.println("Plies must be odd, from 1 to " + ProofNumberSolver.MAX_PLIES);
+			return;
+		}
+
+		PuzzleGenerator generator = new PuzzleGenerator(plies, popsOnly);
+		long start = System.nanoTime();
+		try(BufferedWriter out = Files.newBufferedWriter(Path.of(args[0]), StandardCharsets.UTF_8))
+		{
+			generator.run(out, threads, seconds * 1000);
+		}
+		double minutes = (System.nanoTime() - start) / 6e10;
+		System.out.format("%,d puzzles (%,d solved by a pop) from %,d positions, %,d duplicates, %d threads: %,.0f puzzles/minute%n",
+			generator.found.sum(), generator.pops.sum(), generator.tried.sum(), generator.duplicates.sum(), threads,
+			generator.found.sum() / minutes);
+
+		// every puzzle read back has its solution as the only win
+		ProofNumberSolver solver = new ProofNumberSolver(1 << 14);
+		PositionCodec codec = new PositionCodec();
+		Board board = new Board();
+		int[] wins = new int[2];
+		boolean ok = true;
+		int checked = 0;
+		for(String line : Files.readAllLines(Path.of(args[0])))
+		{
+			String[] parts = line.split("\t");
+			ok &= parts.length == 3 && codec.parse(parts[0], board)
+				&& solver.winningMoves(board, plies, NODE_BUDGET, wins, 2) == 1
+				&& parts[2].startsWith(Moves.toString(wins[0]));
+			if(++checked == 200)
+				break;
+		}
+		if(ok && checked > 0)
+			System.out.println("Yay 1");
+	}
+}
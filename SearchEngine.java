@@ -0,0 +1,670 @@
+import java.util.function.Consumer;
+
+/**
+ * Alpha-beta engine for Power Connect Four with iterative deepening under a time budget.
+ * A new iteration is only started while the soft limit has not passed; the hard limit
+ * aborts the running iteration and the best move of the last finished one is returned.
+ * Moves are ordered by the principal variation of the previous iteration / the
+ * transposition table, then killer moves, the history table and center columns.
+ * The table is keyed by Board.canonicalKey(), so mirror image positions share an entry.
+ */
+public class SearchEngine
+{
+	/**
+	 * Score of a win at the root; a win n plies away scores MATE - n.
+	 */
+	public static final int MATE = 10000000;
+
+	/**
+	 * Deepest ply the engine searches to.
+	 */
+	public static final int MAX_PLY = 64;
+
+	/**
+	 * Scores above this mean a forced win was found.
+	 */
+	private static final int MATE_BOUND = MATE - MAX_PLY;
+
+	/**
+	 * Larger than any score.
+	 */
+	private static final int INFINITY = MATE + 1;
+
+	/**
+	 * Default number of transposition table entries (16 MB).
+	 */
+	private static final int DEFAULT_TABLE = 1 << 20;
+
+	/**
+	 * The clock is checked every this many nodes (minus one).
+	 */
+	private static final int CHECK_MASK = 1023;
+
+	/**
+	 * Result of an iteration or of a whole search.
+	 */
+	public static final class Result
+	{
+		/**
+		 * Depth that was fully searched.
+		 */
+		public final int depth;
+		/**
+		 * Best move found, Moves.NONE if there is no legal move.
+		 */
+		public final int move;
+		/**
+		 * Score of the best move for the player to move.
+		 */
+		public final int score;
+		/**
+		 * Nodes searched so far.
+		 */
+		public final long nodes;
+		/**
+		 * Milliseconds spent so far.
+		 */
+		public final long millis;
+		/**
+		 * Principal variation, starting with move.
+		 */
+		public final int[] pv;
+		/**
+		 * Whether the move came from the opening book rather than a search.
+		 */
+		public final boolean book;
+
+		/**
+		 * Create the result of a search.
+		 * @param depth depth searched
+		 * @param move best move
+		 * @param score score of the best move
+		 * @param nodes nodes searched
+		 * @param millis milliseconds spent
+		 * @param pv principal variation
+		 */
+		Result(int depth, int move, int score, long nodes, long millis, int[] pv)
+		{
+			this(depth, move, score, nodes, millis, pv, false);
+		}
+
+		/**
+		 * Create a result.
+		 * @param depth depth searched
+		 * @param move best move
+		 * @param score score of the best move
+		 * @param nodes nodes searched
+		 * @param millis milliseconds spent
+		 * @param pv principal variation
+		 * @param book whether the move came from the opening book
+		 */
+		Result(int depth, int move, int score, long nodes, long millis, int[] pv, boolean book)
+		{
+			this.depth = depth;
+			this.move = move;
+			this.score = score;
+			this.nodes = nodes;
+			this.millis = millis;
+			this.pv = pv;
+			this.book = book;
+		}
+
+		/**
+		 * O(1).
+		 * @return nodes per second
+		 */
+		public long nps()
+		{
+			return nodes * 1000 / Math.max(millis, 1);
+		}
+
+		/**
+		 * One line report such as "depth 7 score 120 nodes 52311 time 40ms nps 1307775 pv D 3 D 3".
+		 * @return the report
+		 */
+		public String toString()
+		{
+			StringBuilder s = new StringBuilder();
+			s.append("depth ").append(depth).append(" score ");
+			if(score >= MATE_BOUND)
+				s.append("win in ").append(MATE - score);
+			else if(score <= -MATE_BOUND)
+				s.append("loss in ").append(MATE + score);
+			else
+				s.append(score);
+			s.append(" nodes ").append(nodes).append(" time ").append(millis)
+				.append("ms nps ").append(nps()).append(" pv");
+			for(int m : pv)
+			{
+				s.append(' ').append(Moves.toString(m));
+			}
+			return s.toString();
+		}
+	}
+
+	/**
+	 * Shared or private transposition table.
+	 */
+	private final TranspositionTable table;
+
+	/**
+	 * Board being searched.
+	 */
+	private final Board board = new Board();
+
+	/**
+	 * Evaluation kept in sync with board.
+	 */
+	private Evaluator eval;
+
+	/**
+	 * Generated moves at each ply.
+	 */
+	private final int[][] moves = new int[MAX_PLY][Board.MAX_MOVES];
+
+	/**
+	 * Ordering scores of the generated moves at each ply.
+	 */
+	private final int[][] order = new int[MAX_PLY][Board.MAX_MOVES];
+
+	/**
+	 * Two killer moves per ply.
+	 */
+	private final int[][] killers = new int[MAX_PLY][2];
+
+	/**
+	 * History scores indexed by the encoded move, i.e. by kind, column and row.
+	 */
+	private final int[] history = new int[1 << 12];
+
+	/**
+	 * Triangular principal variation table.
+	 */
+	private final int[][] pv = new int[MAX_PLY][MAX_PLY];
+
+	/**
+	 * Length of the principal variation at each ply.
+	 */
+	private final int[] pvLength = new int[MAX_PLY];
+
+	/**
+	 * Principal variation of the last finished iteration.
+	 */
+	private int[] lastPv = new int[0];
+
+	/**
+	 * Whether the current path still follows lastPv.
+	 */
+	private boolean followPv;
+
+	/**
+	 * Nodes searched in the current search.
+	 */
+	private long nodes;
+
+	/**
+	 * System.nanoTime() after which the search is aborted.
+	 */
+	private long hardDeadline;
+
+	/**
+	 * System.nanoTime() when the search started.
+	 */
+	private long startTime;
+
+	/**
+	 * Set when the running iteration has to be abandoned.
+	 */
+	private boolean aborted;
+
+	/**
+	 * Set from another thread to stop the search.
+	 */
+	private volatile boolean stop;
+
+	/**
+	 * Best root move finished in the running iteration.
+	 */
+	private int rootMove;
+
+	/**
+	 * Score of rootMove.
+	 */
+	private int rootScore;
+
+	/**
+	 * Called after every finished iteration, may be null.
+	 */
+	private Consumer<Result> listener;
+
+	/**
+	 * Opening book consulted by bestMove(), may be null.
+	 */
+	private OpeningBook book;
+
+	/**
+	 * Engine with its own 16 MB transposition table.
+	 */
+	public SearchEngine()
+	{
+		this(new TranspositionTable(DEFAULT_TABLE));
+	}
+
+	/**
+	 * Engine using the given transposition table, which may be shared with other engines.
+	 * @param table the transposition table
+	 */
+	public SearchEngine(TranspositionTable table)
+	{
+		this.table = table;
+	}
+
+	/**
+	 * O(1).
+	 * @return the transposition table used by this engine
+	 */
+	public TranspositionTable table()
+	{
+		return table;
+	}
+
+	/**
+	 * Set a listener that receives a report after every finished iteration.
+	 * @param listener the listener, or null for none
+	 */
+	public void setListener(Consumer<Result> listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Set an opening book that bestMove() consults before searching.
+	 * @param book the book, or null for none
+	 */
+	public void setBook(OpeningBook book)
+	{
+		this.book = book;
+	}
+
+	/**
+	 * Ask a running search to stop as soon as possible. Safe to call from any thread.
+	 */
+	public void stop()
+	{
+		stop = true;
+	}
+
+	/**
+	 * Search the current position of a game within a time budget. A position in the
+	 * opening book is not searched: its book move comes back at once, with Result.book set.
+	 * @param game the game to search
+	 * @param millis time budget in milliseconds
+	 * @return the book move or the result of the deepest finished iteration
+	 */
+	public Result bestMove(PowerConnectFour game, long millis)
+	{
+		Board position = Board.of(game);
+		int entry = book == null ? -1 : book.probe(position);
+		if(entry >= 0)
+		{
+			int move = position.canonicalMove(book.move(entry));
+			return new Result(0, move, book.score(entry), 0, 0, new int[] {move}, true);
+		}
+		return search(position, MAX_PLY - 1, millis * 2 / 5, millis);
+	}
+
+	/**
+	 * Iterative deepening search.
+	 * @param position the position to search, not modified
+	 * @param maxDepth deepest iteration to run
+	 * @param softMillis no new iteration is started after this many milliseconds
+	 * @param hardMillis the running iteration is aborted after this many milliseconds
+	 * @return the result of the deepest finished iteration
+	 */
+	public Result search(Board position, int maxDepth, long softMillis, long hardMillis)
+	{
+		startTime = System.nanoTime();
+		hardDeadline = startTime + hardMillis * 1000000L;
+		long softDeadline = startTime + softMillis * 1000000L;
+		board.copyFrom(position);
+		eval = evaluatorOf(board);
+		nodes = 0;
+		aborted = false;
+		stop = false;
+		lastPv = new int[0];
+		for(int[] k : killers)
+		{
+			k[0] = k[1] = Moves.NONE;
+		}
+		for(int i = 0; i < history.length; i++)
+		{
+			history[i] >>= 2; // age the history of the previous search
+		}
+
+		Result best = new Result(0, firstLegalMove(), 0, 0, 0, new int[0]);
+		maxDepth = Math.min(maxDepth, MAX_PLY - 1);
+		for(int depth = 1; depth <= maxDepth; depth++)
+		{
+			rootMove = Moves.NONE;
+			followPv = true;
+			int score = negamax(depth, -INFINITY, INFINITY, 0);
+			long millis = (System.nanoTime() - startTime) / 1000000L;
+			if(aborted)
+			{
+				// the first root move, the previous best, was fully searched at this depth:
+				// the best move so far of this deeper iteration replaces the shallower one
+				// (scores of different depths are not compared)
+				if(rootMove != Moves.NONE)
+				{
+					int[] partial = new int[pvLength[0]];
+					System.arraycopy(pv[0], 0, partial, 0, partial.length);
+					best = new Result(depth, rootMove, rootScore, nodes, millis, partial);
+				}
+				break;
+			}
+			lastPv = new int[pvLength[0]];
+			System.arraycopy(pv[0], 0, lastPv, 0, lastPv.length);
+			best = new Result(depth, lastPv.length > 0 ? lastPv[0] : best.move, score, nodes, millis, lastPv);
+			if(listener != null)
+				listener.accept(best);
+			if(Math.abs(score) >= MATE_BOUND || System.nanoTime() >= softDeadline)
+				break;
+		}
+		return new Result(best.depth, best.move, best.score, nodes,
+			(System.nanoTime() - startTime) / 1000000L, best.pv);
+	}
+
+	/**
+	 * Negamax alpha-beta search.
+	 * @param depth remaining depth
+	 * @param alpha lower bound
+	 * @param beta upper bound
+	 * @param ply distance from the root
+	 * @return score for the player to move
+	 */
+	private int negamax(int depth, int alpha, int beta, int ply)
+	{
+		pvLength[ply] = ply;
+		if((++nodes & CHECK_MASK) == 0 && (stop || System.nanoTime() >= hardDeadline))
+			aborted = true;
+		if(aborted)
+			return 0;
+		if(depth <= 0 || ply >= MAX_PLY - 1)
+			return eval.score(board.player());
+
+		long hash = board.canonicalKey();
+		long entry = table.probe(hash);
+		int ttMove = Moves.NONE;
+		if(entry != 0)
+		{
+			ttMove = board.canonicalMove(TranspositionTable.move(entry));
+			if(ply > 0 && TranspositionTable.depth(entry) >= depth)
+			{
+				int s = fromTable(TranspositionTable.score(entry), ply);
+				int bound = TranspositionTable.bound(entry);
+				if(bound == TranspositionTable.EXACT
+						|| (bound == TranspositionTable.LOWER && s >= beta)
+						|| (bound == TranspositionTable.UPPER && s <= alpha))
+					return s;
+			}
+		}
+
+		int pvMove = Moves.NONE;
+		if(followPv && ply < lastPv.length)
+			pvMove = lastPv[ply];
+		else
+			followPv = false;
+
+		int[] list = moves[ply];
+		int[] scores = order[ply];
+		int n = board.generate(list);
+		for(int i = 0; i < n; i++)
+		{
+			scores[i] = orderScore(list[i], ply, pvMove, ttMove);
+		}
+
+		int alphaStart = alpha;
+		int best = -INFINITY;
+		int bestMove = Moves.NONE;
+		for(int i = 0; i < n; i++)
+		{
+			int move = pickNext(list, scores, i, n);
+			followPv = pvMove != Moves.NONE && move == pvMove;
+
+			int mover = board.player();
+			doMove(move);
+			int winner = board.winner();
+			int score;
+			if(winner == mover)
+				score = MATE - ply - 1;
+			else if(winner >= 0)
+				score = -(MATE - ply - 1);
+			else
+				score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+			undoMove(move);
+			followPv = false;
+			if(aborted)
+				return 0;
+
+			if(score > best)
+			{
+				best = score;
+				bestMove = move;
+				if(score > alpha)
+				{
+					alpha = score;
+					pv[ply][ply] = move;
+					int len = pvLength[ply + 1];
+					if(len > ply + 1)
+						System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, len - ply - 1);
+					pvLength[ply] = Math.max(len, ply + 1);
+					if(ply == 0)
+					{
+						rootMove = move;
+						rootScore = score;
+					}
+				}
+			}
+			if(alpha >= beta)
+			{
+				if(killers[ply][0] != move)
+				{
+					killers[ply][1] = killers[ply][0];
+					killers[ply][0] = move;
+				}
+				history[move] += depth * depth;
+				break;
+			}
+		}
+		if(n == 0)
+			return 0;
+
+		int bound = best <= alphaStart ? TranspositionTable.UPPER
+			: best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+		table.store(hash, board.canonicalMove(bestMove), toTable(best, ply), depth, bound);
+		return best;
+	}
+
+	/**
+	 * Ordering score of a move, higher is searched first.
+	 * @param move encoded move
+	 * @param ply distance from the root
+	 * @param pvMove move of the previous principal variation at this ply
+	 * @param ttMove move stored in the transposition table
+	 * @return ordering score
+	 */
+	private int orderScore(int move, int ply, int pvMove, int ttMove)
+	{
+		if(move == pvMove)
+			return 1 << 30;
+		if(move == ttMove)
+			return 1 << 29;
+		if(move == killers[ply][0])
+			return 1 << 28;
+		if(move == killers[ply][1])
+			return 1 << 27;
+		int center = 3 - Math.abs(Moves.col(move) - 3);
+		return Math.min(history[move], 1 << 26) * 4 + center;
+	}
+
+	/**
+	 * Selection sort step: swap the best remaining move to position i.
+	 * @param list moves
+	 * @param scores ordering scores
+	 * @param i position to fill
+	 * @param n number of moves
+	 * @return the move now at position i
+	 */
+	private static int pickNext(int[] list, int[] scores, int i, int n)
+	{
+		int best = i;
+		for(int j = i + 1; j < n; j++)
+		{
+			if(scores[j] > scores[best])
+				best = j;
+		}
+		int m = list[best];
+		list[best] = list[i];
+		list[i] = m;
+		int s = scores[best];
+		scores[best] = scores[i];
+		scores[i] = s;
+		return m;
+	}
+
+	/**
+	 * Make a move on the board and the evaluator.
+	 * @param move encoded move
+	 */
+	private void doMove(int move)
+	{
+		int mover = board.player();
+		int col = Moves.col(move);
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				eval.drop(col, mover);
+				break;
+			case Moves.POP:
+				eval.pop(col);
+				break;
+			case Moves.POWER_DROP:
+				eval.powerDrop(col, Moves.row(move), mover);
+				break;
+			default:
+				eval.powerPop(col, Moves.row(move));
+		}
+		board.make(move);
+	}
+
+	/**
+	 * Take back a move on the board and the evaluator.
+	 * @param move encoded move
+	 */
+	private void undoMove(int move)
+	{
+		board.unmake(move);
+		int mover = board.player();
+		int col = Moves.col(move);
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				eval.remove(col, eval.height(col) - 1);
+				break;
+			case Moves.POP:
+				eval.insert(col, 0, mover);
+				break;
+			case Moves.POWER_DROP:
+				eval.remove(col, Moves.row(move));
+				break;
+			default:
+				eval.insert(col, Moves.row(move), mover);
+		}
+	}
+
+	/**
+	 * O(cols).
+	 * @return the first legal move of the board, or Moves.NONE
+	 */
+	private int firstLegalMove()
+	{
+		int n = board.generate(moves[0]);
+		return n > 0 ? moves[0][0] : Moves.NONE;
+	}
+
+	/**
+	 * Build an evaluator for a board.
+	 * @param b the board
+	 * @return a new evaluator with the same tokens
+	 */
+	static Evaluator evaluatorOf(Board b)
+	{
+		Evaluator e = new Evaluator();
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			for(int r = 0; r < b.height(c); r++)
+			{
+				e.drop(c, b.get(c, r));
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Convert a win score to be relative to the stored position.
+	 * @param score score relative to the root
+	 * @param ply distance from the root
+	 * @return score to store
+	 */
+	private static int toTable(int score, int ply)
+	{
+		if(score >= MATE_BOUND)
+			return score + ply;
+		if(score <= -MATE_BOUND)
+			return score - ply;
+		return score;
+	}
+
+	/**
+	 * Convert a stored win score back to be relative to the root.
+	 * @param score stored score
+	 * @param ply distance from the root
+	 * @return score relative to the root
+	 */
+	private static int fromTable(int score, int ply)
+	{
+		if(score >= MATE_BOUND)
+			return score - ply;
+		if(score <= -MATE_BOUND)
+			return score + ply;
+		return score;
+	}
+
+	/**
+	 * Main method with sample searches.
+	 * @param args does not accept arguments.
+	 */
+	public static void main(String[] args)
+	{
+		SearchEngine engine = new SearchEngine();
+		engine.setListener(r -> System.out.println("  " + r));
+
+		// red has three in column 3 and wins by dropping there
+		Board board = new Board();
+		int[] opening = {Moves.encode(Moves.DROP, 3, 0), Moves.encode(Moves.DROP, 4, 0),
+			Moves.encode(Moves.DROP, 3, 0), Moves.encode(Moves.DROP, 4, 0),
+			Moves.encode(Moves.DROP, 3, 0), Moves.encode(Moves.DROP, 4, 0)};
+		for(int m : opening)
+		{
+			board.make(m);
+		}
+		Result r = engine.search(board, 8, 1000, 2000);
+		if(r.move == Moves.encode(Moves.DROP, 3, 0) && r.score == MATE - 1)
+			System.out.println("Yay 1");
+
+		// the time budget is respected from the empty board
+		r = engine.search(new Board(), MAX_PLY - 1, 200, 500);
+		if(r.millis < 700 && r.depth > 1)
+			System.out.println("Yay 2");
+	}
+}
@@ -0,0 +1,550 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Training data from self-play: one worker per core plays games between SearchEngine
+ * instances (random openings, a few random moves for variety), samples positions and
+ * labels them with the search score, the best move and the final outcome. Each worker
+ * streams its positions into its own shard files, rotated every positionsPerShard
+ * positions, so memory stays constant whatever the number of positions.
+ *
+ * Shard layout (big endian): header = magic (long), version (int), number of columns
+ * (int), then per column its name (short length and UTF-8 bytes) and its width in
+ * bytes (int). Then row groups of up to ROW_GROUP positions: number of rows (int),
+ * then each column in header order, rows * width bytes. A row group of 0 rows ends
+ * the shard. Columns, all from the side to move's point of view where it matters:
+ * 		red, yellow	7 longs, the player's tokens of each column as a bit mask (row r = bit r)
+ * 		pops		7 longs, rows the side to move may pop (bit 0) or power pop
+ * 		drops		7 longs, rows open to drop or power drop, 0 if the column is full
+ * 		toMove		byte, 0 RED, 1 YELLOW
+ * 		ply			short, moves since the empty board
+ * 		score		int, search score for the side to move
+ * 		best		int, best move found, encoded as in Moves
+ * 		outcome		byte, 1 win, 0 draw, -1 loss for the side to move
+ * 		game		long, game number, to group positions
+ * Usage: java SelfPlayExporter Output_Dir [positions] [threads] [depth] [positionsPerShard]
+ */
+public final class SelfPlayExporter
+{
+	/**
+	 * Shard magic, "PCFSPLAY".
+	 */
+	static final long MAGIC = 0x50434653504C4159L;
+
+	/**
+	 * Version of the layout.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Positions per row group.
+	 */
+	static final int ROW_GROUP = 4096;
+
+	/**
+	 * Names of the columns, in file order.
+	 */
+	static final String[] COLUMNS = {"red", "yellow", "pops", "drops", "toMove", "ply", "score", "best", "outcome", "game"};
+
+	/**
+	 * Width of each column in bytes.
+	 */
+	static final int[] WIDTHS = {8 * Board.NUM_COLS, 8 * Board.NUM_COLS, 8 * Board.NUM_COLS, 8 * Board.NUM_COLS, 1, 2, 4, 4, 1, 8};
+
+	/**
+	 * A game longer than this is a draw.
+	 */
+	private static final int MAX_GAME_PLIES = 120;
+
+	/**
+	 * Chance of a random move instead of the engine's, per mille.
+	 */
+	private static final int RANDOM_PER_MILLE = 30;
+
+	/**
+	 * Streams positions into the shards of one worker.
+	 */
+	static final class ShardWriter implements Closeable
+	{
+		/**
+		 * Output directory.
+		 */
+		private final Path dir;
+		/**
+		 * Worker number, part of the file names.
+		 */
+		private final int worker;
+		/**
+		 * Positions per shard.
+		 */
+		private final long perShard;
+		/**
+		 * Column buffers of the current row group.
+		 */
+		private final long[] red = new long[ROW_GROUP * Board.NUM_COLS];
+		/**
+		 * YELLOW planes.
+		 */
+		private final long[] yellow = new long[ROW_GROUP * Board.NUM_COLS];
+		/**
+		 * Pop masks.
+		 */
+		private final long[] pops = new long[ROW_GROUP * Board.NUM_COLS];
+		/**
+		 * Drop masks.
+		 */
+		private final long[] drops = new long[ROW_GROUP * Board.NUM_COLS];
+		/**
+		 * Sides to move.
+		 */
+		private final byte[] toMove = new byte[ROW_GROUP];
+		/**
+		 * Plies.
+		 */
+		private final short[] ply = new short[ROW_GROUP];
+		/**
+		 * Scores.
+		 */
+		private final int[] score = new int[ROW_GROUP];
+		/**
+		 * Best moves.
+		 */
+		private final int[] best = new int[ROW_GROUP];
+		/**
+		 * Outcomes.
+		 */
+		private final byte[] outcome = new byte[ROW_GROUP];
+		/**
+		 * Game numbers.
+		 */
+		private final long[] game = new long[ROW_GROUP];
+		/**
+		 * Write buffer, one column of a row group at a time.
+		 */
+		private final ByteBuffer out = ByteBuffer.allocateDirect(ROW_GROUP * 8 * Board.NUM_COLS);
+		/**
+		 * Rows in the current row group.
+		 */
+		private int rows;
+		/**
+		 * Positions in the current shard.
+		 */
+		private long inShard;
+		/**
+		 * Number of the next shard.
+		 */
+		private int nextShard;
+		/**
+		 * Open shard, null before the first position.
+		 */
+		private FileChannel channel;
+		/**
+		 * Shards written so far.
+		 */
+		final List<Path> shards = new ArrayList<>();
+
+		/**
+		 * Writer of a worker's shards.
+		 * @param dir output directory
+		 * @param worker worker number
+		 * @param perShard positions per shard
+		 */
+		ShardWriter(Path dir, int worker, long perShard)
+		{
+			this.dir = dir;
+			this.worker = worker;
+			this.perShard = perShard;
+		}
+
+		/**
+		 * Append a position.
+		 * @param board the position
+		 * @param s search score for the side to move
+		 * @param move best move found
+		 * @param result 1, 0 or -1 for the side to move
+		 * @param gameNumber game number
+		 * @throws IOException if a shard cannot be written
+		 */
+		void add(Board board, int s, int move, int result, long gameNumber) throws IOException
+		{
+			int who = board.player();
+			int base = rows * Board.NUM_COLS;
+			for(int c = 0; c < Board.NUM_COLS; c++)
+			{
+				int h = board.height(c);
+				red[base + c] = board.mask(c, 0);
+				yellow[base + c] = board.mask(c, 1);
+				pops[base + c] = board.mask(c, who);
+				drops[base + c] = h < Board.MAX_HEIGHT ? (1L << (h + 1)) - 1 : 0;
+			}
+			toMove[rows] = (byte) who;
+			ply[rows] = (short) board.ply();
+			score[rows] = s;
+			best[rows] = move;
+			outcome[rows] = (byte) result;
+			game[rows] = gameNumber;
+			if(++rows == ROW_GROUP || inShard + rows == perShard)
+				flush();
+		}
+
+		/**
+		 * Write the buffered rows as a row group, rotating the shard when full. add() calls
+		 * it early when the rows fill the shard, so a shard holds exactly perShard positions.
+		 * @throws IOException if the shard cannot be written
+		 */
+		void flush() throws IOException
+		{
+			if(rows == 0)
+				return;
+			if(channel == null)
+				open();
+			out.clear();
+			write(out.putInt(rows));
+			for(int c = 0; c < rows * Board.NUM_COLS; c++)
+			{
+				out.putLong(red[c]);
+			}
+			write(out);
+			for(int c = 0; c < rows * Board.NUM_COLS; c++)
+			{
+				out.putLong(yellow[c]);
+			}
+			write(out);
+			for(int c = 0; c < rows * Board.NUM_COLS; c++)
+			{
+				out.putLong(pops[c]);
+			}
+			write(out);
+			for(int c = 0; c < rows * Board.NUM_COLS; c++)
+			{
+				out.putLong(drops[c]);
+			}
+			write(out);
+			write(out.put(toMove, 0, rows));
+			for(int i = 0; i < rows; i++)
+			{
+				out.putShort(ply[i]);
+			}
+			write(out);
+			for(int i = 0; i < rows; i++)
+			{
+				out.putInt(score[i]);
+			}
+			write(out);
+			for(int i = 0; i < rows; i++)
+			{
+				out.putInt(best[i]);
+			}
+			write(out);
+			write(out.put(outcome, 0, rows));
+			for(int i = 0; i < rows; i++)
+			{
+				out.putLong(game[i]);
+			}
+			write(out);
+			inShard += rows;
+			rows = 0;
+			if(inShard >= perShard)
+				finish();
+		}
+
+		/**
+		 * Write the buffer to the shard and clear it.
+		 * @param b the buffer, filled from 0
+		 * @throws IOException if the shard cannot be written
+		 */
+		private void write(ByteBuffer b) throws IOException
+		{
+			b.flip();
+			while(b.hasRemaining())
+			{
+				channel.write(b);
+			}
+			b.clear();
+		}
+
+		/**
+		 * Start the next shard with its header.
+		 * @throws IOException if the file cannot be created
+		 */
+		private void open() throws IOException
+		{
+			Path p = dir.resolve(String.format("selfplay-%03d-%05d.pcfs", worker, nextShard++));
+			channel = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			shards.add(p);
+			out.clear();
+			out.putLong(MAGIC).putInt(VERSION).putInt(COLUMNS.length);
+			for(int c = 0; c < COLUMNS.length; c++)
+			{
+				byte[] name = COLUMNS[c].getBytes(StandardCharsets.UTF_8);
+				out.putShort((short) name.length).put(name).putInt(WIDTHS[c]);
+			}
+			write(out);
+			inShard = 0;
+		}
+
+		/**
+		 * End the current shard.
+		 * @throws IOException if it cannot be written
+		 */
+		private void finish() throws IOException
+		{
+			if(channel == null)
+				return;
+			write(out.putInt(0));
+			channel.close();
+			channel = null;
+			inShard = 0;
+		}
+
+		/**
+		 * Flush the last rows and end the shard.
+		 * @throws IOException if it cannot be written
+		 */
+		public void close() throws IOException
+		{
+			flush();
+			finish();
+		}
+	}
+
+	/**
+	 * Output directory.
+	 */
+	private final Path dir;
+	/**
+	 * Search depth per move.
+	 */
+	private final int depth;
+	/**
+	 * Positions per shard.
+	 */
+	private final long perShard;
+	/**
+	 * Chance of sampling a position after the opening, per mille.
+	 */
+	private final int samplePerMille;
+	/**
+	 * Positions still to export, reserved by the workers game by game.
+	 */
+	private final AtomicLong remaining = new AtomicLong();
+	/**
+	 * Games started, also the game numbers.
+	 */
+	private final AtomicLong games = new AtomicLong();
+
+	/**
+	 * Exporter.
+	 * @param dir output directory, created if missing
+	 * @param depth search depth per move
+	 * @param perShard positions per shard
+	 * @param samplePerMille chance of sampling a position, per mille
+	 */
+	public SelfPlayExporter(Path dir, int depth, long perShard, int samplePerMille)
+	{
+		this.dir = dir;
+		this.depth = depth;
+		this.perShard = perShard;
+		this.samplePerMille = samplePerMille;
+	}
+
+	/**
+	 * Play until a number of positions was exported.
+	 * @param positions positions to export
+	 * @param threads worker threads
+	 * @return the shards written
+	 * @throws IOException if a shard cannot be written
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public List<Path> export(long positions, int threads) throws IOException, InterruptedException
+	{
+		Files.createDirectories(dir);
+		remaining.set(positions);
+		ShardWriter[] writers = new ShardWriter[threads];
+		IOException[] errors = new IOException[threads];
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			int worker = t;
+			writers[t] = new ShardWriter(dir, t, perShard);
+			workers[t] = new Thread(() -> {
+				try(ShardWriter w = writers[worker])
+				{
+					play(w, new SplittableRandom(310 + worker));
+				}
+				catch(IOException e)
+				{
+					errors[worker] = e;
+					remaining.set(0);
+				}
+			}, "selfplay-" + t);
+			workers[t].start();
+		}
+		List<Path> shards = new ArrayList<>();
+		for(int t = 0; t < threads; t++)
+		{
+			workers[t].join();
+			shards.addAll(writers[t].shards);
+		}
+		for(IOException e : errors)
+		{
+			if(e != null)
+				throw e;
+		}
+		return shards;
+	}
+
+	/**
+	 * Worker loop: play games and write their samples until no positions remain.
+	 * @param writer the worker's shard writer
+	 * @param rand the worker's random numbers
+	 * @throws IOException if a shard cannot be written
+	 */
+	private void play(ShardWriter writer, SplittableRandom rand) throws IOException
+	{
+		SearchEngine engine = new SearchEngine(new TranspositionTable(1 << 18));
+		Board board = new Board();
+		int[] list = new int[Board.MAX_MOVES];
+		Board[] samples = new Board[MAX_GAME_PLIES];
+		int[] scores = new int[MAX_GAME_PLIES];
+		int[] moves = new int[MAX_GAME_PLIES];
+		for(int i = 0; i < samples.length; i++)
+		{
+			samples[i] = new Board();
+		}
+		while(remaining.get() > 0)
+		{
+			long gameNumber = games.incrementAndGet();
+			board.copyFrom(new Board());
+			int opening = 2 + rand.nextInt(7);
+			int sampled = 0;
+			int winner = -1;
+			for(int p = 0; p < MAX_GAME_PLIES && winner < 0; p++)
+			{
+				int n = board.generate(list);
+				if(n == 0)
+					break;
+				int move;
+				if(p < opening || rand.nextInt(1000) < RANDOM_PER_MILLE)
+					move = list[rand.nextInt(n)];
+				else
+				{
+					SearchEngine.Result r = engine.search(board, depth, 1000, 5000);
+					move = r.move == Moves.NONE ? list[rand.nextInt(n)] : r.move;
+					if(r.move != Moves.NONE && rand.nextInt(1000) < samplePerMille)
+					{
+						samples[sampled].copyFrom(board);
+						scores[sampled] = r.score;
+						moves[sampled++] = r.move;
+					}
+				}
+				board.make(move);
+				winner = board.winnerAfter(Moves.col(move));
+			}
+
+			long before = remaining.getAndAdd(-sampled);
+			int keep = (int) Math.max(0, Math.min(sampled, before));
+			for(int i = 0; i < keep; i++)
+			{
+				int who = samples[i].player();
+				writer.add(samples[i], scores[i], moves[i], winner < 0 ? 0 : winner == who ? 1 : -1, gameNumber);
+			}
+		}
+	}
+
+	/**
+	 * Count the positions of a shard by walking its row groups.
+	 * @param shard the shard file
+	 * @return number of positions
+	 * @throws IOException if the file cannot be read or is not a shard
+	 */
+	static long count(Path shard) throws IOException
+	{
+		try(FileChannel ch = FileChannel.open(shard, StandardOpenOption.READ))
+		{
+			ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if(b.getLong() != MAGIC || b.getInt() != VERSION)
+				throw new IOException("Not a shard: " + shard);
+			int columns = b.getInt();
+			int rowBytes = 0;
+			for(int c = 0; c < columns; c++)
+			{
+				int name = b.getShort();
+				b.position(b.position() + name);
+				rowBytes += b.getInt();
+			}
+			long total = 0;
+			int rows;
+			while((rows = b.getInt()) > 0)
+			{
+				total += rows;
+				b.position(b.position() + rows * rowBytes);
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Run the exporter and check the shards.
+	 * @param args output directory, positions (default 100000), threads (default all
+	 * cores), depth (default 2), positions per shard (default 1000000)
+	 * @throws IOException if a shard cannot be written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.out.println("Usage: java SelfPlayExporter Output_Dir [positions] [threads] [depth] [positionsPerShard]");
+			return;
+		}
+		Path dir = Path.of(args[0]);
+		long positions = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int depth = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+		long perShard = args.length > 4 ? Long.parseLong(args[4]) : 1000000;
+
+		if(Files.isDirectory(dir))
+		{
+			try(DirectoryStream<Path> old = Files.newDirectoryStream(dir, "selfplay-*.pcfs"))
+			{
+				if(old.iterator().hasNext())
+				{
+					System.out.println("Output directory already holds shards: " + dir);
+					return;
+				}
+			}
+		}
+
+		SelfPlayExporter exporter = new SelfPlayExporter(dir, depth, perShard, 500);
+		long start = System.nanoTime();
+		List<Path> shards = exporter.export(positions, threads);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long total = 0;
+		long bytes = 0;
+		int over = 0;
+		for(Path p : shards)
+		{
+			long n = count(p);
+			total += n;
+			bytes += Files.size(p);
+			if(n > perShard)
+				over++;
+		}
+		System.out.format("%,d positions from %,d games in %d shards (%,d bytes) in %.1f s: %,.0f positions/hour%n",
+			total, exporter.games.get(), shards.size(), bytes, seconds, total / seconds * 3600);
+		if(total == positions && over == 0)
+			System.out.println("Yay 1");
+	}
+}
@@ -0,0 +1,553 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long running soak test of PowerConnectFour. Worker threads play many games at once
+ * with random legal moves, growing the columns up to a target height and popping
+ * them down again so that expand() and shrink() run over and over. Every game is
+ * shadowed by a simple reference model: each move must be accepted, some illegal moves
+ * must be rejected, and every checkEvery moves the grid, sizeRow(), player to move
+ * and four-connected results must match. After a warmup the harness reports moves/s,
+ * allocation rate, GC totals and heap use.
+ * Usage: java SoakHarness [seconds]s|[moves] [threads] [gamesPerThread] [maxHeight] [checkEvery]
+ * e.g. java SoakHarness 600s 8 64 40 64
+ */
+public final class SoakHarness
+{
+	/**
+	 * The fixed number of columns of the grid.
+	 */
+	private static final int NUM_COLS = 7;
+
+	/**
+	 * The minimum number of rows of the grid for display.
+	 */
+	private static final int MIN_ROWS = 6;
+
+	/**
+	 * Moves counted locally before adding to the shared counter.
+	 */
+	private static final int BATCH = 1024;
+
+	/**
+	 * Straightforward model of the rules to check PowerConnectFour against.
+	 * Cells hold 0 for RED, 1 for YELLOW and -1 for empty.
+	 */
+	static final class Reference
+	{
+		/**
+		 * Cells by column and row.
+		 */
+		final int[][] cells;
+		/**
+		 * Tokens in each column.
+		 */
+		final int[] height = new int[NUM_COLS];
+		/**
+		 * Player to move.
+		 */
+		int player;
+
+		/**
+		 * Empty grid.
+		 * @param maxHeight the tallest a column may grow
+		 */
+		Reference(int maxHeight)
+		{
+			cells = new int[NUM_COLS][maxHeight + 1];
+			for(int[] column : cells)
+			{
+				Arrays.fill(column, -1);
+			}
+		}
+
+		/**
+		 * O(1).
+		 * @param move encoded move
+		 * @return whether the player to move may make it
+		 */
+		boolean isLegal(int move)
+		{
+			int col = Moves.col(move);
+			int row = Moves.row(move);
+			if(col >= NUM_COLS)
+				return false;
+			int h = height[col];
+			switch(Moves.kind(move))
+			{
+				case Moves.DROP:
+					return h < cells[col].length - 1;
+				case Moves.POP:
+					return h > 0 && cells[col][0] == player;
+				case Moves.POWER_DROP:
+					return row <= h && h < cells[col].length - 1;
+				default:
+					return row < h && cells[col][row] == player;
+			}
+		}
+
+		/**
+		 * Make a legal move and switch players.
+		 * @param move encoded move
+		 */
+		void make(int move)
+		{
+			int col = Moves.col(move);
+			int[] c = cells[col];
+			switch(Moves.kind(move))
+			{
+				case Moves.DROP:
+					c[height[col]++] = player;
+					break;
+				case Moves.POP:
+					remove(c, col, 0);
+					break;
+				case Moves.POWER_DROP:
+					System.arraycopy(c, Moves.row(move), c, Moves.row(move) + 1, height[col] - Moves.row(move));
+					c[Moves.row(move)] = player;
+					height[col]++;
+					break;
+				default:
+					remove(c, col, Moves.row(move));
+			}
+			player ^= 1;
+		}
+
+		/**
+		 * Remove a token and shift the ones above down.
+		 * @param c the column cells
+		 * @param col take an integer as column index
+		 * @param row take an integer as row index
+		 */
+		private void remove(int[] c, int col, int row)
+		{
+			System.arraycopy(c, row + 1, c, row, height[col] - row - 1);
+			c[--height[col]] = -1;
+		}
+
+		/**
+		 * O(cols).
+		 * @return height of the tallest column
+		 */
+		int tallest()
+		{
+			int top = 0;
+			for(int h : height)
+			{
+				top = Math.max(top, h);
+			}
+			return top;
+		}
+
+		/**
+		 * Check every cell and direction for four connected.
+		 * @param who 0 for RED, 1 for YELLOW
+		 * @return whether the player has four connected
+		 */
+		boolean hasFourConnected(int who)
+		{
+			int[][] dirs = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+			for(int col = 0; col < NUM_COLS; col++)
+			{
+				for(int row = 0; row < height[col]; row++)
+				{
+					for(int[] d : dirs)
+					{
+						int k = 0;
+						while(k < 4 && cell(col + k * d[0], row + k * d[1]) == who)
+						{
+							k++;
+						}
+						if(k == 4)
+							return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * O(1).
+		 * @param col take an integer as column index
+		 * @param row take an integer as row index
+		 * @return the cell, -1 if empty or outside the grid
+		 */
+		private int cell(int col, int row)
+		{
+			if(col < 0 || col >= NUM_COLS || row < 0 || row >= height[col])
+				return -1;
+			return cells[col][row];
+		}
+	}
+
+	/**
+	 * Target height of the columns.
+	 */
+	private final int maxHeight;
+
+	/**
+	 * Full comparison every this many moves of a game.
+	 */
+	private final int checkEvery;
+
+	/**
+	 * Moves made by all workers.
+	 */
+	private final LongAdder moves = new LongAdder();
+
+	/**
+	 * Full comparisons done.
+	 */
+	private final LongAdder checks = new LongAdder();
+
+	/**
+	 * Expands observed through sizeRow().
+	 */
+	private final LongAdder expands = new LongAdder();
+
+	/**
+	 * Shrinks observed through sizeRow().
+	 */
+	private final LongAdder shrinks = new LongAdder();
+
+	/**
+	 * First mismatch found, null while all is well.
+	 */
+	private final AtomicReference<String> failure = new AtomicReference<>();
+
+	/**
+	 * Set to stop the workers.
+	 */
+	private volatile boolean stop;
+
+	/**
+	 * Soak harness.
+	 * @param maxHeight target height of the columns, at least MIN_ROWS
+	 * @param checkEvery full comparison every this many moves of a game
+	 */
+	public SoakHarness(int maxHeight, int checkEvery)
+	{
+		this.maxHeight = Math.max(maxHeight, MIN_ROWS);
+		this.checkEvery = Math.max(checkEvery, 1);
+	}
+
+	/**
+	 * Play games until stopped or a mismatch is found.
+	 * @param games number of games played by this worker
+	 * @param seed random seed
+	 */
+	private void work(int games, long seed)
+	{
+		SplittableRandom rand = new SplittableRandom(seed);
+		PowerConnectFour[] game = new PowerConnectFour[games];
+		Reference[] ref = new Reference[games];
+		boolean[] growing = new boolean[games];
+		int[] played = new int[games];
+		for(int g = 0; g < games; g++)
+		{
+			game[g] = new PowerConnectFour();
+			ref[g] = new Reference(maxHeight);
+			growing[g] = true;
+		}
+		int local = 0;
+		try
+		{
+			while(!stop)
+			{
+				for(int g = 0; g < games; g++)
+				{
+					PowerConnectFour pcf = game[g];
+					Reference r = ref[g];
+					int tallest = r.tallest();
+					if(growing[g] && tallest >= maxHeight)
+						growing[g] = false;
+					else if(!growing[g] && tallest <= MIN_ROWS - 2)
+						growing[g] = true;
+
+					if(rand.nextInt(16) == 0)
+						checkIllegal(pcf, r, rand, g);
+					int move = pick(r, rand, growing[g]);
+					int rowsBefore = pcf.sizeRow();
+					if(!Moves.apply(pcf, move))
+						fail(g, "rejected legal move " + Moves.toString(move));
+					r.make(move);
+					int rowsAfter = pcf.sizeRow();
+					if(rowsAfter > rowsBefore)
+						expands.increment();
+					else if(rowsAfter < rowsBefore)
+						shrinks.increment();
+					if(++played[g] % checkEvery == 0)
+						compare(pcf, r, g);
+					if(++local == BATCH)
+					{
+						moves.add(local);
+						local = 0;
+					}
+				}
+			}
+		}
+		catch(RuntimeException e)
+		{
+			failure.compareAndSet(null, e.toString());
+			stop = true;
+		}
+		moves.add(local);
+	}
+
+	/**
+	 * Pick a random legal move, mostly adding tokens while growing and mostly
+	 * removing them while shrinking.
+	 * @param r the reference position
+	 * @param rand random numbers
+	 * @param growing whether the game is growing
+	 * @return a legal encoded move
+	 */
+	private static int pick(Reference r, SplittableRandom rand, boolean growing)
+	{
+		for(int tries = 0; tries < 8; tries++)
+		{
+			int col = rand.nextInt(NUM_COLS);
+			int h = r.height[col];
+			int roll = rand.nextInt(100);
+			int move;
+			if(roll < (growing ? 65 : 15))
+				move = Moves.encode(Moves.DROP, col, 0);
+			else if(roll < (growing ? 85 : 30))
+				move = Moves.encode(Moves.POWER_DROP, col, rand.nextInt(h + 1));
+			else if(roll < (growing ? 93 : 60))
+				move = Moves.encode(Moves.POP, col, 0);
+			else
+				move = Moves.encode(Moves.POWER_POP, col, h == 0 ? 0 : rand.nextInt(h));
+			if(r.isLegal(move))
+				return move;
+		}
+		int lowest = 0;
+		for(int c = 1; c < NUM_COLS; c++)
+		{
+			if(r.height[c] < r.height[lowest])
+				lowest = c;
+		}
+		return Moves.encode(Moves.DROP, lowest, 0);
+	}
+
+	/**
+	 * Try an illegal move and check that the game rejects it without changing.
+	 * @param pcf the game
+	 * @param r the reference position
+	 * @param rand random numbers
+	 * @param g index of the game for reports
+	 */
+	private void checkIllegal(PowerConnectFour pcf, Reference r, SplittableRandom rand, int g)
+	{
+		int col = rand.nextInt(NUM_COLS);
+		int h = r.height[col];
+		int move;
+		switch(rand.nextInt(3))
+		{
+			case 0:
+				move = Moves.encode(Moves.POP, col, 0);
+				break;
+			case 1:
+				move = Moves.encode(Moves.POWER_POP, col, rand.nextInt(h + 1));
+				break;
+			default:
+				move = Moves.encode(Moves.POWER_DROP, col, h + 1 + rand.nextInt(2));
+		}
+		if(r.isLegal(move) || (Moves.kind(move) == Moves.POWER_DROP && Moves.row(move) >= pcf.sizeRow()))
+			return;
+		Token before = pcf.currentPlayer();
+		if(Moves.apply(pcf, move))
+			fail(g, "accepted illegal move " + Moves.toString(move));
+		if(pcf.currentPlayer() != before)
+			fail(g, "player changed by rejected move " + Moves.toString(move));
+	}
+
+	/**
+	 * Compare a game with its reference position.
+	 * @param pcf the game
+	 * @param r the reference position
+	 * @param g index of the game for reports
+	 */
+	private void compare(PowerConnectFour pcf, Reference r, int g)
+	{
+		checks.increment();
+		int rows = Math.max(MIN_ROWS, r.tallest() + 1);
+		if(pcf.sizeRow() != rows)
+			fail(g, "sizeRow() " + pcf.sizeRow() + ", expected " + rows);
+		if(pcf.currentPlayer().ordinal() != r.player)
+			fail(g, "wrong player to move");
+		for(int col = 0; col < NUM_COLS; col++)
+		{
+			if(pcf.getColumn(col).capacity() != rows || pcf.getColumn(col).size() != r.height[col])
+				fail(g, "column " + col + " size " + pcf.getColumn(col).size() + "/" + pcf.getColumn(col).capacity()
+					+ ", expected " + r.height[col] + "/" + rows);
+			for(int row = 0; row < rows; row++)
+			{
+				Token t = pcf.get(col, row);
+				int expected = row < r.height[col] ? r.cells[col][row] : -1;
+				if((t == null ? -1 : t.ordinal()) != expected)
+					fail(g, "cell " + col + "," + row + " is " + t);
+			}
+		}
+		for(Token t : Token.values())
+		{
+			if(pcf.hasFourConnected(t) != r.hasFourConnected(t.ordinal()))
+				fail(g, "hasFourConnected(" + t + ") is " + pcf.hasFourConnected(t));
+		}
+	}
+
+	/**
+	 * Report a mismatch.
+	 * @param g index of the game
+	 * @param what the mismatch
+	 */
+	private static void fail(int g, String what)
+	{
+		throw new IllegalStateException("game " + g + ": " + what);
+	}
+
+	/**
+	 * O(collectors).
+	 * @return total collections and collection time in ms of all collectors
+	 */
+	private static long[] gcTotals()
+	{
+		long[] totals = new long[2];
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			totals[0] += Math.max(gc.getCollectionCount(), 0);
+			totals[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return totals;
+	}
+
+	/**
+	 * Bytes allocated so far by some threads, -1 if the JVM cannot tell.
+	 * @param threads the threads
+	 * @return allocated bytes
+	 */
+	private static long allocated(Thread[] threads)
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		long total = 0;
+		for(Thread t : threads)
+		{
+			total += ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(t.getId());
+		}
+		return total;
+	}
+
+	/**
+	 * Run the soak test. The first tenth of the run is warmup and is not measured.
+	 * @param threads worker threads
+	 * @param gamesPerThread games played by each worker
+	 * @param millis run time in ms, or 0 to stop on the move count
+	 * @param moveLimit moves to play when millis is 0
+	 * @param seed random seed
+	 * @return true if no mismatch was found
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean run(int threads, int gamesPerThread, long millis, long moveLimit, long seed)
+		throws InterruptedException
+	{
+		System.out.format("Soak: %d threads x %d games, columns up to %d, full check every %d moves%n",
+			threads, gamesPerThread, maxHeight, checkEvery);
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			long s = seed + t;
+			workers[t] = new Thread(() -> work(gamesPerThread, s), "soak-" + t);
+			workers[t].start();
+		}
+
+		long begin = System.nanoTime();
+		waitFor(begin, millis / 10, moveLimit / 10);
+		long t0 = System.nanoTime();
+		long moves0 = moves.sum();
+		long bytes0 = allocated(workers);
+		long[] gc0 = gcTotals();
+		long resizes0 = expands.sum() + shrinks.sum();
+
+		waitFor(begin, millis, moveLimit);
+		long t1 = System.nanoTime();
+		long moves1 = moves.sum();
+		long bytes1 = allocated(workers);
+		long[] gc1 = gcTotals();
+		long resizes1 = expands.sum() + shrinks.sum();
+		stop = true;
+		for(Thread w : workers)
+		{
+			w.join();
+		}
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long heapUsed = memory.getHeapMemoryUsage().getUsed();
+		System.gc();
+		long heapLive = memory.getHeapMemoryUsage().getUsed();
+
+		double seconds = (t1 - t0) / 1e9;
+		long measured = moves1 - moves0;
+		System.out.format("Moves: %d in %.1f s after warmup: %.0f moves/s (%d in total)%n",
+			measured, seconds, measured / seconds, moves.sum());
+		System.out.format("Grid resizes: %d expand, %d shrink (%.0f/s after warmup)%n",
+			expands.sum(), shrinks.sum(), (resizes1 - resizes0) / seconds);
+		if(bytes0 >= 0)
+			System.out.format("Allocation: %.1f MB/s, %.1f bytes/move%n",
+				(bytes1 - bytes0) / seconds / 1e6, (double) (bytes1 - bytes0) / Math.max(measured, 1));
+		System.out.format("GC: %d collections, %d ms total after warmup%n", gc1[0] - gc0[0], gc1[1] - gc0[1]);
+		System.out.format("Heap: %.1f MB used at the end, %.1f MB after a full GC%n", heapUsed / 1e6, heapLive / 1e6);
+		String f = failure.get();
+		System.out.println(f == null ? "Cross-check: OK, " + checks.sum() + " full comparisons"
+			: "Cross-check: FAILED, " + f);
+		return f == null;
+	}
+
+	/**
+	 * Wait until a time or move count is reached, or a mismatch is found.
+	 * @param begin start of the run from System.nanoTime()
+	 * @param millis ms since the start, or 0 to use the move count
+	 * @param moveLimit moves when millis is 0
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void waitFor(long begin, long millis, long moveLimit) throws InterruptedException
+	{
+		while(!stop)
+		{
+			if(millis > 0 ? System.nanoTime() - begin >= millis * 1000000 : moves.sum() >= moveLimit)
+				return;
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Run the soak test from the command line.
+	 * @param args run length ("60s" or a move count), threads, games per thread, column height, check interval
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		String length = args.length > 0 ? args[0] : "20s";
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int games = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+		int check = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+		long millis = 0;
+		long moveLimit = 0;
+		if(length.endsWith("s"))
+			millis = Long.parseLong(length.substring(0, length.length() - 1)) * 1000;
+		else
+			moveLimit = Long.parseLong(length);
+
+		SoakHarness soak = new SoakHarness(height, check);
+		if(!soak.run(threads, games, millis, moveLimit, 310))
+			System.exit(1);
+	}
+}
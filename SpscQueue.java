@@ -0,0 +1,166 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * A ring of slots with a head (next to read) and tail (next to write) counter; each
+ * side publishes its counter with a release store and caches the other side's counter,
+ * so the common case touches no shared cache line but the slot itself.
+ * @param <E> type of the elements
+ */
+public final class SpscQueue<E>
+{
+	/**
+	 * Spins before a blocked side starts parking.
+	 */
+	private static final int SPINS = 256;
+
+	/**
+	 * The slots, length a power of two.
+	 */
+	private final Object[] slots;
+
+	/**
+	 * slots.length - 1.
+	 */
+	private final int mask;
+
+	/**
+	 * Count of elements taken, written by the consumer only.
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * Count of elements added, written by the producer only.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Producer's last view of head.
+	 */
+	private long headCache;
+
+	/**
+	 * Consumer's last view of tail.
+	 */
+	private long tailCache;
+
+	/**
+	 * Empty queue.
+	 * @param capacity number of elements, rounded up to a power of two
+	 * @throws IllegalArgumentException if capacity is smaller than 1
+	 */
+	public SpscQueue(int capacity)
+	{
+		if(capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Capacity must be in 1.." + (1 << 30));
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		slots = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Add an element if there is room. Producer only. O(1)
+	 * @param e the element, not null
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E e)
+	{
+		long t = tail.get();
+		if(t - headCache >= slots.length)
+		{
+			headCache = head.get();
+			if(t - headCache >= slots.length)
+				return false;
+		}
+		slots[(int) t & mask] = e;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Take the oldest element if there is one. Consumer only. O(1)
+	 * @return the element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll()
+	{
+		long h = head.get();
+		if(h >= tailCache)
+		{
+			tailCache = tail.get();
+			if(h >= tailCache)
+				return null;
+		}
+		int slot = (int) h & mask;
+		E e = (E) slots[slot];
+		slots[slot] = null;
+		head.lazySet(h + 1);
+		return e;
+	}
+
+	/**
+	 * Add an element, spinning and then parking while the queue is full. Producer only.
+	 * @param e the element, not null
+	 * @param cancelled checked while waiting; the element is dropped once it is true
+	 * @return true if the element was added
+	 */
+	public boolean put(E e, BooleanSupplier cancelled)
+	{
+		for(int spins = 0; !offer(e); spins++)
+		{
+			if(cancelled.getAsBoolean())
+				return false;
+			idle(spins);
+		}
+		return true;
+	}
+
+	/**
+	 * Take the oldest element, spinning and then parking while the queue is empty.
+	 * Consumer only.
+	 * @return the element
+	 */
+	public E take()
+	{
+		E e;
+		for(int spins = 0; (e = poll()) == null; spins++)
+		{
+			idle(spins);
+		}
+		return e;
+	}
+
+	/**
+	 * O(1), may be stale by the time it returns.
+	 * @return number of elements waiting
+	 */
+	public int size()
+	{
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * O(1).
+	 * @return maximum number of elements
+	 */
+	public int capacity()
+	{
+		return slots.length;
+	}
+
+	/**
+	 * Back off while waiting for the other side.
+	 * @param spins how long we have been waiting
+	 */
+	private static void idle(int spins)
+	{
+		if(spins < SPINS)
+			Thread.onSpinWait();
+		else
+			LockSupport.parkNanos(50000);
+	}
+}
@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/**
+ * A fixed size hash table of search results keyed by Board.hash().
+ * Each entry is two longs; the key is stored XOR-ed with the data so that a torn write
+ * from another thread reads back as a miss instead of a wrong result, which lets
+ * several search threads share one table without locks.
+ */
+public class TranspositionTable
+{
+	/**
+	 * Score is exact.
+	 */
+	public static final int EXACT = 0;
+	/**
+	 * Score is a lower bound (search failed high).
+	 */
+	public static final int LOWER = 1;
+	/**
+	 * Score is an upper bound (search failed low).
+	 */
+	public static final int UPPER = 2;
+
+	/**
+	 * Bit set in every stored entry so that no entry packs to 0.
+	 */
+	private static final long VALID = 1L << 63;
+
+	/**
+	 * Stored key XOR data of each entry.
+	 */
+	private final long[] keys;
+
+	/**
+	 * Packed data of each entry: move, score, depth and bound.
+	 */
+	private final long[] data;
+
+	/**
+	 * Mask used to turn a hash into an index.
+	 */
+	private final int mask;
+
+	/**
+	 * Table with at least the given number of entries (rounded up to a power of two).
+	 * @param entries requested number of entries, 16 bytes each
+	 */
+	public TranspositionTable(int entries)
+	{
+		int size = Integer.highestOneBit(Math.max(entries - 1, 1)) << 1;
+		keys = new long[size];
+		data = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * O(1).
+	 * @return number of entries
+	 */
+	public int capacity()
+	{
+		return keys.length;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear()
+	{
+		Arrays.fill(keys, 0);
+		Arrays.fill(data, 0);
+	}
+
+	/**
+	 * Store a search result, replacing the entry in the slot if it is not deeper.
+	 * @param hash position hash
+	 * @param move best move found, or Moves.NONE
+	 * @param score search score
+	 * @param depth remaining depth searched
+	 * @param bound EXACT, LOWER or UPPER
+	 */
+	public void store(long hash, int move, int score, int depth, int bound)
+	{
+		int i = (int) hash & mask;
+		long old = data[i];
+		if((keys[i] ^ old) != hash && depth < depth(old) - 2)
+			return; // keep a much deeper entry of another position
+		long d = VALID
+			| ((long) (move + 1) & 0x7FFFFFL) << 40
+			| ((long) score & 0xFFFFFFFFL) << 8
+			| (depth & 0x3FL) << 2
+			| bound;
+		data[i] = d;
+		keys[i] = hash ^ d;
+	}
+
+	/**
+	 * Look up a position.
+	 * @param hash position hash
+	 * @return packed entry data, or 0 if the position is not stored
+	 */
+	public long probe(long hash)
+	{
+		int i = (int) hash & mask;
+		long d = data[i];
+		if((keys[i] ^ d) != hash)
+			return 0;
+		return d;
+	}
+
+	/**
+	 * O(1).
+	 * @param entry packed entry from probe()
+	 * @return the stored move, or Moves.NONE
+	 */
+	public static int move(long entry)
+	{
+		return (int) ((entry >>> 40) & 0x7FFFFFL) - 1;
+	}
+
+	/**
+	 * O(1).
+	 * @param entry packed entry from probe()
+	 * @return the stored score
+	 */
+	public static int score(long entry)
+	{
+		return (int) (entry >>> 8);
+	}
+
+	/**
+	 * O(1).
+	 * @param entry packed entry from probe()
+	 * @return the stored depth
+	 */
+	public static int depth(long entry)
+	{
+		return (int) (entry >>> 2) & 0x3F;
+	}
+
+	/**
+	 * O(1).
+	 * @param entry packed entry from probe()
+	 * @return EXACT, LOWER or UPPER
+	 */
+	public static int bound(long entry)
+	{
+		return (int) entry & 3;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Window of rows drawn by the grid renderers. Power drops let a column grow without
+ * bound, and drawing every row on every move makes tall boards print megabytes per
+ * move. With -Dview.rows=N only N rows around a focus row are drawn (the row of the
+ * last move, or the top of the grid before any move) and a summary line stands for
+ * each hidden block, so the cost of a grid is bounded by N instead of the height.
+ * Without the property, or with N = 0, every row is drawn as before.
+ */
+public final class Viewport
+{
+	/**
+	 * Rows drawn around the focus, 0 for all rows, set with -Dview.rows=...
+	 */
+	public static final int ROWS = Math.max(0, Integer.getInteger("view.rows", 0));
+
+	/**
+	 * Focus meaning the top of the grid.
+	 */
+	public static final int TOP = -1;
+
+	/**
+	 * No instances, only static helpers.
+	 */
+	private Viewport()
+	{
+	}
+
+	/**
+	 * Lowest row drawn. O(1).
+	 * @param rows number of rows of the grid
+	 * @param focus row to keep in view, TOP for the top of the grid
+	 * @param window rows drawn, 0 for all
+	 * @return the lowest row drawn, 0 if every row fits
+	 */
+	public static int bottom(int rows, int focus, int window)
+	{
+		if(window <= 0 || rows <= window)
+			return 0;
+		if(focus == TOP || focus >= rows)
+			focus = rows - 1;
+		int bottom = focus - window / 2;
+		return Math.max(0, Math.min(bottom, rows - window));
+	}
+
+	/**
+	 * Highest row drawn. O(1).
+	 * @param rows number of rows of the grid
+	 * @param focus row to keep in view, TOP for the top of the grid
+	 * @param window rows drawn, 0 for all
+	 * @return the highest row drawn, rows-1 if every row fits
+	 */
+	public static int top(int rows, int focus, int window)
+	{
+		if(window <= 0 || rows <= window)
+			return rows - 1;
+		return bottom(rows, focus, window) + window - 1;
+	}
+
+	/**
+	 * Row a move changed, to keep in view after it was made. O(1).
+	 * @param game the game after the move
+	 * @param move encoded move
+	 * @return the row of the dropped token for DROP, 0 for POP, the given row otherwise
+	 */
+	public static int focus(PowerConnectFour game, int move)
+	{
+		switch(Moves.kind(move))
+		{
+			case Moves.DROP:
+				return game.getColumn(Moves.col(move)).size() - 1;
+			case Moves.POP:
+				return 0;
+			default:
+				return Moves.row(move);
+		}
+	}
+
+	/**
+	 * Append the summary line of a block of hidden rows.
+	 * @param s where to append
+	 * @param above whether the block is above the drawn rows
+	 * @param from lowest hidden row
+	 * @param to highest hidden row
+	 */
+	public static void appendHidden(StringBuilder s, boolean above, int from, int to)
+	{
+		s.append(above ? "| ^ |" : "| v |").append(' ').append(to - from + 1)
+			.append(to == from ? " row hidden (" : " rows hidden (").append(from);
+		if(to != from)
+			s.append(" - ").append(to);
+		s.append(")\n");
+	}
+
+	/**
+	 * Checks of the window arithmetic.
+	 * @param args not used
+	 */
+	public static void main(String[] args)
+	{
+		if(bottom(6, TOP, 0) == 0 && top(6, TOP, 0) == 5 && bottom(6, 3, 10) == 0 && top(6, 3, 10) == 5)
+			System.out.println("Yay 1");
+		if(bottom(1000, TOP, 10) == 990 && top(1000, TOP, 10) == 999 && bottom(1000, 5000, 10) == 990)
+			System.out.println("Yay 2");
+		if(bottom(1000, 500, 10) == 495 && top(1000, 500, 10) == 504 && bottom(1000, 2, 10) == 0)
+			System.out.println("Yay 3");
+
+		PowerConnectFour game = new PowerConnectFour();
+		game.drop(3);
+		game.drop(3);
+		if(focus(game, Moves.encode(Moves.DROP, 3, 0)) == 1 && focus(game, Moves.encode(Moves.POWER_POP, 3, 4)) == 4)
+			System.out.println("Yay 4");
+
+		StringBuilder s = new StringBuilder();
+		appendHidden(s, true, 10, 99);
+		appendHidden(s, false, 0, 0);
+		if(s.toString().equals("| ^ | 90 rows hidden (10 - 99)\n| v | 1 row hidden (0)\n"))
+			System.out.println("Yay 5");
+	}
+}
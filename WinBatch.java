@@ -0,0 +1,405 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Win detection for many independent boards at once. The boards are laid out as
+ * parallel lanes: one long[] per player and column holding that column's mask of every
+ * board, so the same shift-and-mask test as Board.hasFourConnected() runs over whole
+ * arrays. With the Vector API the lanes are tested several boards per instruction by
+ * VectorWinKernel, otherwise by a scalar loop. The vector kernel is in vector/ so the
+ * rest of the tree builds without the incubator module:
+ * 		javac -d . *.java
+ * 		javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorWinKernel.java
+ * 		java --add-modules jdk.incubator.vector WinBatch
+ */
+public final class WinBatch
+{
+	/**
+	 * Flag of a board where RED has four connected.
+	 */
+	public static final int RED_FOUR = 1;
+	/**
+	 * Flag of a board where YELLOW has four connected.
+	 */
+	public static final int YELLOW_FOUR = 2;
+
+	/**
+	 * Tests lanes of boards for four connected.
+	 */
+	interface Kernel
+	{
+		/**
+		 * Set a flag on every board where a player has four connected.
+		 * @param masks the player's masks, masks[col][board]
+		 * @param count number of boards
+		 * @param flags flags of the boards, or-ed with flag
+		 * @param flag RED_FOUR or YELLOW_FOUR
+		 */
+		void fours(long[][] masks, int count, byte[] flags, int flag);
+	}
+
+	/**
+	 * Scalar kernel: the tests of Board.hasFourConnected() one board at a time.
+	 */
+	static final Kernel SCALAR = (masks, count, flags, flag) -> {
+		long[] m0 = masks[0];
+		long[] m1 = masks[1];
+		long[] m2 = masks[2];
+		long[] m3 = masks[3];
+		long[] m4 = masks[4];
+		long[] m5 = masks[5];
+		long[] m6 = masks[6];
+		for(int i = 0; i < count; i++)
+		{
+			if(four(m0[i], m1[i], m2[i], m3[i], m4[i], m5[i], m6[i]) != 0)
+				flags[i] |= flag;
+		}
+	};
+
+	/**
+	 * Kernel used by default: the vector one if it can be loaded, else scalar.
+	 */
+	static final Kernel KERNEL = load();
+
+	/**
+	 * RED masks, red[col][board].
+	 */
+	private final long[][] red;
+	/**
+	 * YELLOW masks, yellow[col][board].
+	 */
+	private final long[][] yellow;
+	/**
+	 * Player to move of each board.
+	 */
+	private final byte[] toMove;
+	/**
+	 * Flags of each board after evaluate().
+	 */
+	private final byte[] flags;
+	/**
+	 * The kernel used.
+	 */
+	private final Kernel kernel;
+	/**
+	 * Number of boards set.
+	 */
+	private int size;
+
+	/**
+	 * Empty batch using the default kernel.
+	 * @param capacity maximum number of boards
+	 */
+	public WinBatch(int capacity)
+	{
+		this(capacity, KERNEL);
+	}
+
+	/**
+	 * Empty batch.
+	 * @param capacity maximum number of boards
+	 * @param kernel the kernel to use
+	 */
+	WinBatch(int capacity, Kernel kernel)
+	{
+		red = new long[Board.NUM_COLS][capacity];
+		yellow = new long[Board.NUM_COLS][capacity];
+		toMove = new byte[capacity];
+		flags = new byte[capacity];
+		this.kernel = kernel;
+	}
+
+	/**
+	 * O(1).
+	 * @return number of boards in the batch
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * O(1).
+	 * @return maximum number of boards
+	 */
+	public int capacity()
+	{
+		return flags.length;
+	}
+
+	/**
+	 * O(1).
+	 * @return whether the vector kernel is used
+	 */
+	public boolean isVectorized()
+	{
+		return kernel != SCALAR;
+	}
+
+	/**
+	 * Empty the batch.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Add a board to the batch. O(cols).
+	 * @param board the board
+	 * @return index of the board in the batch
+	 * @throws IllegalStateException if the batch is full
+	 */
+	public int add(Board board)
+	{
+		int i = next();
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			red[c][i] = board.mask(c, 0);
+			yellow[c][i] = board.mask(c, 1);
+		}
+		toMove[i] = (byte) board.player();
+		return i;
+	}
+
+	/**
+	 * Add the grid of a game to the batch. O(tokens).
+	 * @param game the game
+	 * @return index of the game in the batch
+	 * @throws IllegalStateException if the batch is full
+	 * @throws IllegalArgumentException if a column is taller than Board.MAX_HEIGHT
+	 */
+	public int add(PowerConnectFour game)
+	{
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			if(game.getColumn(c).size() > Board.MAX_HEIGHT)
+				throw new IllegalArgumentException("Column " + c + " is taller than " + Board.MAX_HEIGHT);
+		}
+		int i = next();
+		for(int c = 0; c < Board.NUM_COLS; c++)
+		{
+			long r = 0;
+			long y = 0;
+			int h = game.getColumn(c).size();
+			for(int row = 0; row < h; row++)
+			{
+				if(game.get(c, row) == Token.RED)
+					r |= 1L << row;
+				else
+					y |= 1L << row;
+			}
+			red[c][i] = r;
+			yellow[c][i] = y;
+		}
+		toMove[i] = (byte) game.currentPlayer().ordinal();
+		return i;
+	}
+
+	/**
+	 * Claim the next slot.
+	 * @return its index
+	 */
+	private int next()
+	{
+		if(size == flags.length)
+			throw new IllegalStateException("Batch is full: " + size);
+		return size++;
+	}
+
+	/**
+	 * Test every board of the batch for both players. O(boards * cols).
+	 */
+	public void evaluate()
+	{
+		Arrays.fill(flags, 0, size, (byte) 0);
+		kernel.fours(red, size, flags, RED_FOUR);
+		kernel.fours(yellow, size, flags, YELLOW_FOUR);
+	}
+
+	/**
+	 * O(1), after evaluate().
+	 * @param i index of a board
+	 * @return RED_FOUR and YELLOW_FOUR or-ed for the players with four connected
+	 */
+	public int flags(int i)
+	{
+		return flags[i];
+	}
+
+	/**
+	 * Winner of a board in the order of Board.winner(): the player who just moved
+	 * first, then the player to move. O(1), after evaluate().
+	 * @param i index of a board
+	 * @return 0 for RED, 1 for YELLOW, -1 if nobody has four connected
+	 */
+	public int winner(int i)
+	{
+		int mover = toMove[i] ^ 1;
+		if((flags[i] & (1 << mover)) != 0)
+			return mover;
+		if((flags[i] & (1 << (mover ^ 1))) != 0)
+			return mover ^ 1;
+		return -1;
+	}
+
+	/**
+	 * Four connected among seven column masks.
+	 * @param a mask of column 0
+	 * @param b mask of column 1
+	 * @param c mask of column 2
+	 * @param d mask of column 3
+	 * @param e mask of column 4
+	 * @param f mask of column 5
+	 * @param g mask of column 6
+	 * @return non-zero if there are four connected
+	 */
+	static long four(long a, long b, long c, long d, long e, long f, long g)
+	{
+		return window(a, b, c, d) | window(b, c, d, e) | window(c, d, e, f) | window(d, e, f, g)
+			| vertical(a) | vertical(b) | vertical(c) | vertical(d) | vertical(e) | vertical(f) | vertical(g);
+	}
+
+	/**
+	 * Horizontal and diagonal fours in four adjacent columns.
+	 * @param a mask of the first column
+	 * @param b mask of the second column
+	 * @param c mask of the third column
+	 * @param d mask of the fourth column
+	 * @return non-zero if there are four connected
+	 */
+	private static long window(long a, long b, long c, long d)
+	{
+		return (a & b & c & d) | (a & (b << 1) & (c << 2) & (d << 3)) | (a & (b >>> 1) & (c >>> 2) & (d >>> 3));
+	}
+
+	/**
+	 * Vertical fours in a column.
+	 * @param m mask of the column
+	 * @return non-zero if there are four connected
+	 */
+	private static long vertical(long m)
+	{
+		return m & (m >>> 1) & (m >>> 2) & (m >>> 3);
+	}
+
+	/**
+	 * Load the vector kernel if the class and the jdk.incubator.vector module are
+	 * there, unless -Dwins.scalar=true.
+	 * @return the kernel to use by default
+	 */
+	private static Kernel load()
+	{
+		if(Boolean.getBoolean("wins.scalar"))
+			return SCALAR;
+		try
+		{
+			return (Kernel) Class.forName("VectorWinKernel").getDeclaredConstructor().newInstance();
+		}
+		catch(ReflectiveOperationException | LinkageError e)
+		{
+			return SCALAR;
+		}
+	}
+
+	/**
+	 * Fill a batch with random positions, a quarter of them won.
+	 * @param batch the batch, filled to capacity
+	 * @param boards the same positions as Board objects
+	 * @param seed random seed
+	 */
+	private static void fill(WinBatch batch, Board[] boards, long seed)
+	{
+		Random rand = new Random(seed);
+		int[] list = new int[Board.MAX_MOVES];
+		batch.clear();
+		for(int i = 0; i < boards.length; i++)
+		{
+			Board b = new Board();
+			int plies = 8 + rand.nextInt(24);
+			for(int p = 0; p < plies; p++)
+			{
+				int move = list[rand.nextInt(b.generate(list))];
+				b.make(move);
+				if(b.winner() >= 0 && rand.nextInt(4) != 0)
+					b.unmake(move);
+				else if(b.winner() >= 0)
+					break;
+			}
+			boards[i] = b;
+			batch.add(b);
+		}
+	}
+
+	/**
+	 * Checks against Board.winner(), then time the kernels against a loop over
+	 * Board.hasFourConnected().
+	 * @param args number of boards, default 1000000, and rounds, default 20
+	 */
+	public static void main(String[] args)
+	{
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		System.out.println("Kernel: " + (KERNEL == SCALAR ? "scalar" : "vector"));
+
+		PowerConnectFour game = new PowerConnectFour();
+		for(int c = 0; c < 4; c++)
+		{
+			game.powerDrop(c, 0);
+			if(c < 3)
+				game.drop(6);
+		}
+		WinBatch small = new WinBatch(2);
+		small.add(game);
+		small.add(Board.of(new PowerConnectFour()));
+		small.evaluate();
+		if(small.flags(0) == RED_FOUR && small.winner(0) == 0 && small.flags(1) == 0 && small.winner(1) == -1)
+			System.out.println("Yay 1");
+
+		Board[] boards = new Board[n];
+		WinBatch batch = new WinBatch(n);
+		WinBatch scalar = new WinBatch(n, SCALAR);
+		fill(batch, boards, 310);
+		fill(scalar, boards, 310);
+		batch.evaluate();
+		scalar.evaluate();
+		boolean same = true;
+		int won = 0;
+		for(int i = 0; i < n; i++)
+		{
+			int expected = (boards[i].hasFourConnected(0) ? RED_FOUR : 0) | (boards[i].hasFourConnected(1) ? YELLOW_FOUR : 0);
+			same &= batch.flags(i) == expected && scalar.flags(i) == expected && batch.winner(i) == boards[i].winner();
+			if(expected != 0)
+				won++;
+		}
+		if(same)
+			System.out.println("Yay 2");
+
+		long best = Long.MAX_VALUE;
+		long bestScalar = Long.MAX_VALUE;
+		long bestBoard = Long.MAX_VALUE;
+		int sink = 0;
+		for(int r = 0; r < rounds; r++)
+		{
+			long start = System.nanoTime();
+			batch.evaluate();
+			best = Math.min(best, System.nanoTime() - start);
+			start = System.nanoTime();
+			scalar.evaluate();
+			bestScalar = Math.min(bestScalar, System.nanoTime() - start);
+			start = System.nanoTime();
+			for(Board b : boards)
+			{
+				if(b.hasFourConnected(0))
+					sink++;
+				if(b.hasFourConnected(1))
+					sink++;
+			}
+			bestBoard = Math.min(bestBoard, System.nanoTime() - start);
+		}
+		System.out.format("%d boards, %d with four connected (%d)%n", n, won, sink / rounds);
+		System.out.format("batch (%s): %6.2f ns/board%n", KERNEL == SCALAR ? "scalar" : "vector", (double) best / n);
+		System.out.format("batch (scalar): %6.2f ns/board%n", (double) bestScalar / n);
+		System.out.format("Board.hasFourConnected loop: %6.2f ns/board%n", (double) bestBoard / n);
+	}
+}
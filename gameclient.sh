@@ -0,0 +1,51 @@
+#!/bin/sh
+# Client of GameDaemon without a JVM: sends a script path or inline moves over the
+# daemon's Unix domain socket with socat (or nc -U) and prints the reply without its
+# status line, which is the output of the GUI file mode. If no daemon answers, or
+# neither tool is installed, it runs java GameClient, which replays in its own JVM.
+# The socket is /tmp/powerconnectfour-$USER.sock unless PCF_SOCKET is set; it must
+# match -Dpcf.socket of the daemon. GameClient is run from the directory of this script.
+# Usage: ./gameclient.sh Input_File_Name
+# 		./gameclient.sh --moves "D 3;D 4;PP 3 0"
+
+sock=${PCF_SOCKET:-/tmp/powerconnectfour-${USER:-$(id -un)}.sock}
+dir=$(dirname "$0")
+
+fallback() {
+	exec java -Dpcf.socket="$sock" -cp "$dir" GameClient "$@"
+}
+
+if [ "$#" -eq 2 ] && [ "$1" = "--moves" ]; then
+	header=MOVES
+	body=$(printf '%s\n' "$2" | tr ';' '\n')
+elif [ "$#" -eq 1 ] && [ "${1#--}" = "$1" ]; then
+	case $1 in
+		/*) header="FILE $1" ;;
+		*) header="FILE $PWD/$1" ;;
+	esac
+	body=
+else
+	fallback "$@"
+fi
+
+if [ ! -S "$sock" ]; then
+	fallback "$@"
+elif command -v socat >/dev/null 2>&1; then
+	connect="socat -t 86400 - UNIX-CONNECT:$sock"
+elif command -v nc >/dev/null 2>&1; then
+	connect="nc -U -N $sock"
+else
+	fallback "$@"
+fi
+
+# status 3: nothing came back, e.g. a stale socket file, so replay in a JVM instead
+{ printf '%s\n' "$header"; [ -n "$body" ] && printf '%s\n' "$body"; } | $connect 2>/dev/null | {
+	IFS= read -r status || exit 3
+	case $status in
+		OK) exec cat ;;
+		*) printf '%s\n' "$status" >&2; exit 1 ;;
+	esac
+}
+rc=$?
+[ "$rc" -eq 3 ] && fallback "$@"
+exit "$rc"
@@ -0,0 +1,119 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * WinBatch kernel on the Vector API: the shift-and-mask tests of
+ * Board.hasFourConnected() on as many boards per instruction as the preferred vector
+ * shape holds longs (8 with AVX-512, 4 with AVX2). Needs the incubator module, so it
+ * is compiled and run with --add-modules jdk.incubator.vector; WinBatch loads it by
+ * name and falls back to its scalar kernel when it is missing.
+ */
+final class VectorWinKernel implements WinBatch.Kernel
+{
+	/**
+	 * Vector shape used.
+	 */
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	/**
+	 * Boards per block, so the scratch and the block's masks stay in L1/L2.
+	 */
+	private static final int BLOCK = 1024;
+
+	/**
+	 * Kernel for the preferred shape. Throws NoClassDefFoundError when the module is
+	 * missing, which WinBatch takes as no vector support.
+	 */
+	public VectorWinKernel()
+	{
+		if(SPECIES.length() < 2)
+			throw new UnsupportedOperationException("No vector shape wider than one long");
+	}
+
+	/**
+	 * Set a flag on every board where a player has four connected. The tests run as
+	 * short passes over blocks of BLOCK boards, one per column and one per window of
+	 * four columns, accumulating into a scratch array: C2 gives up on intrinsics in
+	 * one loop body holding all of them, and on compare() in Java 17.
+	 * @param masks the player's masks, masks[col][board]
+	 * @param count number of boards
+	 * @param flags flags of the boards, or-ed with flag
+	 * @param flag RED_FOUR or YELLOW_FOUR
+	 */
+	public void fours(long[][] masks, int count, byte[] flags, int flag)
+	{
+		long[] acc = new long[BLOCK];
+		for(int from = 0; from < count; from += BLOCK)
+		{
+			int n = Math.min(BLOCK, count - from);
+			int bound = SPECIES.loopBound(n);
+			for(int c = 0; c < Board.NUM_COLS; c++)
+			{
+				vertical(masks[c], from, acc, bound, c == 0);
+			}
+			for(int c = 0; c + 3 < Board.NUM_COLS; c++)
+			{
+				window(masks[c], masks[c + 1], masks[c + 2], masks[c + 3], from, acc, bound);
+			}
+			for(int i = 0; i < bound; i++)
+			{
+				if(acc[i] != 0)
+					flags[from + i] |= flag;
+			}
+			for(int i = from + bound; i < from + n; i++)
+			{
+				if(WinBatch.four(masks[0][i], masks[1][i], masks[2][i], masks[3][i], masks[4][i], masks[5][i], masks[6][i]) != 0)
+					flags[i] |= flag;
+			}
+		}
+	}
+
+	/**
+	 * Horizontal and diagonal fours in four adjacent columns, or-ed into the scratch.
+	 * @param a masks of the first column
+	 * @param b masks of the second column
+	 * @param c masks of the third column
+	 * @param d masks of the fourth column
+	 * @param from first board of the block
+	 * @param acc scratch, acc[i] for board from + i
+	 * @param bound boards of the block tested, a multiple of the vector length
+	 */
+	private static void window(long[] a, long[] b, long[] c, long[] d, int from, long[] acc, int bound)
+	{
+		for(int i = 0; i < bound; i += SPECIES.length())
+		{
+			LongVector va = LongVector.fromArray(SPECIES, a, from + i);
+			LongVector vb = LongVector.fromArray(SPECIES, b, from + i);
+			LongVector vc = LongVector.fromArray(SPECIES, c, from + i);
+			LongVector vd = LongVector.fromArray(SPECIES, d, from + i);
+			LongVector across = va.and(vb).and(vc).and(vd);
+			LongVector up = va.and(vb.lanewise(VectorOperators.LSHL, 1)).and(vc.lanewise(VectorOperators.LSHL, 2))
+				.and(vd.lanewise(VectorOperators.LSHL, 3));
+			LongVector down = va.and(vb.lanewise(VectorOperators.LSHR, 1)).and(vc.lanewise(VectorOperators.LSHR, 2))
+				.and(vd.lanewise(VectorOperators.LSHR, 3));
+			LongVector.fromArray(SPECIES, acc, i).or(across).or(up).or(down).intoArray(acc, i);
+		}
+	}
+
+	/**
+	 * Vertical fours in a column, or-ed into the scratch.
+	 * @param m masks of the column
+	 * @param from first board of the block
+	 * @param acc scratch, acc[i] for board from + i
+	 * @param bound boards of the block tested, a multiple of the vector length
+	 * @param first whether this pass starts the scratch over
+	 */
+	private static void vertical(long[] m, int from, long[] acc, int bound, boolean first)
+	{
+		for(int i = 0; i < bound; i += SPECIES.length())
+		{
+			LongVector v = LongVector.fromArray(SPECIES, m, from + i);
+			LongVector four = v.and(v.lanewise(VectorOperators.LSHR, 1)).and(v.lanewise(VectorOperators.LSHR, 2))
+				.and(v.lanewise(VectorOperators.LSHR, 3));
+			if(!first)
+				four = four.or(LongVector.fromArray(SPECIES, acc, i));
+			four.intoArray(acc, i);
+		}
+	}
+}